@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A shared store behind {@link CallCache}, letting processes on several nodes reuse the reference data any one of them
+ * fetched. Implementations adapt whatever external key/value store is available (memcached, Redis, ...); they only
+ * ever see opaque keys and byte arrays, and need no knowledge of OpSource or of the values' types.
+ * <p>
+ * Register an implementation with {@link CallCache#setBackend(CacheBackend)}, or name a class with a public no-arg
+ * constructor in the <code>cacheBackend</code> custom property. Failures should be thrown as runtime exceptions;
+ * the cache logs them and carries on as if the store had missed, so a store outage never fails an API call.
+ * </p>
+ */
+public interface CacheBackend {
+    /**
+     * @param key the key
+     * @return the stored bytes, or <code>null</code> if there are none or they expired
+     */
+    public @Nullable byte[] get(@Nonnull String key);
+
+    /**
+     * Stores bytes under a key, replacing any stored before.
+     * @param key the key
+     * @param value the bytes to store
+     * @param ttl how long the bytes may be kept, in milliseconds; the store may drop them earlier
+     */
+    public void put(@Nonnull String key, @Nonnull byte[] value, long ttl);
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A file holding a snapshot of {@link CallCache} entries so that a restarted JVM can answer reference data calls
+ * (regions, computing power limits, organization IDs) without calling the API first.
+ * <p>
+ * The file starts with a magic number and a format version; a file with a different version is ignored as a whole.
+ * Each record carries its key, account, resource, absolute expiry times and its value as a separately serialized
+ * blob, so a single record that no longer deserializes (e.g. after a model class changed) is skipped on its own.
+ * Only values made of <code>java.*</code> and <code>org.dasein.*</code> classes are ever deserialized.
+ * </p>
+ * <p>
+ * A snapshot is written to a temporary file of its own and renamed into place, so a reader never sees a partial
+ * snapshot. Where renaming cannot replace an existing file (Windows), the old snapshot is deleted first; a reader in
+ * that moment finds no snapshot and starts without one. Writes through the same instance are serialized.
+ * </p>
+ * <p>
+ * The snapshot holds account data such as organization IDs; it should live where only the process can read it.
+ * </p>
+ */
+public class CacheSnapshot {
+    static private final Logger logger = OpSource.getLogger(CacheSnapshot.class);
+
+    static private final int MAGIC   = 0x4F505343; // "OPSC"
+    static private final int VERSION = 1;
+
+    /**
+     * A single cache entry as stored in the file.
+     */
+    static public class Record {
+        private final String  key;
+        private final String  account;
+        private final String  resource;
+        private final List<?> value;
+        private final long    expiresAt;
+        private final long    staleUntil;
+        private final long    bytes;
+
+        public Record(@Nonnull String key, @Nullable String account, @Nonnull String resource, @Nonnull List<?> value, long expiresAt, long staleUntil) {
+            this(key, account, resource, value, expiresAt, staleUntil, -1L);
+        }
+
+        Record(@Nonnull String key, @Nullable String account, @Nonnull String resource, @Nonnull List<?> value, long expiresAt, long staleUntil, long bytes) {
+            this.key = key;
+            this.account = account;
+            this.resource = resource;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+            this.bytes = bytes;
+        }
+
+        public @Nonnull String getKey() {
+            return key;
+        }
+
+        public @Nullable String getAccount() {
+            return account;
+        }
+
+        public @Nonnull String getResource() {
+            return resource;
+        }
+
+        public @Nonnull List<?> getValue() {
+            return value;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public long getStaleUntil() {
+            return staleUntil;
+        }
+
+        /**
+         * @return the serialized size of the value as read from the file, or -1 for a record not read from one
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Reads values back, refusing any class outside the JDK and Dasein Cloud.
+     */
+    static private class RestrictedObjectInputStream extends ObjectInputStream {
+        RestrictedObjectInputStream(@Nonnull InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+
+            while( name.startsWith("[") ) {
+                name = name.substring(1);
+            }
+            if( name.length() > 1 && name.startsWith("L") && name.endsWith(";") ) {
+                name = name.substring(1, name.length() - 1);
+            }
+            if( name.length() > 1 && !name.startsWith("java.") && !name.startsWith("org.dasein.") ) {
+                throw new IOException("Class not allowed in a cache snapshot: " + desc.getName());
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private final File file;
+
+    public CacheSnapshot(@Nonnull File file) {
+        this.file = file;
+    }
+
+    public @Nonnull File getFile() {
+        return file;
+    }
+
+    /**
+     * Checks that a value can be written to a snapshot.
+     * @param value the cached value
+     * @return true if the list and all of its elements are serializable
+     */
+    static public boolean isStorable(@Nonnull List<?> value) {
+        if( !(value instanceof Serializable) ) {
+            return false;
+        }
+        for( Object item : value ) {
+            if( item != null && !(item instanceof Serializable) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serializes a cached value.
+     * @param value the value, which must be {@link #isStorable(List) storable}
+     * @return the serialized value
+     * @throws IOException the value could not be serialized
+     */
+    static @Nonnull byte[] serialize(@Nonnull List<?> value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        out.writeObject(value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads back a value written by {@link #serialize(List)}, refusing any class outside the JDK and Dasein Cloud.
+     * @param bytes the serialized value
+     * @return the value
+     * @throws IOException the value could not be deserialized
+     */
+    static @Nonnull List<?> deserialize(@Nonnull byte[] bytes) throws IOException {
+        try {
+            Object value = new RestrictedObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+
+            if( !(value instanceof List) ) {
+                throw new IOException("Not a cached list: " + (value == null ? null : value.getClass().getName()));
+            }
+            return (List<?>)value;
+        }
+        catch( ClassNotFoundException e ) {
+            throw new IOException("Unknown class " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the records of the snapshot that have not yet passed their stale window. A missing, foreign, older or
+     * corrupt file yields no records; a truncated one yields the records before the cut.
+     * @param now the current time, against which expiry is checked
+     * @return the live records found
+     */
+    public @Nonnull List<Record> read(long now) {
+        ArrayList<Record> records = new ArrayList<Record>();
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+        catch( FileNotFoundException e ) {
+            return records;
+        }
+        try {
+            if( in.readInt() != MAGIC ) {
+                logger.warn("Ignoring " + file + ": not a cache snapshot");
+                return records;
+            }
+            int version = in.readInt();
+
+            if( version != VERSION ) {
+                logger.info("Ignoring cache snapshot " + file + " in format version " + version);
+                return records;
+            }
+            int count = in.readInt();
+
+            for( int i=0; i<count; i++ ) {
+                String key = in.readUTF();
+                String account = (in.readBoolean() ? in.readUTF() : null);
+                String resource = in.readUTF();
+                long expiresAt = in.readLong();
+                long staleUntil = in.readLong();
+                int length = in.readInt();
+
+                // a damaged length must not turn into a huge or negative allocation
+                if( length < 0 || length > file.length() ) {
+                    logger.warn("Ignoring cache snapshot " + file + ": corrupt record length " + length);
+                    records.clear();
+                    return records;
+                }
+                byte[] blob = new byte[length];
+
+                in.readFully(blob);
+                if( Math.max(expiresAt, staleUntil) <= now ) {
+                    continue;
+                }
+                try {
+                    records.add(new Record(key, account, resource, deserialize(blob), expiresAt, staleUntil, length));
+                }
+                catch( Exception e ) {
+                    logger.warn("Skipping unreadable cache snapshot record " + resource + ": " + e.getMessage());
+                }
+            }
+        }
+        catch( EOFException e ) {
+            logger.warn("Cache snapshot " + file + " is truncated, using the " + records.size() + " records read");
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read cache snapshot " + file + ": " + e.getMessage());
+        }
+        finally {
+            try { in.close(); }
+            catch( IOException ignore ) { }
+        }
+        return records;
+    }
+
+    /**
+     * Replaces the snapshot with the specified records. Records with values that cannot be serialized are left out.
+     * @param records the records to write
+     * @throws IOException the snapshot could not be written; the previous one, if any, is left in place
+     */
+    public synchronized void write(@Nonnull Collection<Record> records) throws IOException {
+        ArrayList<byte[]> blobs = new ArrayList<byte[]>();
+        ArrayList<Record> written = new ArrayList<Record>();
+
+        for( Record record : records ) {
+            if( !isStorable(record.getValue()) ) {
+                continue;
+            }
+            blobs.add(serialize(record.getValue()));
+            written.add(record);
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        if( dir != null && !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException("Unable to create " + dir);
+        }
+        // unique, so that nothing else writing next to the snapshot can interleave with this write
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        DataOutputStream out;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        }
+        catch( IOException e ) {
+            tmp.delete();
+            throw e;
+        }
+        boolean complete = false;
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(written.size());
+            for( int i=0; i<written.size(); i++ ) {
+                Record record = written.get(i);
+                byte[] blob = blobs.get(i);
+
+                out.writeUTF(record.getKey());
+                out.writeBoolean(record.getAccount() != null);
+                if( record.getAccount() != null ) {
+                    out.writeUTF(record.getAccount());
+                }
+                out.writeUTF(record.getResource());
+                out.writeLong(record.getExpiresAt());
+                out.writeLong(record.getStaleUntil());
+                out.writeInt(blob.length);
+                out.write(blob);
+            }
+            out.close();
+            complete = true;
+        }
+        finally {
+            if( !complete ) {
+                try { out.close(); }
+                catch( IOException ignore ) { }
+                tmp.delete();
+            }
+        }
+        if( !tmp.renameTo(file) ) {
+            // renameTo does not replace an existing file on every platform
+            if( !file.delete() || !tmp.renameTo(file) ) {
+                tmp.delete();
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+}
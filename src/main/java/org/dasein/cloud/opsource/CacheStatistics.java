@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A point-in-time snapshot of the counters of one cache within {@link CallCache}, i.e. one resource and view such as
+ * <code>networkWithLocation/vlans</code> or <code>datacenterWithLimits/regions</code>. Counters are cumulative since
+ * the cache was created or its statistics were last reset; entry counts and sizes describe the cache as it is.
+ */
+public class CacheStatistics {
+    private final String name;
+    private final long   hits;
+    private final long   staleHits;
+    private final long   sharedHits;
+    private final long   misses;
+    private final long   loads;
+    private final long   loadFailures;
+    private final long   refreshes;
+    private final long   refreshFailures;
+    private final long   evictions;
+    private final long   invalidations;
+    private final int    entries;
+    private final long   bytes;
+
+    private final MethodStatistics.Histogram loadTime;
+
+    CacheStatistics(@Nonnull String name, long hits, long staleHits, long sharedHits, long misses, long loads, long loadFailures, long refreshes,
+                    long refreshFailures, long evictions, long invalidations, int entries, long bytes, @Nonnull MethodStatistics.Histogram loadTime) {
+        this.name = name;
+        this.hits = hits;
+        this.staleHits = staleHits;
+        this.sharedHits = sharedHits;
+        this.misses = misses;
+        this.loads = loads;
+        this.loadFailures = loadFailures;
+        this.refreshes = refreshes;
+        this.refreshFailures = refreshFailures;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.loadTime = loadTime;
+    }
+
+    /**
+     * @return the cache name, <code>resource/view</code>
+     */
+    public @Nonnull String getName() {
+        return name;
+    }
+
+    /**
+     * @return lookups answered with a live entry
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return lookups answered with an expired entry while it was refreshed in the background
+     */
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    /**
+     * @return misses answered from the shared {@link CacheBackend} rather than the API
+     */
+    public long getSharedHits() {
+        return sharedHits;
+    }
+
+    /**
+     * @return lookups that found no usable entry in this process
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of lookups answered from this process, stale ones included, between 0 and 1
+     */
+    public double getHitRatio() {
+        long lookups = hits + staleHits + misses;
+
+        return (lookups == 0L ? 0.0 : ((double)(hits + staleHits)) / lookups);
+    }
+
+    /**
+     * @return successful calls to the API (or other loader), including background refreshes
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    public long getLoadFailures() {
+        return loadFailures;
+    }
+
+    /**
+     * @return background refreshes that completed
+     */
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures;
+    }
+
+    /**
+     * @return entries dropped to keep the cache within <code>callCacheMaxEntries</code>
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return entries dropped because the data behind them changed or was invalidated by hand
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return the number of entries currently held
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the approximate size of the entries currently held, measured as the size of the responses they were
+     * parsed from (or, for entries loaded without reading a response themselves, their serialized size if they were
+     * serialized to be shared)
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the time taken by loads, successful or not, in milliseconds
+     */
+    public @Nonnull MethodStatistics.Histogram getLoadTime() {
+        return loadTime;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return name + ": entries=" + entries + " bytes=" + bytes + " hits=" + hits + " stale=" + staleHits + " shared=" + sharedHits +
+                " misses=" + misses + " loads=" + loads + " failures=" + loadFailures + " refreshes=" + refreshes + "/" + refreshFailures +
+                " evictions=" + evictions + " invalidations=" + invalidations + "\n  load: " + loadTime;
+    }
+}
@@ -21,16 +21,39 @@ package org.dasein.cloud.opsource;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
 import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.StringWriter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Copyright (C) 2009-2012 enStratus Networks Inc
@@ -50,100 +73,923 @@ import java.util.HashMap;
  * ====================================================================
  */
 
+/**
+ * Process-wide cache of the parsed results of OpSource reference data calls (e.g. <code>datacenterWithLimits</code>,
+ * <code>networkWithLocation</code>), keyed by account, region, resource, view and URL. Cached lists are unmodifiable
+ * and shared between callers.
+ * <p>
+ * Entries live for <code>cacheTtl.&lt;resource&gt;</code> or <code>cacheTtl</code> milliseconds (five minutes by
+ * default) and at most <code>callCacheMaxEntries</code> of them (256) are kept. With <code>cacheStaleTtl</code> set,
+ * an expired entry is still served for that long while it is refreshed in the background. Mutating calls
+ * {@link #invalidate(OpSource, String) invalidate} what they change. Entries may also be kept in a
+ * {@link CacheSnapshot} (<code>cacheSnapshotFile</code>) and shared between nodes through a {@link CacheBackend}.
+ * </p>
+ */
 public class CallCache {
-    Logger wire = OpSource.getLogger(CallCache.class);
-
-    private static CallCache cache;
+    static private final Logger logger = OpSource.getLogger(CallCache.class);
+    static private final Logger wire   = OpSource.getWireLogger(CallCache.class);
 
-    private HashMap<String, Document> cachedAPICalls;
+    static private final long DEFAULT_TTL         = 300000L; // five minutes
+    static private final int  DEFAULT_MAX_ENTRIES = 256;
+    static private final long SHARED_TOKEN_TTL    = 30L * 86400000L; // longer than any entry lives
 
-    private String NETWORK_WITH_LOCATION = "networkWithLocation";
-    private String DATACENTER_WITH_LIMITS = "datacenterWithLimits";
+    static private final Map<String, Long> DEFAULT_TTLS = new HashMap<String, Long>();
 
-    private long networkWithLocationCacheTime = 0L;
-    private long networkWithLocationThreshold;
+    static {
+        DEFAULT_TTLS.put("networkWithLocation", 180000L); // VLANs, as long as they were cached before
+        DEFAULT_TTLS.put("myaccount", 86400000L);         // the organization ID of an account never changes
+        DEFAULT_TTLS.put("vmProduct", 86400000L);         // products derived from the computing power limits
+    }
 
-    private long datacenterWithLimitsCacheTime = 0L;
-    private long datacenterWithLimitsThreshold;
+    static private final CallCache cache = new CallCache();
 
     public static CallCache getInstance(){
-        if(cache == null){
-            cache = new CallCache();
-        }
         return cache;
     }
 
+    /**
+     * Converts a response document into the model objects to be cached.
+     * @param <T> the type of model object
+     */
+    static public interface Parser<T> {
+        public @Nonnull List<T> parse(@Nonnull Document doc) throws CloudException, InternalException;
+    }
+
+    /**
+     * Fetches the model objects to be cached, for calls that do their own fetching (e.g. streamed lists). A loader may
+     * be run again later on a background thread to refresh its entry, so it must not depend on the calling thread.
+     * @param <T> the type of model object
+     */
+    static public interface Loader<T> {
+        /**
+         * @param read collects the size of the responses read, which becomes the approximate size of the entry
+         * @return the objects to cache, or <code>null</code> if the call returned nothing worth caching
+         */
+        public @Nullable List<T> load(@Nonnull ResponseSize read) throws CloudException, InternalException;
+    }
+
+    /**
+     * Adds up the size of the responses a loader read. Parsed objects take roughly as much memory as the XML they
+     * came from, so this serves as the size of the entry without serializing anything.
+     */
+    static public class ResponseSize {
+        private long bytes = 0L;
+
+        /**
+         * Counts the response of a completed call.
+         * @param method the method invoked
+         */
+        public void add(@Nonnull OpSourceMethod method) {
+            add(method.getResponseSize());
+        }
+
+        /**
+         * @param bytes the size of a response, ignored unless positive
+         */
+        public synchronized void add(long bytes) {
+            if( bytes > 0L ) {
+                this.bytes += bytes;
+            }
+        }
+
+        /**
+         * @return the total size of the responses counted, or -1 if none was measured
+         */
+        public synchronized long getBytes() {
+            return (bytes > 0L ? bytes : -1L);
+        }
+    }
+
+    /**
+     * Notified whenever cached data for a resource is invalidated, so caches outside this one can drop what they hold
+     * for it as well.
+     */
+    static public interface InvalidationListener {
+        /**
+         * @param accountNumber the account whose data changed, or <code>null</code> for all accounts
+         * @param resource the resource name (e.g. server)
+         */
+        public void invalidated(@Nullable String accountNumber, @Nonnull String resource);
+    }
+
+    static private class Entry {
+        final String  name;
+        final String  account;
+        final String  resource;
+        final List<?> value;
+        final long    bytes;
+        final long    expiresAt;
+        final long    staleUntil;
+
+        Entry(String name, String account, String resource, List<?> value, long bytes, long expiresAt, long staleUntil) {
+            this.name = name;
+            this.account = account;
+            this.resource = resource;
+            this.value = value;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    static private class Counters {
+        final AtomicLong hits            = new AtomicLong(0L);
+        final AtomicLong staleHits       = new AtomicLong(0L);
+        final AtomicLong sharedHits      = new AtomicLong(0L);
+        final AtomicLong misses          = new AtomicLong(0L);
+        final AtomicLong loads           = new AtomicLong(0L);
+        final AtomicLong loadFailures    = new AtomicLong(0L);
+        final AtomicLong refreshes       = new AtomicLong(0L);
+        final AtomicLong refreshFailures = new AtomicLong(0L);
+        final AtomicLong evictions       = new AtomicLong(0L);
+        final AtomicLong invalidations   = new AtomicLong(0L);
+
+        final MethodStatistics.Histogram loadTime = new MethodStatistics.Histogram();
+    }
+
+    private final LinkedHashMap<String, Entry> cachedAPICalls = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private final SingleFlight<List<?>> loads = new SingleFlight<List<?>>();
+
+    /** keys with a background refresh queued or running */
+    private final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+    private final ThreadPoolExecutor refresher;
+
+    /**
+     * invalidations per account and resource (<code>*</code> for every account), so that loads started before one
+     * neither store nor are joined after it; other accounts and resources are unaffected
+     */
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final CopyOnWriteArrayList<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+
+    private volatile CacheBackend  backend;
+    private volatile boolean       backendConfigured = false;
+
+    private volatile CacheSnapshot snapshot;
+    private final AtomicBoolean    snapshotPending = new AtomicBoolean(false);
+
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+    private String NETWORK_WITH_LOCATION = "networkWithLocation";
+
     protected CallCache(){
-        cachedAPICalls = new HashMap();
-        networkWithLocationThreshold = 300000;//Timeouts set to five minutes
-        datacenterWithLimitsThreshold = 300000;
+        final AtomicInteger threads = new AtomicInteger(0);
+
+        // refreshes are few and never urgent: two daemon threads that go away when idle
+        refresher = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "OpSource cache refresh " + threads.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refresher.allowCoreThreadTimeOut(true);
     }
 
-    private Document getRealAPICall(OpSource provider, HashMap<Integer, Param> parameters, String resource, String regionServiceURL) throws CloudException, InternalException{
-        OpSourceMethod method = new OpSourceMethod(provider, (resource.equals(NETWORK_WITH_LOCATION) || regionServiceURL.equals("")) ? provider.buildUrl(null,true, parameters) : regionServiceURL, provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-        return method.invoke();
+    private @Nonnull String getRequestUrl(OpSource provider, HashMap<Integer, Param> parameters, String resource, String regionServiceURL) throws CloudException, InternalException {
+        return (resource.equals(NETWORK_WITH_LOCATION) || regionServiceURL.equals("")) ? provider.buildUrl(null,true, parameters) : regionServiceURL;
     }
 
-    public Document getAPICall(String resource, OpSource provider, HashMap<Integer, Param> parameters, String regionServiceURL) throws CloudException, InternalException{
-        boolean timeElapsed = false;
+    private Document getRealAPICall(OpSource provider, String url, ResponseSize read) throws CloudException, InternalException{
+        OpSourceMethod method = new OpSourceMethod(provider, url, provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
+        Document doc = method.invoke();
 
-        java.util.Date now = new java.util.Date();
-        if(resource.equals(NETWORK_WITH_LOCATION)){
-            if(now.getTime() > (networkWithLocationCacheTime + networkWithLocationThreshold)){
-                timeElapsed = true;
-                networkWithLocationCacheTime = now.getTime();
+        read.add(method);
+        return doc;
+    }
+
+    static private @Nonnull String getKey(@Nonnull ProviderContext ctx, @Nonnull String resource, @Nonnull String view, @Nonnull String url) {
+        return ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|" + resource + "|" + view + "|" + url;
+    }
+
+    /**
+     * Recovers the cache name (<code>resource/view</code>) from a key built by {@link #getKey}.
+     */
+    static private @Nonnull String getName(@Nonnull String key, @Nonnull String resource) {
+        String[] parts = key.split("\\|", 5);
+
+        return (parts.length == 5 && parts[2].equals(resource) ? resource + "/" + parts[3] : resource);
+    }
+
+    private @Nonnull AtomicLong getGeneration(@Nullable String account, @Nonnull String resource) {
+        String key = (account == null ? "*" : account) + "|" + resource;
+        AtomicLong g = generations.get(key);
+
+        if( g == null ) {
+            AtomicLong existing = generations.putIfAbsent(key, g = new AtomicLong(0L));
+
+            if( existing != null ) {
+                g = existing;
             }
         }
-        else if (resource.equals(DATACENTER_WITH_LIMITS)){
-            if(now.getTime() > (datacenterWithLimitsCacheTime + datacenterWithLimitsThreshold)){
-                timeElapsed = true;
-                datacenterWithLimitsCacheTime = now.getTime();
+        return g;
+    }
+
+    /**
+     * @return a stamp that changes whenever the resource is invalidated for the account or for every account
+     */
+    private @Nonnull String getGenerationStamp(@Nullable String account, @Nonnull String resource) {
+        return getGeneration(null, resource).get() + "." + getGeneration(account, resource).get();
+    }
+
+    private @Nonnull Counters getCounters(@Nonnull String name) {
+        Counters c = counters.get(name);
+
+        if( c == null ) {
+            Counters existing = counters.putIfAbsent(name, c = new Counters());
+
+            if( existing != null ) {
+                c = existing;
             }
         }
+        return c;
+    }
 
-        Document doc;
-        if(!cachedAPICalls.containsKey(provider.getContext().getAccountNumber() + "-" + provider.getContext().getRegionId() + "-" + resource) || timeElapsed){
-            if(wire.isDebugEnabled()){
-                wire.debug("Getting real OpSource data: " + resource);
+    /**
+     * Determines how long results for the specified resource stay valid for the provider's context.
+     * @param provider the provider storing the entry
+     * @param resource the resource name (e.g. datacenterWithLimits)
+     * @return the TTL in milliseconds
+     */
+    public long getTtl(@Nonnull OpSource provider, @Nonnull String resource) {
+        Long ttl = DEFAULT_TTLS.get(resource);
+
+        return provider.getCustomLongProperty("cacheTtl." + resource, provider.getCustomLongProperty("cacheTtl", ttl == null ? DEFAULT_TTL : ttl));
+    }
+
+    /**
+     * Determines how long after expiring results for the specified resource may still be served while being refreshed.
+     * @param provider the provider storing the entry
+     * @param resource the resource name (e.g. datacenterWithLimits)
+     * @return the stale window in milliseconds, 0 if stale-while-revalidate is off
+     */
+    public long getStaleTtl(@Nonnull OpSource provider, @Nonnull String resource) {
+        return Math.max(0L, provider.getCustomLongProperty("cacheStaleTtl." + resource, provider.getCustomLongProperty("cacheStaleTtl", 0L)));
+    }
+
+    /**
+     * Provides the parsed results of an API call, calling the API only when no live entry exists.
+     * @param resource the resource name (e.g. datacenterWithLimits)
+     * @param view names what the parser extracts, distinguishing several parsers over the same resource
+     * @param provider the provider making the call
+     * @param parameters the URL parameters used when no explicit URL is given
+     * @param regionServiceURL an explicit URL for the call, or an empty string to build it from the parameters
+     * @param parser converts a fetched response into the objects to cache
+     * @param <T> the type of model object
+     * @return the unmodifiable, shared list of results; empty if the call returned no document
+     * @throws CloudException an error occurred calling the API
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull <T> List<T> getAPICall(String resource, String view, final OpSource provider, HashMap<Integer, Param> parameters, String regionServiceURL, final Parser<T> parser) throws CloudException, InternalException{
+        final String url = getRequestUrl(provider, parameters, resource, regionServiceURL);
+
+        return getList(resource, view, provider, url, new Loader<T>() {
+            @Override
+            public List<T> load(@Nonnull ResponseSize read) throws CloudException, InternalException {
+                // the raw response is written to the wire log by OpSourceMethod when it is fetched
+                Document doc = getRealAPICall(provider, url, read);
+
+                return (doc == null ? null : parser.parse(doc));
+            }
+        });
+    }
+
+    /**
+     * Provides the results of a call made by the specified loader, running it only when no usable entry exists.
+     * @param resource the resource name (e.g. networkWithLocation), used for TTLs and invalidation
+     * @param view names what the loader produces, distinguishing several views of the same resource
+     * @param provider the provider making the call
+     * @param url the URL the loader calls
+     * @param loader fetches the objects to cache
+     * @param <T> the type of model object
+     * @return the unmodifiable, shared list of results; empty if the loader returned nothing
+     * @throws CloudException an error occurred calling the API
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull <T> List<T> getList(@Nonnull String resource, @Nonnull String view, @Nonnull OpSource provider, @Nonnull String url, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        attachSnapshot(provider);
+        attachBackend(provider);
+
+        String key = getKey(ctx, resource, view, url);
+        String name = resource + "/" + view;
+        Counters stats = getCounters(name);
+        long now = System.currentTimeMillis();
+        Entry entry;
+
+        synchronized( cachedAPICalls ) {
+            entry = cachedAPICalls.get(key);
+        }
+        if( entry != null ) {
+            if( entry.expiresAt > now ) {
+                stats.hits.incrementAndGet();
+                if(wire.isDebugEnabled()){
+                    wire.debug("Getting OpSource data from cache: " + key);
+                }
+                return CallCache.<T>values(entry.value);
+            }
+            if( entry.staleUntil > now ) {
+                stats.staleHits.incrementAndGet();
+                if(wire.isDebugEnabled()){
+                    wire.debug("Getting stale OpSource data from cache while refreshing: " + key);
+                }
+                refresh(provider, name, ctx.getAccountNumber(), resource, key, loader);
+                return CallCache.<T>values(entry.value);
+            }
+        }
+        stats.misses.incrementAndGet();
+        return CallCache.<T>values(load(provider, name, ctx.getAccountNumber(), resource, key, loader));
+    }
+
+    /**
+     * Everything cached under a key was produced by the loaders of a single resource and view, so its elements have
+     * the type the caller asks for.
+     */
+    @SuppressWarnings("unchecked")
+    static private @Nonnull <T> List<T> values(@Nonnull List<?> value) {
+        return (List<T>)value;
+    }
+
+    /**
+     * Runs the loader and stores the entry for the key. Callers missing on the same key at the same time, and a
+     * background refresh of it, share a single fetch and store.
+     */
+    private <T> List<?> load(@Nonnull final OpSource provider, @Nonnull final String name, @Nullable final String account, @Nonnull final String resource, @Nonnull final String key, @Nonnull final Loader<T> loader) throws CloudException, InternalException {
+        final String loadGeneration = getGenerationStamp(account, resource);
+
+        return loads.execute(key + "#" + loadGeneration, new SingleFlight.Call<List<?>>() {
+            @Override
+            public List<?> call() throws CloudException, InternalException {
+                int maxEntries = provider.getCustomIntProperty("callCacheMaxEntries", DEFAULT_MAX_ENTRIES);
+                Counters stats = getCounters(name);
+                Entry shared = getShared(name, account, resource, key);
+
+                if( shared != null ) {
+                    put(key, shared, loadGeneration, maxEntries);
+                    return shared.value;
+                }
+                if(wire.isDebugEnabled()){
+                    wire.debug("Getting real OpSource data: " + resource);
+                }
+                long start = System.currentTimeMillis();
+                ResponseSize read = new ResponseSize();
+                List<T> loaded;
+
+                try {
+                    loaded = loader.load(read);
+                    stats.loads.incrementAndGet();
+                }
+                catch( CloudException e ) {
+                    stats.loadFailures.incrementAndGet();
+                    throw e;
+                }
+                catch( InternalException e ) {
+                    stats.loadFailures.incrementAndGet();
+                    throw e;
+                }
+                catch( RuntimeException e ) {
+                    stats.loadFailures.incrementAndGet();
+                    throw e;
+                }
+                finally {
+                    stats.loadTime.record(System.currentTimeMillis() - start);
+                }
+                if( loaded == null ) {
+                    return Collections.emptyList();
+                }
+                List<T> value = Collections.unmodifiableList(new ArrayList<T>(loaded));
+                byte[] blob = null;
+
+                // values are serialized only to be shared; the size of the responses read stands in for the rest
+                if( backend != null && CacheSnapshot.isStorable(value) ) {
+                    try {
+                        blob = CacheSnapshot.serialize(value);
+                    }
+                    catch( IOException e ) {
+                        logger.warn("Unable to serialize " + name + ": " + e.getMessage());
+                    }
+                }
+                long ttl = getTtl(provider, resource);
+                long expiresAt = System.currentTimeMillis() + ttl;
+                Entry entry = new Entry(name, account, resource, value, read.getBytes() > 0L || blob == null ? read.getBytes() : blob.length, expiresAt, expiresAt + getStaleTtl(provider, resource));
+
+                put(key, entry, loadGeneration, maxEntries);
+                if( blob != null ) {
+                    putShared(key, entry, blob);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Sets the shared store behind this cache, replacing any set before or configured through
+     * <code>cacheBackend</code>.
+     * @param backend the store to use, or <code>null</code> to keep entries in this process only
+     */
+    public void setBackend(@Nullable CacheBackend backend) {
+        this.backend = backend;
+        backendConfigured = true;
+    }
+
+    public @Nullable CacheBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Instantiates the store named by the provider's <code>cacheBackend</code> property, the first time one is named.
+     */
+    private void attachBackend(@Nonnull OpSource provider) {
+        if( backendConfigured ) {
+            return;
+        }
+        ProviderContext ctx = provider.getContext();
+        String name = (ctx == null || ctx.getCustomProperties() == null ? null : ctx.getCustomProperties().getProperty("cacheBackend"));
+
+        if( name == null || name.trim().length() < 1 ) {
+            return;
+        }
+        synchronized( this ) {
+            if( backendConfigured ) {
+                return;
+            }
+            try {
+                backend = Class.forName(name.trim()).asSubclass(CacheBackend.class).getDeclaredConstructor().newInstance();
+                logger.info("Sharing cached OpSource data through " + name.trim());
             }
-            doc = getRealAPICall(provider, parameters, resource, regionServiceURL);
-            cachedAPICalls.put(provider.getContext().getAccountNumber() + "-" + provider.getContext().getRegionId() + "-" + resource, doc);
+            catch( NoSuchMethodException e ) {
+                logger.warn("Cache backend " + name.trim() + " has no public no-argument constructor, keeping cached data in this process only");
+            }
+            catch( InvocationTargetException e ) {
+                Throwable cause = (e.getCause() == null ? e : e.getCause());
+
+                logger.warn("Cache backend " + name.trim() + " failed to initialize, keeping cached data in this process only: " + cause.getMessage(), cause);
+            }
+            catch( ClassCastException e ) {
+                logger.warn("Class " + name.trim() + " is not a " + CacheBackend.class.getName() + ", keeping cached data in this process only");
+            }
+            catch( Exception e ) {
+                logger.error("Unable to create cache backend " + name.trim() + ", keeping cached data in this process only: " + e.getMessage());
+            }
+            backendConfigured = true;
+        }
+    }
+
+    static private @Nonnull String getTokenKey(@Nullable String account, @Nonnull String resource) {
+        return "opsource|token|" + (account == null ? "*" : account) + "|" + resource;
+    }
+
+    /**
+     * Builds the key of an entry in the shared store from the current invalidation tokens of its resource.
+     */
+    private @Nonnull String getSharedKey(@Nonnull CacheBackend store, @Nullable String account, @Nonnull String resource, @Nonnull String key) {
+        byte[] all = store.get(getTokenKey(null, resource));
+        byte[] mine = (account == null ? null : store.get(getTokenKey(account, resource)));
+
+        return "opsource|" + (all == null ? "0" : new String(all)) + "|" + (mine == null ? "0" : new String(mine)) + "|" + key;
+    }
+
+    private @Nullable Entry getShared(@Nonnull String name, @Nullable String account, @Nonnull String resource, @Nonnull String key) {
+        CacheBackend store = backend;
+
+        if( store == null ) {
+            return null;
         }
-        else{
+        try {
+            byte[] bytes = store.get(getSharedKey(store, account, resource, key));
+
+            if( bytes == null ) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            long expiresAt = in.readLong();
+            long staleUntil = in.readLong();
+            byte[] blob = new byte[in.readInt()];
+
+            in.readFully(blob);
+            if( expiresAt <= System.currentTimeMillis() ) {
+                return null;
+            }
+            getCounters(name).sharedHits.incrementAndGet();
             if(wire.isDebugEnabled()){
-                wire.debug("Getting OpSource data from cache: " + provider.getContext().getAccountNumber() + "-" + provider.getContext().getRegionId() + "-" + resource);
+                wire.debug("Getting OpSource data from the shared cache: " + key);
+            }
+            return new Entry(name, account, resource, Collections.unmodifiableList(CacheSnapshot.deserialize(blob)), blob.length, expiresAt, staleUntil);
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to read " + resource + " from the shared cache: " + t.getMessage());
+            return null;
+        }
+    }
+
+    private void putShared(@Nonnull String key, @Nonnull Entry entry, @Nonnull byte[] blob) {
+        CacheBackend store = backend;
+
+        if( store == null ) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeLong(entry.expiresAt);
+            out.writeLong(entry.staleUntil);
+            out.writeInt(blob.length);
+            out.write(blob);
+            out.close();
+            store.put(getSharedKey(store, entry.account, entry.resource, key), bytes.toByteArray(), Math.max(1L, entry.staleUntil - System.currentTimeMillis()));
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to write " + entry.resource + " to the shared cache: " + t.getMessage());
+        }
+    }
+
+    /**
+     * Queues a background reload of a stale entry unless one is already queued. The provider is held until the refresh
+     * completes so that closing it in the meantime does not tear down the connection pool under the refresh.
+     */
+    private <T> void refresh(@Nonnull final OpSource provider, @Nonnull final String name, @Nullable final String account, @Nonnull final String resource, @Nonnull final String key, @Nonnull final Loader<T> loader) {
+        if( refreshing.putIfAbsent(key, Boolean.TRUE) != null ) {
+            return;
+        }
+        provider.hold();
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(provider, name, account, resource, key, loader);
+                        getCounters(name).refreshes.incrementAndGet();
+                    }
+                    catch( Throwable t ) {
+                        // the stale entry stays in place until its window closes, then callers see the error themselves
+                        getCounters(name).refreshFailures.incrementAndGet();
+                        logger.warn("Unable to refresh cached OpSource data for " + resource + ": " + t.getMessage());
+                    }
+                    finally {
+                        refreshing.remove(key);
+                        provider.release();
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            refreshing.remove(key);
+            provider.release();
+        }
+    }
+
+    private void put(@Nonnull String key, @Nonnull Entry entry, @Nonnull String loadGeneration, int maxEntries) {
+        synchronized( cachedAPICalls ) {
+            if( !getGenerationStamp(entry.account, entry.resource).equals(loadGeneration) ) {
+                // invalidated while loading; what was loaded may predate the change
+                return;
+            }
+            cachedAPICalls.put(key, entry);
+            scheduleSnapshot();
+
+            // drop entries that can no longer be served first, then the least recently used ones until the cache fits
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Entry>> it = cachedAPICalls.entrySet().iterator();
+
+            while( it.hasNext() && cachedAPICalls.size() > maxEntries ) {
+                Entry evicted = it.next().getValue();
+
+                if( evicted.staleUntil <= now ) {
+                    it.remove();
+                    getCounters(evicted.name).evictions.incrementAndGet();
+                }
+            }
+            it = cachedAPICalls.entrySet().iterator();
+            while( it.hasNext() && cachedAPICalls.size() > Math.max(1, maxEntries) ) {
+                Entry evicted = it.next().getValue();
+
+                it.remove();
+                getCounters(evicted.name).evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached result for the specified resource, for all accounts and regions.
+     * @param resource the resource name (e.g. networkWithLocation)
+     */
+    public void invalidate(@Nonnull String resource) {
+        invalidateAccount(null, resource);
+    }
+
+    /**
+     * Drops the cached results for the specified resource belonging to the provider's account, in every region, and
+     * notifies the registered {@link InvalidationListener}s.
+     * @param provider the provider that made the change
+     * @param resource the resource name whose listings changed (e.g. server)
+     */
+    public void invalidate(@Nonnull OpSource provider, @Nonnull String resource) {
+        ProviderContext ctx = provider.getContext();
+
+        invalidateAccount(ctx == null ? null : ctx.getAccountNumber(), resource);
+    }
+
+    /**
+     * Invalidates the specified resources for the provider's account.
+     * @param provider the provider that made the change
+     * @param resources the resources whose listings changed (e.g. server)
+     */
+    public void changed(@Nonnull OpSource provider, @Nonnull String ... resources) {
+        for( String resource : resources ) {
+            invalidate(provider, resource);
+        }
+    }
+
+    /**
+     * Makes a mutating call and invalidates the specified resources for the provider's account however it ends, before
+     * the answer is checked. A change the API rejected, or a call that failed before the change was made, costs a
+     * needless reload at worst, whereas a change that went through must never be hidden by cached data, even when the
+     * answer to it was lost to a timeout or an I/O error.
+     * @param provider the provider making the call
+     * @param method the mutating call
+     * @param resources the resources whose listings the call may change (e.g. server)
+     * @return the response to the call, for parsing
+     * @throws CloudException an error occurred calling the API
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable Document invokeChange(@Nonnull OpSource provider, @Nonnull OpSourceMethod method, @Nonnull String ... resources) throws CloudException, InternalException {
+        try {
+            return method.invoke();
+        }
+        finally {
+            changed(provider, resources);
+        }
+    }
+
+    private void invalidateAccount(@Nullable String account, @Nonnull String resource) {
+        synchronized( cachedAPICalls ) {
+            getGeneration(account, resource).incrementAndGet();
+
+            Iterator<Entry> it = cachedAPICalls.values().iterator();
+
+            while( it.hasNext() ) {
+                Entry entry = it.next();
+
+                if( entry.resource.equals(resource) && (account == null || account.equals(entry.account)) ) {
+                    it.remove();
+                    getCounters(entry.name).invalidations.incrementAndGet();
+                }
             }
-            doc = cachedAPICalls.get(provider.getContext().getAccountNumber() + "-" + provider.getContext().getRegionId() + "-" + resource);
+            scheduleSnapshot();
         }
+        CacheBackend store = backend;
 
+        if( store != null ) {
+            try {
+                store.put(getTokenKey(account, resource), UUID.randomUUID().toString().getBytes(), SHARED_TOKEN_TTL);
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to invalidate " + resource + " in the shared cache: " + t.getMessage());
+            }
+        }
         if(wire.isDebugEnabled()){
-            try{
-                TransformerFactory transfac = TransformerFactory.newInstance();
-                Transformer trans = transfac.newTransformer();
-                trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-                trans.setOutputProperty(OutputKeys.INDENT, "yes");
+            wire.debug("Invalidated cached OpSource data: " + resource + (account == null ? "" : " for " + account));
+        }
+        for( InvalidationListener listener : listeners ) {
+            try {
+                listener.invalidated(account, resource);
+            }
+            catch( Throwable t ) {
+                logger.warn("Cache invalidation listener failed: " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Loads the entries of the snapshot file configured for the provider, the first time one is configured.
+     */
+    private void attachSnapshot(@Nonnull OpSource provider) {
+        if( snapshot != null ) {
+            return;
+        }
+        ProviderContext ctx = provider.getContext();
+        String path = (ctx == null || ctx.getCustomProperties() == null ? null : ctx.getCustomProperties().getProperty("cacheSnapshotFile"));
 
-                StringWriter sw = new StringWriter();
-                StreamResult result = new StreamResult(sw);
-                DOMSource source = new DOMSource(doc);
-                trans.transform(source, result);
-                String xmlString = sw.toString();
-                System.out.println(xmlString);
+        if( path == null || path.trim().length() < 1 ) {
+            return;
+        }
+        synchronized( cachedAPICalls ) {
+            if( snapshot != null ) {
+                return;
+            }
+            CacheSnapshot s = new CacheSnapshot(new File(path.trim()));
+            int restored = 0;
+
+            for( CacheSnapshot.Record record : s.read(System.currentTimeMillis()) ) {
+                if( !cachedAPICalls.containsKey(record.getKey()) ) {
+                    cachedAPICalls.put(record.getKey(), new Entry(getName(record.getKey(), record.getResource()), record.getAccount(), record.getResource(),
+                            Collections.unmodifiableList(record.getValue()), record.getBytes(), record.getExpiresAt(), record.getStaleUntil()));
+                    restored++;
+                }
             }
-            catch(Exception ex){
-                ex.printStackTrace();
+            snapshot = s;
+            if( logger.isInfoEnabled() ) {
+                logger.info("Restored " + restored + " cache entries from " + s.getFile());
             }
         }
+    }
 
-        return doc;
+    /**
+     * Queues a rewrite of the snapshot file, if there is one. Writes requested while one is queued are folded into it;
+     * one requested while a rewrite is running is queued behind it.
+     */
+    private void scheduleSnapshot() {
+        final CacheSnapshot s = snapshot;
+
+        if( s == null || !snapshotPending.compareAndSet(false, true) ) {
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // one rewrite at a time, and whichever collected its records last writes last
+                    synchronized( s ) {
+                        snapshotPending.set(false);
+
+                        ArrayList<CacheSnapshot.Record> records = new ArrayList<CacheSnapshot.Record>();
+
+                        synchronized( cachedAPICalls ) {
+                            for( Map.Entry<String, Entry> e : cachedAPICalls.entrySet() ) {
+                                Entry entry = e.getValue();
+
+                                records.add(new CacheSnapshot.Record(e.getKey(), entry.account, entry.resource, entry.value, entry.expiresAt, entry.staleUntil));
+                            }
+                        }
+                        try {
+                            s.write(records);
+                        }
+                        catch( IOException ex ) {
+                            logger.warn("Unable to write cache snapshot " + s.getFile() + ": " + ex.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            snapshotPending.set(false);
+        }
     }
 
     public void resetCacheTimer(String resource){
-        if(resource.equals(NETWORK_WITH_LOCATION)){
-            networkWithLocationCacheTime = 0L;
+        invalidate(resource);
+    }
+
+    public void addInvalidationListener(@Nonnull InvalidationListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeInvalidationListener(@Nonnull InvalidationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Drops every cached result, for all resources and accounts.
+     */
+    public void invalidateAll() {
+        HashSet<String> resources = new HashSet<String>();
+
+        synchronized( cachedAPICalls ) {
+            for( Entry entry : cachedAPICalls.values() ) {
+                resources.add(entry.resource);
+            }
+        }
+        for( String name : counters.keySet() ) {
+            int idx = name.indexOf('/');
+
+            resources.add(idx > -1 ? name.substring(0, idx) : name);
+        }
+        for( String resource : resources ) {
+            invalidate(resource);
+        }
+    }
+
+    /**
+     * Marks every cached result for the specified resource as expired without dropping it. The next lookup of each one
+     * is still answered with the current result and reloads it in the background, so nobody waits for the reload.
+     * @param resource the resource name (e.g. datacenterWithLimits)
+     */
+    public void refresh(@Nonnull String resource) {
+        long now = System.currentTimeMillis();
+
+        synchronized( cachedAPICalls ) {
+            for( Map.Entry<String, Entry> e : cachedAPICalls.entrySet() ) {
+                Entry entry = e.getValue();
+
+                if( entry.resource.equals(resource) && entry.expiresAt > now ) {
+                    // the old expiry becomes the end of the stale window if there was none
+                    e.setValue(new Entry(entry.name, entry.account, entry.resource, entry.value, entry.bytes, now, Math.max(entry.staleUntil, entry.expiresAt)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides a snapshot of the statistics of every cache (resource and view) used so far.
+     * @return the statistics keyed and sorted by cache name (<code>resource/view</code>)
+     */
+    public @Nonnull SortedMap<String, CacheStatistics> getStatistics() {
+        HashMap<String, int[]> entries = new HashMap<String, int[]>();
+        HashMap<String, long[]> bytes = new HashMap<String, long[]>();
+
+        synchronized( cachedAPICalls ) {
+            for( Entry entry : cachedAPICalls.values() ) {
+                int[] count = entries.get(entry.name);
+                long[] size = bytes.get(entry.name);
+
+                if( count == null ) {
+                    entries.put(entry.name, count = new int[1]);
+                    bytes.put(entry.name, size = new long[1]);
+                }
+                count[0]++;
+                if( entry.bytes > 0L ) {
+                    size[0] += entry.bytes;
+                }
+            }
+        }
+        TreeMap<String, CacheStatistics> statistics = new TreeMap<String, CacheStatistics>();
+
+        for( Map.Entry<String, Counters> e : counters.entrySet() ) {
+            String name = e.getKey();
+            Counters c = e.getValue();
+            int[] count = entries.get(name);
+            long[] size = bytes.get(name);
+
+            statistics.put(name, new CacheStatistics(name, c.hits.get(), c.staleHits.get(), c.sharedHits.get(), c.misses.get(), c.loads.get(),
+                    c.loadFailures.get(), c.refreshes.get(), c.refreshFailures.get(), c.evictions.get(), c.invalidations.get(),
+                    count == null ? 0 : count[0], size == null ? 0L : size[0], c.loadTime.copy()));
+        }
+        return Collections.unmodifiableSortedMap(statistics);
+    }
+
+    /**
+     * @param name the cache name, <code>resource/view</code> (e.g. <code>networkWithLocation/vlans</code>)
+     * @return a snapshot of that cache's statistics, or <code>null</code> if it was never used
+     */
+    public @Nullable CacheStatistics getStatistics(@Nonnull String name) {
+        return getStatistics().get(name);
+    }
+
+    /**
+     * Sets every counter back to zero. Cached entries are kept.
+     */
+    public void resetStatistics() {
+        counters.clear();
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        long total = 0L;
+
+        for( Counters c : counters.values() ) {
+            total += c.hits.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of lookups not answered from this process, whether the shared store or the API answered them
+     */
+    public long getMissCount() {
+        long total = 0L;
+
+        for( Counters c : counters.values() ) {
+            total += c.misses.get();
         }
-        else if(resource.equals(DATACENTER_WITH_LIMITS)){
-            datacenterWithLimitsCacheTime = 0L;
+        return total;
+    }
+
+    /**
+     * @return the number of entries removed to keep the cache within its size bound
+     */
+    public long getEvictionCount() {
+        long total = 0L;
+
+        for( Counters c : counters.values() ) {
+            total += c.evictions.get();
+        }
+        return total;
+    }
+
+    public int size() {
+        synchronized( cachedAPICalls ) {
+            return cachedAPICalls.size();
         }
     }
-}
\ No newline at end of file
+}
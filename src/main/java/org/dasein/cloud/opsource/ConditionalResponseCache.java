@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Remembers the validators (<code>ETag</code>/<code>Last-Modified</code>) and raw body of recent GET responses so
+ * that repeated list calls can be revalidated with <code>If-None-Match</code>/<code>If-Modified-Since</code>. When
+ * the server answers 304 Not Modified, the stored body is parsed again instead of being downloaded again.
+ * <p>
+ * Only responses that actually carry a validator are kept. Each provider instance has its own cache, sized from its
+ * own context and keyed by account and URL. It holds at most <code>conditionalCacheEntries</code> entries (32 by
+ * default, 0 disables it) of up to <code>conditionalCacheMaxBytes</code> bytes each (1 MB by default), and no more
+ * than <code>conditionalCacheTotalBytes</code> bytes in all (8 MB by default), evicting the least recently used
+ * first.
+ * </p>
+ */
+public class ConditionalResponseCache {
+    static private final int DEFAULT_ENTRIES     = 32;
+    static private final int DEFAULT_ENTRY_BYTES = 1024 * 1024;
+    static private final int DEFAULT_TOTAL_BYTES = 8 * 1024 * 1024;
+
+    static public class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final byte[] body;
+
+        Entry(@Nullable String etag, @Nullable String lastModified, @Nonnull byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public @Nonnull byte[] getBody() {
+            return body;
+        }
+
+        public @Nullable String getEtag() {
+            return etag;
+        }
+
+        public @Nullable String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final int                          maxEntries;
+    private final int                          maxEntryBytes;
+    private final long                         maxTotalBytes;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long totalBytes = 0L;
+
+    /**
+     * Sizes the cache from the custom properties of the provider context.
+     * @param provider the provider owning the cache
+     */
+    public ConditionalResponseCache(@Nonnull OpSource provider) {
+        this(provider.getCustomIntProperty("conditionalCacheEntries", DEFAULT_ENTRIES),
+                provider.getCustomIntProperty("conditionalCacheMaxBytes", DEFAULT_ENTRY_BYTES),
+                provider.getCustomLongProperty("conditionalCacheTotalBytes", DEFAULT_TOTAL_BYTES));
+    }
+
+    public ConditionalResponseCache(int maxEntries, int maxEntryBytes, long maxTotalBytes) {
+        this.maxEntries = maxEntries;
+        this.maxEntryBytes = maxEntryBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    public synchronized @Nullable Entry get(@Nonnull String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores a response body along with its validators, provided it has at least one and fits the size limits.
+     * @param key the account/URL key
+     * @param etag the <code>ETag</code> header of the response, if any
+     * @param lastModified the <code>Last-Modified</code> header of the response, if any
+     * @param body the decompressed response body
+     */
+    public synchronized void put(@Nonnull String key, @Nullable String etag, @Nullable String lastModified, @Nonnull byte[] body) {
+        remove(key);
+        if( (etag == null && lastModified == null) || body.length > maxEntryBytes || body.length > maxTotalBytes ) {
+            return;
+        }
+        entries.put(key, new Entry(etag, lastModified, body));
+        totalBytes += body.length;
+
+        Iterator<Entry> it = entries.values().iterator();
+
+        // least recently used first
+        while( (entries.size() > maxEntries || totalBytes > maxTotalBytes) && it.hasNext() ) {
+            Entry eldest = it.next();
+
+            totalBytes -= eldest.body.length;
+            it.remove();
+        }
+    }
+
+    public synchronized void remove(@Nonnull String key) {
+        Entry entry = entries.remove(key);
+
+        if( entry != null ) {
+            totalBytes -= entry.body.length;
+        }
+    }
+
+    /**
+     * @return the number of bytes of response bodies held
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return true if responses are worth buffering for this cache at all
+     */
+    public boolean isEnabled() {
+        return (maxEntries > 0 && maxEntryBytes > 0 && maxTotalBytes > 0);
+    }
+}
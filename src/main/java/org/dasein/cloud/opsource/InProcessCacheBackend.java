@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CacheBackend} kept in memory, standing in for an external store in tests and single-node setups. Instances
+ * share nothing unless the same instance is registered with each {@link CallCache} user, which makes it handy for
+ * simulating several nodes within one JVM.
+ */
+public class InProcessCacheBackend implements CacheBackend {
+    static private class Value {
+        final byte[] bytes;
+        final long   expiresAt;
+
+        Value(byte[] bytes, long expiresAt) {
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Value> values = new ConcurrentHashMap<String, Value>();
+
+    @Override
+    public @Nullable byte[] get(@Nonnull String key) {
+        Value value = values.get(key);
+
+        if( value == null ) {
+            return null;
+        }
+        if( value.expiresAt <= System.currentTimeMillis() ) {
+            values.remove(key, value);
+            return null;
+        }
+        return value.bytes.clone();
+    }
+
+    @Override
+    public void put(@Nonnull String key, @Nonnull byte[] value, long ttl) {
+        long now = System.currentTimeMillis();
+
+        values.put(key, new Value(value.clone(), ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl));
+        if( values.size() % 64 == 0 ) {
+            purge(now);
+        }
+    }
+
+    private void purge(long now) {
+        Iterator<Map.Entry<String, Value>> it = values.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().getValue().expiresAt <= now ) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of values held, including any expired ones not yet purged
+     */
+    public int size() {
+        return values.size();
+    }
+
+    public void clear() {
+        values.clear();
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.JiteratorLoadException;
+
+/**
+ * A listing read by a background thread into a bounded buffer while the caller iterates it. When the buffer is full
+ * the producer blocks, which in turn stops a {@link PagedFetch} from requesting further pages, so a slow consumer
+ * never causes the whole listing to pile up in memory.
+ * <p>
+ * The buffer holds <code>streamBufferSize</code> items (250 by default). Iterating to the end releases everything;
+ * a caller that stops early should {@link #close()} the stream, which stops the producer and cancels its outstanding
+ * page requests. A producer left blocked for <code>streamIdleTimeout</code> milliseconds (5 minutes by default)
+ * gives up on its own, which counts as a failure: the items already buffered can still be read, then the iterator
+ * reports the listing as incomplete. A listing can be iterated once; a failure of the producer surfaces from the
+ * iterator as a {@link JiteratorLoadException}, as it would from a {@link org.dasein.util.Jiterator}.
+ * </p>
+ * @param <T> the type of item listed
+ */
+public class ListingStream<T> implements Iterable<T>, Closeable {
+    static private final Logger logger = OpSource.getLogger(ListingStream.class);
+
+    static private final int  DEFAULT_BUFFER_SIZE  = 250;
+    static private final long DEFAULT_IDLE_TIMEOUT = 300000L;
+
+    static private final AtomicInteger threadCount = new AtomicInteger(0);
+
+    /** marks the end of the listing in the buffer */
+    static private final Object END = new Object();
+
+    /**
+     * Produces the items of the listing.
+     * @param <T> the type of item
+     */
+    static public interface Producer<T> {
+        public void produce(@Nonnull PagedFetch.Sink<T> sink) throws CloudException, InternalException;
+    }
+
+    private final LinkedBlockingQueue<Object> buffer = new LinkedBlockingQueue<Object>();
+    /** free slots in the buffer; the end of the listing needs none, so it can always be added */
+    private final Semaphore                   space;
+    private final long                        idleTimeout;
+    private final Thread                      thread;
+
+    private volatile boolean   closed    = false;
+    private volatile Throwable failure   = null;
+    private boolean            iterating = false;
+
+    /**
+     * Starts reading the listing right away.
+     * @param provider the provider making the calls
+     * @param name a name for the producer thread
+     * @param producer the producer of the items
+     */
+    public ListingStream(@Nonnull final OpSource provider, @Nonnull String name, @Nonnull final Producer<T> producer) {
+        space = new Semaphore(Math.max(1, provider.getCustomIntProperty("streamBufferSize", DEFAULT_BUFFER_SIZE)));
+        idleTimeout = provider.getCustomLongProperty("streamIdleTimeout", DEFAULT_IDLE_TIMEOUT);
+        thread = new Thread(name + "-" + threadCount.incrementAndGet()) {
+            @Override
+            public void run() {
+                try {
+                    producer.produce(new PagedFetch.Sink<T>() {
+                        @Override
+                        public void push(@Nonnull T item) throws CloudException {
+                            enqueue(item);
+                        }
+                    });
+                }
+                catch( Throwable t ) {
+                    // an abandoned listing already recorded why it stopped
+                    if( !closed && failure == null ) {
+                        failure = t;
+                    }
+                }
+                finally {
+                    if( !closed ) {
+                        buffer.add(END);
+                    }
+                    provider.release();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        provider.hold();
+        thread.start();
+    }
+
+    private void enqueue(@Nonnull Object item) throws CloudException {
+        long waited = 0L;
+
+        while( true ) {
+            if( closed ) {
+                throw new CloudException("The listing was closed");
+            }
+            try {
+                if( space.tryAcquire(1000L, TimeUnit.MILLISECONDS) ) {
+                    buffer.add(item);
+                    return;
+                }
+            }
+            catch( InterruptedException e ) {
+                if( closed ) {
+                    throw new CloudException("The listing was closed");
+                }
+                Thread.currentThread().interrupt();
+                throw new CloudException("Interrupted while buffering a listing");
+            }
+            waited += 1000L;
+            if( idleTimeout > 0L && waited >= idleTimeout ) {
+                CloudException e = new CloudException("The listing was abandoned by its reader after " + waited + "ms");
+
+                logger.warn("Abandoning " + thread.getName() + " after " + waited + "ms without a reader");
+                // recorded before the producer unwinds, so a late reader learns the listing is incomplete
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops reading the listing. Items already buffered are dropped and outstanding page requests are cancelled.
+     * Closing an exhausted or already closed stream does nothing.
+     */
+    @Override
+    public void close() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        buffer.clear();
+        // wakes up a reader blocked on the empty buffer
+        buffer.offer(END);
+        if( thread != Thread.currentThread() ) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return true once the stream was closed or read to the end
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized @Nonnull Iterator<T> iterator() {
+        if( iterating ) {
+            throw new IllegalStateException("A listing stream can only be iterated once");
+        }
+        iterating = true;
+        return new Iterator<T>() {
+            private Object next = null;
+
+            @Override
+            public boolean hasNext() {
+                if( next == null ) {
+                    if( closed ) {
+                        return false;
+                    }
+                    try {
+                        next = buffer.take();
+                    }
+                    catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        close();
+                        throw new JiteratorLoadException(new CloudException("Interrupted while reading a listing"));
+                    }
+                    if( next != END ) {
+                        space.release();
+                    }
+                }
+                if( next == END ) {
+                    closed = true;
+                    if( failure != null ) {
+                        throw new JiteratorLoadException(failure);
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public T next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                T item = (T)next;
+
+                next = null;
+                return item;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the measurements of every OpSource API call made through a provider instance. Listeners are registered
+ * with {@link OpSource#addMethodListener(MethodListener)} and are notified on the calling thread once the call has
+ * completed (successfully or not), so implementations must be thread safe and cheap.
+ * <p>
+ * Listeners see the calls actually sent. A read that shares the result of an identical read already in flight (see
+ * <code>coalesceRequests</code>) sends nothing and is not reported; only the call it joined is.
+ * </p>
+ * @see MethodStatistics
+ */
+public interface MethodListener {
+    public void methodCompleted(@Nonnull MethodMetrics metrics);
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Measurements of a single OpSource API call as reported to {@link MethodListener}s. All times are in milliseconds.
+ * When a call was retried, the per-attempt timings describe the last attempt while {@link #getTotalTime()} and
+ * {@link #getQueueTime()} cover all of them.
+ */
+public class MethodMetrics {
+    /**
+     * Reduces a request URL to its resource path, replacing organization, server, network and other identifiers with
+     * <code>{id}</code> so that calls against different resources of the same kind are grouped together
+     * (e.g. <code>/oec/0.9/{id}/server/{id}</code>).
+     * @param endpoint the request URL
+     * @return the normalized resource path
+     */
+    static public @Nonnull String toResourcePath(@Nonnull String endpoint) {
+        String path;
+
+        try {
+            path = new URL(endpoint).getPath();
+        }
+        catch( MalformedURLException e ) {
+            int idx = endpoint.indexOf('?');
+
+            path = (idx > -1 ? endpoint.substring(0, idx) : endpoint);
+        }
+        StringBuilder str = new StringBuilder();
+
+        for( String segment : path.split("/") ) {
+            if( segment.length() < 1 ) {
+                continue;
+            }
+            str.append("/");
+            str.append(isIdentifier(segment) ? "{id}" : segment);
+        }
+        return (str.length() < 1 ? "/" : str.toString());
+    }
+
+    static private boolean isIdentifier(@Nonnull String segment) {
+        if( segment.length() < 6 ) {
+            return false;
+        }
+        for( int i=0; i<segment.length(); i++ ) {
+            if( Character.isDigit(segment.charAt(i)) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final String httpMethod;
+    private final String resourcePath;
+    private final String action;
+
+    private int       attempts      = 0;
+    private int       statusCode    = -1;
+    private boolean   notModified   = false;
+    private long      queueTime     = 0L;
+    private long      firstByteTime = -1L;
+    private long      readTime      = -1L;
+    private long      parseTime     = -1L;
+    private long      totalTime     = -1L;
+    private long      contentLength = -1L;
+    private long      responseSize  = -1L;
+    private Throwable failure       = null;
+
+    MethodMetrics(@Nonnull String httpMethod, @Nonnull String endpoint) {
+        this.httpMethod = httpMethod;
+        this.resourcePath = toResourcePath(endpoint);
+
+        int idx = endpoint.indexOf('?');
+        String action = null;
+
+        if( idx > -1 ) {
+            for( String token : endpoint.substring(idx + 1).split("&") ) {
+                if( token.length() > 0 && token.indexOf('=') < 0 ) {
+                    action = token;
+                    break;
+                }
+            }
+        }
+        this.action = action;
+    }
+
+    /**
+     * @return the HTTP method of the call
+     */
+    public @Nonnull String getHttpMethod() {
+        return httpMethod;
+    }
+
+    /**
+     * @return the normalized resource path, see {@link #toResourcePath(String)}
+     */
+    public @Nonnull String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * @return the OpSource action (e.g. <code>delete</code>) sent as a bare query token, if any
+     */
+    public @Nullable String getAction() {
+        return action;
+    }
+
+    /**
+     * @return a key identifying the kind of call: method, resource path and action
+     */
+    public @Nonnull String getOperation() {
+        return httpMethod + " " + resourcePath + (action == null ? "" : "?" + action);
+    }
+
+    /**
+     * @return the number of attempts made, 1 unless the call was retried
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the number of retries made, i.e. {@link #getAttempts()} - 1
+     */
+    public int getRetries() {
+        return Math.max(0, attempts - 1);
+    }
+
+    /**
+     * @return the HTTP status of the last response, or -1 if none was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true if the body was served from a cached response after a 304 Not Modified
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * @return the time spent waiting for the request governor across all attempts
+     */
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    /**
+     * @return the time from sending the request (including connecting, if no pooled connection was available) to
+     * receiving the response headers, or -1 if no response was received
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    /**
+     * @return the time spent reading a buffered body, or -1 if the body was parsed straight off the stream (in which
+     * case reading is part of {@link #getParseTime()})
+     */
+    public long getReadTime() {
+        return readTime;
+    }
+
+    /**
+     * @return the time spent parsing the body, or -1 if it was not parsed
+     */
+    public long getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * @return the wall-clock time of the whole call including queueing, retries and backoff
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return the <code>Content-Length</code> sent by the server (the compressed size for gzip responses), or -1
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the number of (decompressed) body bytes parsed, or -1 if no body was parsed
+     */
+    public long getResponseSize() {
+        return responseSize;
+    }
+
+    /**
+     * @return the exception the call failed with, if it did
+     */
+    public @Nullable Throwable getFailure() {
+        return failure;
+    }
+
+    void attemptStarted() {
+        attempts++;
+        statusCode = -1;
+        notModified = false;
+        firstByteTime = -1L;
+        readTime = -1L;
+        parseTime = -1L;
+        contentLength = -1L;
+        responseSize = -1L;
+    }
+
+    void addQueueTime(long time) {
+        queueTime += time;
+    }
+
+    void setResponse(int statusCode, long firstByteTime, long contentLength) {
+        this.statusCode = statusCode;
+        this.firstByteTime = firstByteTime;
+        this.contentLength = contentLength;
+    }
+
+    void setNotModified(boolean notModified) {
+        this.notModified = notModified;
+    }
+
+    void setReadTime(long readTime) {
+        this.readTime = readTime;
+    }
+
+    void setParsed(long parseTime, long responseSize) {
+        this.parseTime = parseTime;
+        this.responseSize = responseSize;
+    }
+
+    void setCompleted(long totalTime, @Nullable Throwable failure) {
+        this.totalTime = totalTime;
+        this.failure = failure;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return getOperation() + " [" + statusCode + "] " + totalTime + "ms (queue=" + queueTime + ", firstByte=" + firstByteTime +
+                ", read=" + readTime + ", parse=" + parseTime + ", bytes=" + responseSize + ", attempts=" + attempts + ")";
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Default {@link MethodListener} keeping in-memory latency histograms and counters per operation (HTTP method,
+ * normalized resource path and action). A single instance may be registered with any number of provider instances
+ * to aggregate across them.
+ */
+public class MethodStatistics implements MethodListener {
+    /** Upper bounds, in milliseconds, of the histogram buckets; the last bucket is open ended */
+    static private final long[] BUCKETS = { 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L, 60000L };
+
+    /**
+     * A fixed-bucket latency histogram.
+     */
+    static public class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong      count  = new AtomicLong(0L);
+        private final AtomicLong      sum    = new AtomicLong(0L);
+        private final AtomicLong      max    = new AtomicLong(0L);
+
+        void record(long value) {
+            if( value < 0L ) {
+                return;
+            }
+            int idx = 0;
+
+            while( idx < BUCKETS.length && value > BUCKETS[idx] ) {
+                idx++;
+            }
+            counts.incrementAndGet(idx);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current = max.get();
+
+            while( value > current && !max.compareAndSet(current, value) ) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * @return a copy of this histogram as it is now
+         */
+        @Nonnull Histogram copy() {
+            Histogram h = new Histogram();
+
+            for( int i=0; i<counts.length(); i++ ) {
+                h.counts.set(i, counts.get(i));
+            }
+            h.count.set(count.get());
+            h.sum.set(sum.get());
+            h.max.set(max.get());
+            return h;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long c = count.get();
+
+            return (c == 0L ? 0.0 : ((double)sum.get()) / c);
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls in.
+         * @param percentile the percentile between 0 and 100
+         * @return the estimated value in milliseconds
+         */
+        public long getPercentile(double percentile) {
+            long c = count.get();
+
+            if( c == 0L ) {
+                return 0L;
+            }
+            long target = (long)Math.ceil(c * (percentile / 100.0));
+            long seen = 0L;
+
+            for( int i=0; i<BUCKETS.length; i++ ) {
+                seen += counts.get(i);
+                if( seen >= target ) {
+                    return BUCKETS[i];
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return "n=" + getCount() + " mean=" + Math.round(getMean()) + " p50<=" + getPercentile(50) + " p95<=" + getPercentile(95) +
+                    " p99<=" + getPercentile(99) + " max=" + getMax();
+        }
+    }
+
+    /**
+     * Everything recorded for a single operation.
+     */
+    static public class OperationStatistics {
+        private final Histogram totalTime     = new Histogram();
+        private final Histogram queueTime     = new Histogram();
+        private final Histogram firstByteTime = new Histogram();
+        private final Histogram readTime      = new Histogram();
+        private final Histogram parseTime     = new Histogram();
+
+        private final AtomicLong calls         = new AtomicLong(0L);
+        private final AtomicLong failures      = new AtomicLong(0L);
+        private final AtomicLong retries       = new AtomicLong(0L);
+        private final AtomicLong notModified   = new AtomicLong(0L);
+        private final AtomicLong responseBytes = new AtomicLong(0L);
+        private final AtomicLong wireBytes     = new AtomicLong(0L);
+
+        private final ConcurrentHashMap<Integer, AtomicLong> statusCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+        void record(@Nonnull MethodMetrics metrics) {
+            calls.incrementAndGet();
+            if( metrics.getFailure() != null ) {
+                failures.incrementAndGet();
+            }
+            retries.addAndGet(metrics.getRetries());
+            if( metrics.isNotModified() ) {
+                notModified.incrementAndGet();
+            }
+            if( metrics.getResponseSize() > 0L ) {
+                responseBytes.addAndGet(metrics.getResponseSize());
+            }
+            if( metrics.getContentLength() > 0L ) {
+                wireBytes.addAndGet(metrics.getContentLength());
+            }
+            totalTime.record(metrics.getTotalTime());
+            queueTime.record(metrics.getQueueTime());
+            firstByteTime.record(metrics.getFirstByteTime());
+            readTime.record(metrics.getReadTime());
+            parseTime.record(metrics.getParseTime());
+
+            Integer status = metrics.getStatusCode();
+            AtomicLong count = statusCodes.get(status);
+
+            if( count == null ) {
+                AtomicLong existing = statusCodes.putIfAbsent(status, count = new AtomicLong(0L));
+
+                if( existing != null ) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public long getNotModified() {
+            return notModified.get();
+        }
+
+        /**
+         * @return the total number of (decompressed) response bytes parsed
+         */
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        /**
+         * @return the total of the <code>Content-Length</code> headers received, i.e. bytes on the wire where known
+         */
+        public long getWireBytes() {
+            return wireBytes.get();
+        }
+
+        public @Nonnull Map<Integer, Long> getStatusCodes() {
+            TreeMap<Integer, Long> codes = new TreeMap<Integer, Long>();
+
+            for( Map.Entry<Integer, AtomicLong> entry : statusCodes.entrySet() ) {
+                codes.put(entry.getKey(), entry.getValue().get());
+            }
+            return codes;
+        }
+
+        public @Nonnull Histogram getTotalTime() {
+            return totalTime;
+        }
+
+        public @Nonnull Histogram getQueueTime() {
+            return queueTime;
+        }
+
+        public @Nonnull Histogram getFirstByteTime() {
+            return firstByteTime;
+        }
+
+        public @Nonnull Histogram getReadTime() {
+            return readTime;
+        }
+
+        public @Nonnull Histogram getParseTime() {
+            return parseTime;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return "calls=" + getCalls() + " failures=" + getFailures() + " retries=" + getRetries() + " notModified=" + getNotModified() +
+                    " bytes=" + getResponseBytes() + " status=" + getStatusCodes() + "\n  total: " + totalTime + "\n  queue: " + queueTime +
+                    "\n  firstByte: " + firstByteTime + "\n  read: " + readTime + "\n  parse: " + parseTime;
+        }
+    }
+
+    private final ConcurrentHashMap<String, OperationStatistics> operations = new ConcurrentHashMap<String, OperationStatistics>();
+
+    @Override
+    public void methodCompleted(@Nonnull MethodMetrics metrics) {
+        String key = metrics.getOperation();
+        OperationStatistics stats = operations.get(key);
+
+        if( stats == null ) {
+            OperationStatistics existing = operations.putIfAbsent(key, stats = new OperationStatistics());
+
+            if( existing != null ) {
+                stats = existing;
+            }
+        }
+        stats.record(metrics);
+    }
+
+    /**
+     * @param operation the operation key as returned by {@link MethodMetrics#getOperation()}
+     * @return the statistics for that operation, if any call was recorded
+     */
+    public @Nullable OperationStatistics getStatistics(@Nonnull String operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return the statistics of every recorded operation, sorted by operation key
+     */
+    public @Nonnull Map<String, OperationStatistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<String, OperationStatistics>(operations));
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        StringBuilder str = new StringBuilder();
+
+        for( Map.Entry<String, OperationStatistics> entry : getStatistics().entrySet() ) {
+            str.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.ProviderContext;
+
+/**
+ * Remembers for a short while that a lookup by ID found nothing (a terminated server, an unknown image), so that
+ * polling for resources that are gone does not cost a full API call every time. Entries are keyed by account, region,
+ * resource and ID.
+ * <p>
+ * Entries live for <code>negativeCacheTtl</code> milliseconds (or <code>negativeCacheTtl.&lt;resource&gt;</code>),
+ * 30 seconds by default; 0 turns negative caching off. At most <code>negativeCacheMaxEntries</code> entries (4096 by
+ * default) are held. Whenever {@link CallCache} is told that a resource changed for an account, e.g. by a create call,
+ * the entries for that resource and account are dropped, so a resource created by this process is never reported
+ * missing.
+ * </p>
+ */
+public class NegativeCache implements CallCache.InvalidationListener {
+    static private final long DEFAULT_TTL         = 30000L;
+    static private final int  DEFAULT_MAX_ENTRIES = 4096;
+
+    static private final NegativeCache instance = new NegativeCache();
+
+    static {
+        CallCache.getInstance().addInvalidationListener(instance);
+    }
+
+    static public @Nonnull NegativeCache getInstance() {
+        return instance;
+    }
+
+    static private class Entry {
+        final String account;
+        final String resource;
+        final long   expiresAt;
+
+        Entry(String account, String resource, long expiresAt) {
+            this.account = account;
+            this.resource = resource;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> missing = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private final AtomicLong hits   = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+
+    private NegativeCache() { }
+
+    static private @Nullable String getKey(@Nonnull OpSource provider, @Nonnull String resource, @Nonnull String id) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return null;
+        }
+        return ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|" + resource + "|" + id;
+    }
+
+    private long getTtl(@Nonnull OpSource provider, @Nonnull String resource) {
+        return provider.getCustomLongProperty("negativeCacheTtl." + resource, provider.getCustomLongProperty("negativeCacheTtl", DEFAULT_TTL));
+    }
+
+    /**
+     * Checks whether a lookup recently found nothing for the specified ID.
+     * @param provider the provider looking up the resource
+     * @param resource the resource name (e.g. server)
+     * @param id the ID looked up
+     * @return true if the resource is known to be missing, in which case the lookup can answer <code>null</code>
+     */
+    public boolean isMissing(@Nonnull OpSource provider, @Nonnull String resource, @Nonnull String id) {
+        String key = getKey(provider, resource, id);
+
+        if( key == null ) {
+            return false;
+        }
+        synchronized( missing ) {
+            Entry entry = missing.get(key);
+
+            if( entry != null ) {
+                if( entry.expiresAt > System.currentTimeMillis() ) {
+                    hits.incrementAndGet();
+                    return true;
+                }
+                missing.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that a lookup found nothing for the specified ID.
+     * @param provider the provider that looked up the resource
+     * @param resource the resource name (e.g. server)
+     * @param id the ID looked up
+     */
+    public void setMissing(@Nonnull OpSource provider, @Nonnull String resource, @Nonnull String id) {
+        String key = getKey(provider, resource, id);
+        long ttl = getTtl(provider, resource);
+
+        if( key == null || ttl <= 0L ) {
+            return;
+        }
+        int maxEntries = Math.max(1, provider.getCustomIntProperty("negativeCacheMaxEntries", DEFAULT_MAX_ENTRIES));
+        long now = System.currentTimeMillis();
+
+        synchronized( missing ) {
+            missing.put(key, new Entry(provider.getContext().getAccountNumber(), resource, now + ttl));
+
+            Iterator<Entry> it = missing.values().iterator();
+
+            while( it.hasNext() && missing.size() > maxEntries ) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void invalidated(@Nullable String accountNumber, @Nonnull String resource) {
+        synchronized( missing ) {
+            Iterator<Entry> it = missing.values().iterator();
+
+            while( it.hasNext() ) {
+                Entry entry = it.next();
+
+                if( entry.resource.equals(resource) && (accountNumber == null || accountNumber.equals(entry.account)) ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized( missing ) {
+            missing.clear();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered as missing without calling the API
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that were not known to be missing
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized( missing ) {
+            return missing.size();
+        }
+    }
+}
@@ -18,29 +18,40 @@
 
 package org.dasein.cloud.opsource;
 
-import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.compute.MachineImage;
@@ -50,8 +61,6 @@ import org.dasein.cloud.network.VLANSupport;
 import org.dasein.cloud.opsource.compute.OpSourceComputeServices;
 import org.dasein.cloud.opsource.network.OpSourceNetworkServices;
 import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
-import org.dasein.cloud.util.CacheLevel;
 import org.w3c.dom.Document;
 
 import org.w3c.dom.Node;
@@ -130,14 +139,61 @@ public class OpSource extends AbstractCloud {
     private String defaultRegionId = null;
     private String defaultAdminPasswordForVM = null;
 
-    private static HashMap<String, String> region2EndpointMap = new HashMap<String, String>();
+    /** Region endpoints of the cloud this provider talks to and the context they were looked up for */
+    private RegionEndpoints regionEndpoints        = null;
+    private ProviderContext regionEndpointsContext = null;
+
+    /** Connection pool shared by every API call made through this provider instance */
+    private PoolingClientConnectionManager connectionManager = null;
+
+    /** Worker pools for asynchronous API calls, one per endpoint host */
+    private final ConcurrentHashMap<String, ThreadPoolExecutor> asyncExecutors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+
+    /** Set once {@link #close()} has torn the pools down; none are created until the provider is connected again */
+    private volatile boolean closed = false;
+
+    /** Holds taken through {@link #hold()} and not yet released */
+    private int     holds        = 0;
+    /** Set when {@link #close()} was called while holds were outstanding; the last release tears the pools down */
+    private boolean closePending = false;
+
+    /** Retry settings, budget and counters for transient API failures */
+    private RetryPolicy retryPolicy = null;
+
+    /** Validators and bodies of recent GET responses, for revalidating list calls */
+    private ConditionalResponseCache conditionalCache = null;
+
+    /** Observers of per-call timings, status codes and payload sizes */
+    private final CopyOnWriteArrayList<MethodListener> methodListeners = new CopyOnWriteArrayList<MethodListener>();
+
+    /**
+     * The preemptive Basic authorization header of one context, with a digest of it that may safely be used in keys.
+     */
+    static private class Authorization {
+        final ProviderContext context;
+        final String          header;
+        final String          digest;
+
+        Authorization(ProviderContext context, String header, String digest) {
+            this.context = context;
+            this.header = header;
+            this.digest = digest;
+        }
+    }
+
+    /** Authorization of the context last seen; replaced, never modified, so reading it takes no lock */
+    private volatile Authorization authorization = null;
 
     public String buildUrl(String command, boolean isDeployed, Map<Integer, Param> parameters) throws InternalException, CloudException {
         StringBuilder str = new StringBuilder();
 
-        String endpoint = getEndpoint(getContext().getRegionId());
+        String endpoint = resolveEndpoint(getContext().getRegionId());
+
+        if(endpoint == null){
+            throw new CloudException("No endpoint serves region " + getContext().getRegionId());
+        }
         str.append(endpoint);
-        if(endpoint != null && !endpoint.contains("oec/0.9")){
+        if(!endpoint.contains("oec/0.9")){
             if(endpoint.endsWith("/")){
                 str.append("oec/0.9");
             }else{
@@ -191,7 +247,7 @@ public class OpSource extends AbstractCloud {
         StringBuilder str = new StringBuilder();
 
         str.append(endpoint);
-        if(endpoint != null && !endpoint.contains("oec/0.9")){
+        if(!endpoint.contains("oec/0.9")){
             if(endpoint.endsWith("/")){
                 str.append("oec/0.9");
             }else{
@@ -241,31 +297,15 @@ public class OpSource extends AbstractCloud {
     }
 
     public Document createDoc() throws InternalException{
-        try {
-            return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
-            throw new InternalException(e);
-        }
+        return OpSourceXml.newDocument();
     }
 
     /**
      *  Convert a xml document to string
      */
     public String convertDomToString( Document doc)  throws CloudException, InternalException{
-        try {
-            if(doc == null) return null;
-            StringWriter stw = new StringWriter();
-            Transformer serializer = TransformerFactory.newInstance().newTransformer();
-            serializer.transform(new DOMSource(doc), new StreamResult(stw));
-
-            return stw.toString();
-        } catch (TransformerConfigurationException e) {
-            throw new InternalException(e);
-        } catch (TransformerFactoryConfigurationError e) {
-            throw new InternalException(e);
-        } catch (TransformerException e) {
-            throw new InternalException(e);
-        }
+        if(doc == null) return null;
+        return OpSourceXml.toString(doc, false);
     }
 
     public String getVlanResourcePathFromVlanId(@Nonnull String vlanId, String endpoint) throws InternalException, CloudException{
@@ -288,7 +328,7 @@ public class OpSource extends AbstractCloud {
             throw new CloudException ("No such image");
         }
         if(image.getProviderOwnerId() == this.getContext().getAccountNumber()){
-            return "/oec/"+ getOrgId(getEndpoint(getContext().getRegionId()))+"/image/"+ imageId;
+            return "/oec/"+ getOrgId(resolveEndpoint(getContext().getRegionId()))+"/image/"+ imageId;
         }else{
             return "/oec/base/image/"+ imageId;
         }
@@ -349,7 +389,7 @@ public class OpSource extends AbstractCloud {
     //Return the request url for data and region services
     public String getOrgUrl(String regionId) throws CloudException, InternalException{
         String basicUrl = this.getBasicUrl();
-        String orgId = this.getOrgId(getEndpoint(regionId));
+        String orgId = this.getOrgId(resolveEndpoint(regionId));
 
         if(basicUrl != null && orgId != null ){
             return basicUrl+ "/" + orgId + "/";
@@ -370,32 +410,51 @@ public class OpSource extends AbstractCloud {
     }
 
     public String getEndpoint(String regionId){
+        try{
+            return resolveEndpoint(regionId);
+        }
+        catch(CloudException ex){
+            getLogger(OpSource.class).warn("Unable to resolve the endpoint for region " + regionId + ": " + ex.getMessage(), ex);
+        }
+        catch(InternalException ex){
+            getLogger(OpSource.class).warn("Unable to resolve the endpoint for region " + regionId + ": " + ex.getMessage(), ex);
+        }
+        return null;
+    }
+
+    /**
+     * Provides the endpoint serving a region, as {@link #getEndpoint(String)} does, but lets a failure to resolve the
+     * region surface instead of answering <code>null</code>.
+     * @param regionId the region sought, or <code>null</code> for the context endpoint
+     * @return the endpoint serving the region, or <code>null</code> if no endpoint of the cloud lists it
+     * @throws CloudException an error occurred calling the API
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable String resolveEndpoint(@Nullable String regionId) throws CloudException, InternalException {
         String endpoint = getContext().getEndpoint();
-        if(regionId != null){
-            if(region2EndpointMap == null || !region2EndpointMap.containsKey(regionId)){
-                OpSourceLocation opsLocation = new OpSourceLocation(this);
-                try{
-                    opsLocation.listRegions();
-                }
-                catch(CloudException ex){
-                    //TODO: Something with these exceptions
-                }
-                catch(InternalException ex){
 
-                }
-            }
-            endpoint = region2EndpointMap.get(regionId);
+        if(regionId != null){
+            endpoint = getRegionEndpoints().resolve(this, regionId);
         }
         if(endpoint == null){
             return null;
         }
-        else{
-            String t = endpoint.toLowerCase();
-            if(!(t.startsWith("http://") || t.startsWith("https://") || t.matches("^[a-z]+://.*"))){
-                endpoint = "https://" + endpoint;
-            }
+        return RegionEndpoints.normalize(endpoint);
+    }
+
+    /**
+     * Provides the registry of region endpoints for the cloud this provider talks to, shared with every other provider
+     * instance talking to the same cloud.
+     * @return the region endpoints of this cloud
+     */
+    public synchronized @Nonnull RegionEndpoints getRegionEndpoints() {
+        ProviderContext ctx = getContext();
+
+        if( regionEndpoints == null || regionEndpointsContext != ctx ) {
+            regionEndpoints = RegionEndpoints.getInstance(this);
+            regionEndpointsContext = ctx;
         }
-        return endpoint;
+        return regionEndpoints;
     }
 
     public URL getEndpointURL(String regionId) throws CloudException{
@@ -409,37 +468,36 @@ public class OpSource extends AbstractCloud {
 
 
     public String getOrgId(String endpoint) throws InternalException,CloudException{
-        Cache<String> daseinCache = Cache.getInstance(this, "orgId", String.class, CacheLevel.CLOUD_ACCOUNT);
-        Collection<String> orgIds = (Collection<String>)daseinCache.get(getContext());
-
-        String orgId = "";
-        if(orgIds == null){
-            String url = endpoint + "/oec/0.9/myaccount";
-            HashMap<String,String> parameters = new HashMap<String,String>();
-
-            parameters.put(Content_Type_Key, Content_Type_Value_Single_Para);
-            parameters.put(HTTP_Method_Key, "GET");
-
-            OpSourceMethod method = new OpSourceMethod(this, url, parameters);
-            Document doc = method.invoke();
-            String sNS = "";
-            try{
-                sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
-            }
-            catch(IndexOutOfBoundsException ex){}
-            NodeList blocks = doc.getElementsByTagName(sNS + "orgId");
-            if(blocks != null){
-                orgId = blocks.item(0).getFirstChild().getNodeValue();
-                orgIds = new ArrayList<String>();
-                orgIds.add(orgId);
-                daseinCache.put(getContext(), orgIds);
+        final String url = endpoint + "/oec/0.9/myaccount";
+        List<String> orgIds = CallCache.getInstance().getList("myaccount", "orgId", this, url, new CallCache.Loader<String>() {
+            @Override
+            public List<String> load(@Nonnull CallCache.ResponseSize read) throws CloudException, InternalException {
+                HashMap<String,String> parameters = new HashMap<String,String>();
 
-            }else{
-                throw new CloudException("Can not load orgId information!!!");
+                parameters.put(Content_Type_Key, Content_Type_Value_Single_Para);
+                parameters.put(HTTP_Method_Key, "GET");
+
+                OpSourceMethod method = new OpSourceMethod(OpSource.this, url, parameters);
+                Document doc = method.invoke();
+
+                read.add(method);
+                String sNS = "";
+                try{
+                    sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
+                }
+                catch(IndexOutOfBoundsException ex){}
+                NodeList blocks = doc.getElementsByTagName(sNS + "orgId");
+                if(blocks != null){
+                    return Collections.singletonList(blocks.item(0).getFirstChild().getNodeValue());
+                }else{
+                    throw new CloudException("Can not load orgId information!!!");
+                }
             }
+        });
+        if(orgIds.isEmpty()){
+            throw new CloudException("Can not load orgId information!!!");
         }
-        else orgId = daseinCache.get(getContext()).iterator().next();
-        return orgId;
+        return orgIds.get(0);
     }
 
     public String getBasicUrl() throws CloudException{
@@ -536,7 +594,291 @@ public class OpSource extends AbstractCloud {
     }
 
     public void setRegionEndpoint(String region, String endpoint){
-        region2EndpointMap.put(region, endpoint);
+        getRegionEndpoints().put(region, endpoint);
+    }
+
+    /**
+     * Provides the pooled connection manager used for all API calls against this provider's credentials. Connections
+     * are kept alive and re-used across calls so that each request does not pay for a fresh TCP/TLS handshake. The
+     * pool limits may be tuned with the <code>maxConnectionsTotal</code> and <code>maxConnectionsPerRoute</code>
+     * custom properties of the provider context.
+     * @return the connection manager for this provider instance
+     * @throws IllegalStateException this provider has been closed
+     */
+    public synchronized @Nonnull ClientConnectionManager getConnectionManager() {
+        if( closed ) {
+            throw new IllegalStateException("The provider has been closed");
+        }
+        if( connectionManager == null ) {
+            PoolingClientConnectionManager manager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+
+            manager.setMaxTotal(getCustomIntProperty("maxConnectionsTotal", 50));
+            manager.setDefaultMaxPerRoute(getCustomIntProperty("maxConnectionsPerRoute", 20));
+            connectionManager = manager;
+        }
+        else {
+            connectionManager.closeExpiredConnections();
+        }
+        return connectionManager;
+    }
+
+    /**
+     * Honors any keep-alive timeout sent by the server and otherwise keeps idle connections around for
+     * <code>connectionKeepAlive</code> milliseconds (30 seconds by default).
+     * @return the keep-alive strategy for pooled connections
+     */
+    public @Nonnull ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        final long defaultKeepAlive = getCustomLongProperty("connectionKeepAlive", 30000L);
+
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+
+                return (duration > 0 ? duration : defaultKeepAlive);
+            }
+        };
+    }
+
+    /**
+     * Provides the worker pool executing asynchronous API calls against the specified endpoint. Each endpoint gets
+     * its own pool of at most <code>maxAsyncRequestsPerEndpoint</code> threads (10 by default), which bounds the
+     * number of requests in flight against it; further calls queue up without occupying a thread. Idle workers
+     * time out, so an endpoint that is no longer used costs nothing.
+     * @param endpointHost the host (and port) the requests are sent to
+     * @return the executor for that endpoint
+     * @throws IllegalStateException this provider has been closed
+     */
+    public @Nonnull ExecutorService getAsyncExecutor(@Nonnull final String endpointHost) {
+        if( closed ) {
+            throw new IllegalStateException("The provider has been closed");
+        }
+        ThreadPoolExecutor executor = asyncExecutors.get(endpointHost);
+
+        if( executor == null ) {
+            int size = Math.max(1, getCustomIntProperty("maxAsyncRequestsPerEndpoint", 10));
+            ThreadFactory factory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, "opsource-async-" + endpointHost + "-" + count.incrementAndGet());
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+
+            executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+            executor.allowCoreThreadTimeOut(true);
+
+            ThreadPoolExecutor existing = asyncExecutors.putIfAbsent(endpointHost, executor);
+
+            if( existing != null ) {
+                executor.shutdown();
+                executor = existing;
+            }
+            else if( closed ) {
+                // close() ran while the pool was being created and may have missed it
+                asyncExecutors.remove(endpointHost, executor);
+                executor.shutdownNow();
+                throw new IllegalStateException("The provider has been closed");
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * @return the policy (and retry metrics) applied to transient failures of idempotent API calls
+     */
+    public synchronized @Nonnull RetryPolicy getRetryPolicy() {
+        if( retryPolicy == null ) {
+            retryPolicy = new RetryPolicy(this);
+        }
+        return retryPolicy;
+    }
+
+    /**
+     * @return the cache of recent GET responses revalidated with <code>If-None-Match</code>/<code>If-Modified-Since</code>
+     */
+    public synchronized @Nonnull ConditionalResponseCache getConditionalCache() {
+        if( conditionalCache == null ) {
+            conditionalCache = new ConditionalResponseCache(this);
+        }
+        return conditionalCache;
+    }
+
+    /**
+     * Provides the <code>Authorization</code> header value sent preemptively with every API call, so that no call has
+     * to wait for a 401 challenge first. It is computed once per provider context rather than per request.
+     * @return the Basic authorization header value for the current context's API credentials
+     * @throws CloudException no context or no credentials have been established
+     */
+    public @Nonnull String getAuthorizationHeader() throws CloudException {
+        return getAuthorization().header;
+    }
+
+    /**
+     * Provides a SHA-256 digest of the <code>Authorization</code> header, for keying anything whose result depends on
+     * the credentials (such as coalesced reads) without keeping the credentials themselves around.
+     * @return the hex encoded digest of the current context's authorization header
+     * @throws CloudException no context or no credentials have been established
+     */
+    public @Nonnull String getAuthorizationDigest() throws CloudException {
+        return getAuthorization().digest;
+    }
+
+    private @Nonnull Authorization getAuthorization() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        Authorization current = authorization;
+
+        if( current != null && current.context == ctx ) {
+            return current;
+        }
+        byte[] uid = ctx.getAccessPublic();
+        byte[] pwd = ctx.getAccessPrivate();
+
+        if( uid == null || pwd == null ) {
+            throw new CloudException("No API credentials were provided for this request");
+        }
+        byte[] credentials = new byte[uid.length + 1 + pwd.length];
+
+        System.arraycopy(uid, 0, credentials, 0, uid.length);
+        credentials[uid.length] = ':';
+        System.arraycopy(pwd, 0, credentials, uid.length + 1, pwd.length);
+        try {
+            String header = "Basic " + new String(Base64.encodeBase64(credentials), "US-ASCII");
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+
+            // computing it twice on a race is harmless: both threads arrive at the same values
+            current = new Authorization(ctx, header, Hex.encodeHexString(sha.digest(header.getBytes("US-ASCII"))));
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new CloudException(e);
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new CloudException(e);
+        }
+        authorization = current;
+        return current;
+    }
+
+    /**
+     * Registers a listener to be notified with the measurements of every API call made through this provider.
+     * @param listener the listener to add
+     */
+    public void addMethodListener(@Nonnull MethodListener listener) {
+        methodListeners.addIfAbsent(listener);
+    }
+
+    public void removeMethodListener(@Nonnull MethodListener listener) {
+        methodListeners.remove(listener);
+    }
+
+    public @Nonnull Collection<MethodListener> getMethodListeners() {
+        return Collections.unmodifiableList(methodListeners);
+    }
+
+    public int getCustomIntProperty(@Nonnull String name, int defaultValue) {
+        return (int)getCustomLongProperty(name, defaultValue);
+    }
+
+    public boolean getCustomBooleanProperty(@Nonnull String name, boolean defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value != null && value.trim().length() > 0 ) {
+            return value.trim().equalsIgnoreCase("true");
+        }
+        return defaultValue;
+    }
+
+    public long getCustomLongProperty(@Nonnull String name, long defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value != null && value.trim().length() > 0 ) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                getLogger(OpSource.class).warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public void connect(@Nonnull ProviderContext context, @Nullable CloudProvider computeProvider) {
+        // the base class closes the provider before (re)connecting it; pools kept for outstanding holds are reused
+        super.connect(context, computeProvider);
+        synchronized( this ) {
+            closePending = false;
+            closed = false;
+        }
+    }
+
+    @Override
+    public void hold() {
+        super.hold();
+        synchronized( this ) {
+            holds++;
+        }
+    }
+
+    @Override
+    public void release() {
+        boolean shutdown;
+
+        super.release();
+        synchronized( this ) {
+            holds--;
+            shutdown = (holds < 1 && closePending);
+            if( shutdown ) {
+                closePending = false;
+            }
+        }
+        if( shutdown ) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Closes the provider. Work that holds the provider (background launches, cache refreshes, streamed listings)
+     * keeps its worker pools and connections until the last hold is released; only then are they shut down.
+     */
+    @Override
+    public void close() {
+        boolean shutdown;
+
+        synchronized( this ) {
+            shutdown = (holds < 1);
+            closePending = !shutdown;
+        }
+        if( shutdown ) {
+            shutdown();
+        }
+        super.close();
+    }
+
+    private void shutdown() {
+        synchronized( this ) {
+            closed = true;
+            if( connectionManager != null ) {
+                connectionManager.shutdown();
+                connectionManager = null;
+            }
+        }
+        for( ThreadPoolExecutor executor : asyncExecutors.values() ) {
+            executor.shutdownNow();
+        }
+        asyncExecutors.clear();
     }
 
     @Override
@@ -623,9 +965,26 @@ public class OpSource extends AbstractCloud {
                     try {
                         //Document doc = method.invoke();
                         //HashMap<Integer, Param> parameters = (HashMap)getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null);
-                        Document doc = CallCache.getInstance().getAPICall(LOCATION_BASE_PATH, this, new HashMap<Integer, Param>(), getRegionServiceUrl(null));
+                        // straight to the API: cached reference data may come from a snapshot or another node and says
+                        // nothing about these credentials
+                        OpSourceMethod method = new OpSourceMethod(this, getEndpoint(null) + OpSource_VERSION + "/myaccount", getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+
+                        // the answer must come from these very credentials, not from a concurrent call that had others
+                        method.setCoalesced(false);
+                        Document doc = method.invoke();
+
+                        if( doc == null || doc.getDocumentElement() == null ) {
+                            return null;
+                        }
+                        String tagName = doc.getDocumentElement().getTagName();
+                        NodeList orgIds = doc.getElementsByTagName(tagName.substring(0, tagName.indexOf(":") + 1) + "orgId");
+
+                        if( orgIds.getLength() < 1 ) {
+                            // an error document, e.g. for a rejected key
+                            return null;
+                        }
                         if( logger.isDebugEnabled()) {
-                            logger.debug("Found regions: "+ convertDomToString(doc));
+                            logger.debug("Found organization: "+ orgIds.item(0).getTextContent());
                         }
                         return pk;
                     }
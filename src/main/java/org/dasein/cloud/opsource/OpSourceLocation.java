@@ -20,6 +20,7 @@ package org.dasein.cloud.opsource;
 
 import java.util.*;
 
+import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 
@@ -33,9 +34,11 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 public class OpSourceLocation implements DataCenterServices {
-	
+    static private final Logger logger = OpSource.getLogger(OpSourceLocation.class);
+
 	private OpSource provider = null;
 
 	OpSourceLocation(OpSource provider) {
@@ -129,14 +132,66 @@ public class OpSourceLocation implements DataCenterServices {
             Param param = new Param(OpSource.LOCATION_BASE_PATH, null);
             parameters.put(0, param);
 
-            String cloudName = getCloudNameFromEndpoint();
-            if(cloudName == null){
-                //Error retrieving cloud from endpoint, use old method
-            /*OpSourceMethod method = new OpSourceMethod(provider,
-    			provider.buildUrl(null,true, parameters),
-    			provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-		    Document doc = method.invoke();*/
-                Document doc = CallCache.getInstance().getAPICall(OpSource.LOCATION_BASE_PATH, provider, parameters, "");
+            RegionEndpoints registry = provider.getRegionEndpoints();
+
+            List<String> endpoints = getCloudEndpoints(false);
+            Exception lastError = null;
+            int failures = 0;
+
+            for(String endpoint : endpoints){
+                try{
+                    for(Region region : listCachedRegions(provider.buildUrlWithEndpoint(endpoint, null,true, parameters))){
+                        list.add(copy(region));
+                        registry.put(region.getProviderRegionId(), endpoint);
+                    }
+                }
+                catch(Exception ex){
+                    /*
+                    If this fails it is likely a 401 authentication error against the endpoint.
+                    Rather than getting a nice XML API error response however, OpSource returns the default apache htaccess 401 error
+                    so it fails to parse and throws an exception. Some accounts legitimately don't have access to all the
+                    endpoints, so this only fails the listing when no endpoint answered at all.
+                     */
+                    logger.warn("Unable to list the regions of " + endpoint + ": " + ex.getMessage());
+                    lastError = ex;
+                    failures++;
+                }
+            }
+            if(failures == endpoints.size()){
+                rethrow(lastError);
+            }
+            return list;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the regions served by a single <code>datacenterWithLimits</code> URL.
+     * @param url the full URL of the datacenterWithLimits call
+     * @return copies of the regions found at that URL, which the caller may modify
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred calling the API
+     */
+    public @Nonnull List<Region> listRegions(@Nonnull String url) throws InternalException, CloudException {
+        ArrayList<Region> list = new ArrayList<Region>();
+
+        for(Region region : listCachedRegions(url)){
+            list.add(copy(region));
+        }
+        return list;
+    }
+
+    /**
+     * Lists the regions served by a single <code>datacenterWithLimits</code> URL as held by the {@link CallCache}: the
+     * list and the regions in it are shared by every caller and must not be handed out.
+     */
+    private @Nonnull List<Region> listCachedRegions(@Nonnull String url) throws InternalException, CloudException {
+        return CallCache.getInstance().getAPICall(OpSource.LOCATION_BASE_PATH, "regions", provider, null, url, new CallCache.Parser<Region>() {
+            @Override
+            public @Nonnull List<Region> parse(@Nonnull Document doc) throws CloudException, InternalException {
+                ArrayList<Region> list = new ArrayList<Region>();
                 String sNS = "";
                 try{
                     sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
@@ -145,65 +200,108 @@ public class OpSourceLocation implements DataCenterServices {
                 NodeList blocks = doc.getElementsByTagName(sNS + "datacenterWithLimits");
                 if(blocks != null){
                     for(int i=0; i< blocks.getLength();i++){
-                        Node item = blocks.item(i);
-                        Region region = toRegion(item, sNS);
+                        Region region = toRegion(blocks.item(i), sNS);
                         if(region != null){
                             list.add(region);
-                            provider.setRegionEndpoint(region.getProviderRegionId(), provider.getContext().getEndpoint());
                         }
                     }
                 }
+                return list;
             }
-            else{
-                HashMap<String, ArrayList<String>> endpointMap = provider.getProivderEndpointMap();
-                ArrayList<String> currentCloudEndpoints = endpointMap.get(cloudName);
-                for(String endpoint : currentCloudEndpoints){
-                    try{
-                        String t = endpoint.toLowerCase();
-                        if(!(t.startsWith("http://") || t.startsWith("https://") || t.matches("^[a-z]+://.*"))){
-                            endpoint = "https://" + endpoint;
-                        }
+        });
+    }
 
-                        OpSourceMethod method = new OpSourceMethod(provider,
-                                provider.buildUrlWithEndpoint(endpoint, null,true, parameters),
-                                provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-                        Document doc = method.invoke();
+    /**
+     * Finds the endpoint serving a single region. The endpoints of the cloud are asked one after the other, the
+     * context's own endpoint first, until one of them lists the region; every region seen on the way is recorded in
+     * the {@link RegionEndpoints} of the cloud.
+     * @param regionId the region sought
+     * @return the endpoint serving the region, or <code>null</code> if none of the endpoints lists it
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred calling the API
+     */
+    @Nullable String findRegionEndpoint(@Nonnull String regionId) throws InternalException, CloudException {
+        RegionEndpoints registry = provider.getRegionEndpoints();
+        HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+        Param param = new Param(OpSource.LOCATION_BASE_PATH, null);
+        parameters.put(0, param);
 
-                        //Document doc = CallCache.getInstance().getAPICall(OpSource.LOCATION_BASE_PATH, provider, parameters, "");
-                        String sNS = "";
-                        try{
-                            sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
-                        }
-                        catch(IndexOutOfBoundsException ex){}
-                        NodeList blocks = doc.getElementsByTagName(sNS + "datacenterWithLimits");
-                        if(blocks != null){
-                            for(int i=0; i< blocks.getLength();i++){
-                                Node item = blocks.item(i);
-                                Region region = toRegion(item, sNS);
-                                if(region != null){
-                                    list.add(region);
-                                    provider.setRegionEndpoint(region.getProviderRegionId(), endpoint);
-                                }
-                            }
-                        }
-                    }
-                    catch(Exception ex){
-                        //System.out.println("OpSourceLocation error");
-                        //ex.printStackTrace();
-                    /*
-                    If this fails it is likely a 401 authentication error against the endpoint.
-                    Rather than getting a nice XML API error response however, OpSource returns the default apache htaccess 401 error
-                    so it fails to parse and throws an exception. We're not really interested in this exception as some accounts
-                    legitimately don't have access to all the endpoints.
-                     */
+        List<String> endpoints = getCloudEndpoints(true);
+        Exception lastError = null;
+        int failures = 0;
+
+        for(String endpoint : endpoints){
+            boolean found = false;
+
+            try{
+                for(Region region : listCachedRegions(provider.buildUrlWithEndpoint(endpoint, null,true, parameters))){
+                    registry.put(region.getProviderRegionId(), endpoint);
+                    if(regionId.equals(region.getProviderRegionId())){
+                        found = true;
                     }
                 }
             }
-            return list;
+            catch(Exception ex){
+                // most likely an account without access to this endpoint, see listRegions()
+                logger.warn("Unable to list the regions of " + endpoint + ": " + ex.getMessage());
+                lastError = ex;
+                failures++;
+            }
+            if(found){
+                return registry.get(regionId);
+            }
         }
-        finally {
-            APITrace.end();
+        if(failures == endpoints.size()){
+            rethrow(lastError);
+        }
+        return null;
+    }
+
+    /**
+     * Raises the error of the last endpoint asked once every endpoint of the cloud has failed, so that a cloud no
+     * endpoint answers for does not pass for a cloud without regions.
+     * @param ex the error of the last endpoint asked
+     * @throws InternalException the error was raised within Dasein Cloud
+     * @throws CloudException the error was raised calling the API
+     */
+    static private void rethrow(@Nonnull Exception ex) throws InternalException, CloudException {
+        if(ex instanceof CloudException){
+            throw (CloudException)ex;
         }
+        if(ex instanceof InternalException){
+            throw (InternalException)ex;
+        }
+        throw new CloudException(ex);
+    }
+
+    /**
+     * Lists the endpoints of the cloud the context endpoint belongs to, as URLs. For an unknown cloud, that is the
+     * context endpoint alone.
+     * @param contextFirst true to move the context endpoint to the front of the list
+     * @return the endpoints to ask for regions
+     */
+    private @Nonnull List<String> getCloudEndpoints(boolean contextFirst){
+        String contextEndpoint = RegionEndpoints.normalize(provider.getContext().getEndpoint());
+        String cloudName = getCloudNameFromEndpoint();
+
+        if(cloudName == null){
+            return Collections.singletonList(contextEndpoint);
+        }
+        ArrayList<String> endpoints = new ArrayList<String>();
+
+        for(String endpoint : provider.getProivderEndpointMap().get(cloudName)){
+            endpoints.add(RegionEndpoints.normalize(endpoint));
+        }
+        if(contextFirst){
+            for(String endpoint : endpoints){
+                if(contextEndpoint.startsWith(endpoint)){
+                    endpoints.remove(endpoint);
+                    endpoints.add(0, endpoint);
+                    break;
+                }
+            }
+        }
+        return endpoints;
     }
 
     public String getCloudNameFromEndpoint(){
@@ -224,6 +322,17 @@ public class OpSourceLocation implements DataCenterServices {
         return null;
     }
 
+    static private @Nonnull Region copy(@Nonnull Region region){
+        Region r = new Region();
+
+        r.setProviderRegionId(region.getProviderRegionId());
+        r.setName(region.getName());
+        r.setActive(region.isActive());
+        r.setAvailable(region.isAvailable());
+        r.setJurisdiction(region.getJurisdiction());
+        return r;
+    }
+
     public Region toRegion( Node region, String nameSpace) throws CloudException{
         if(region == null){
             return null;
@@ -19,24 +19,25 @@
 package org.dasein.cloud.opsource;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import javax.annotation.Nonnull;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -45,9 +46,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.ParseException;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
@@ -56,7 +54,8 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.params.AuthPolicy;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
@@ -74,6 +73,7 @@ import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.util.APITrace;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -83,16 +83,46 @@ public class OpSourceMethod {
     static private final Logger logger = OpSource.getLogger(OpSourceMethod.class);
     static private final Logger wire   = OpSource.getWireLogger(OpSourceMethod.class);
 
+    /** Concurrent identical reads; every caller of a coalesced read gets its own copy of the document */
+    static private final SingleFlight<Document> inFlightReads = new SingleFlight<Document>() {
+        @Override
+        protected @Nonnull Document share(@Nonnull Document doc) {
+            return (Document)doc.cloneNode(true);
+        }
+    };
+
 	private Map<String,String> parameters  = null;
 	private OpSource           provider    = null;
 	private String             endpoint    = null;
+	private Boolean            idempotent  = null;
+	private boolean            coalesced   = true;
+	private volatile long      responseSize = -1L;
+	private WireLog            wireLog     = null;
 
 	
 	static public class ParsedError {
         public int code;
         public String message;
     }
+
+    /**
+     * Receives the repeating item elements of a response streamed through {@link #invoke(String, ElementHandler)}.
+     */
+    static public interface ElementHandler {
+        public void handleElement(@Nonnull Element element) throws CloudException, InternalException;
+    }
+
 	
+    /**
+     * Notified when a call made through {@link #invokeAsync(Callback)} completes. Callbacks run on the worker
+     * thread that executed the request, so they should hand off any lengthy processing.
+     */
+    static public interface Callback {
+        public void onSuccess(@Nullable Document doc);
+
+        public void onFailure(@Nonnull Throwable cause);
+    }
+
 	public OpSourceMethod(OpSource provider, String url, Map<String,String> parameters) throws InternalException {
         this.endpoint = url;
 		this.parameters = parameters;
@@ -121,7 +151,7 @@ public class OpSourceMethod {
     	return method;
     }
 
-    private @Nonnull HttpClient getClient(@Nonnull ProviderContext ctx, boolean ssl) {
+    private @Nonnull DefaultHttpClient getClient(@Nonnull ProviderContext ctx, boolean ssl) throws CloudException {
         HttpParams params = new BasicHttpParams();
 
         HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
@@ -144,10 +174,261 @@ public class OpSourceMethod {
                 params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
             }
         }
-        return new DefaultHttpClient(params);
+        DefaultHttpClient client;
+
+        try {
+            client = new DefaultHttpClient(provider.getConnectionManager(), params);
+        }
+        catch( IllegalStateException e ) {
+            throw new CloudException(e.getMessage());
+        }
+
+        client.setKeepAliveStrategy(provider.getKeepAliveStrategy());
+        // ask for gzip and inflate transparently while the body is read, so large lists never exist compressed in memory
+        client.addRequestInterceptor(new RequestAcceptEncoding());
+        client.addResponseInterceptor(new ResponseContentEncoding());
+        return client;
     }
     
 	public Document invoke() throws CloudException, InternalException {
+        if( !coalesced || !isIdempotent() || !"GET".equals(parameters.get(OpSource.HTTP_Method_Key)) || !provider.getCustomBooleanProperty("coalesceRequests", true) ) {
+            return invoke(null, null, false);
+        }
+        // identical reads already in flight (same URL, same credentials) share one call, which alone is reported to method listeners
+        return inFlightReads.execute(provider.getAuthorizationDigest() + "|" + endpoint, new SingleFlight.Call<Document>() {
+            @Override
+            public Document call() throws CloudException, InternalException {
+                return invoke(null, null, false);
+            }
+        });
+    }
+
+    /**
+     * Executes the request and streams the response body through a StAX parser instead of building a DOM for
+     * the whole payload. Each element whose local name matches <code>elementName</code> is built as a small DOM
+     * fragment, handed to the handler and then discarded, so large list responses are never held in memory at once.
+     * @param elementName the local name of the repeating item elements (e.g. serverWithState)
+     * @param handler the handler receiving each item element as it is parsed
+     * @return a skeleton of the response document holding the root element (and its attributes) and anything not
+     * matching <code>elementName</code>
+     * @throws CloudException an error occurred in the cloud executing the request, or the response was cut off
+     * @throws InternalException an error occurred within Dasein Cloud processing the response, or the handler failed
+     */
+    public Document invoke(@Nonnull String elementName, @Nonnull ElementHandler handler) throws CloudException, InternalException {
+        return invoke(elementName, handler, true);
+    }
+
+    /**
+     * Submits the request without blocking the calling thread. Calls are executed on the provider's worker pool
+     * for the target endpoint, which bounds the number of requests in flight against that endpoint.
+     * @return a future for the response document (see {@link #invoke()})
+     * @throws CloudException the endpoint URL is invalid or the provider has been closed
+     */
+    public @Nonnull Future<Document> invokeAsync() throws CloudException {
+        return invokeAsync(null);
+    }
+
+    /**
+     * Submits the request without blocking the calling thread and notifies the callback when it completes. If the
+     * call fails, {@link Future#get()} throws an {@link ExecutionException} wrapping the same {@link CloudException}
+     * or {@link InternalException} that {@link #invoke()} would have thrown.
+     * @param callback an optional callback notified on success, failure or cancellation
+     * @return a future for the response document
+     * @throws CloudException the endpoint URL is invalid or the provider has been closed
+     */
+    public @Nonnull Future<Document> invokeAsync(@Nullable final Callback callback) throws CloudException {
+        FutureTask<Document> task = new FutureTask<Document>(new Callable<Document>() {
+            @Override
+            public Document call() throws Exception {
+                return invoke();
+            }
+        }) {
+            @Override
+            protected void done() {
+                if( callback == null ) {
+                    return;
+                }
+                try {
+                    callback.onSuccess(get());
+                }
+                catch( ExecutionException e ) {
+                    callback.onFailure(e.getCause() == null ? e : e.getCause());
+                }
+                catch( CancellationException e ) {
+                    callback.onFailure(e);
+                }
+                catch( InterruptedException e ) {
+                    callback.onFailure(e);
+                }
+                catch( RuntimeException e ) {
+                    logger.error("Callback for " + endpoint + " failed: " + e.getMessage(), e);
+                }
+            }
+        };
+
+        try {
+            provider.getAsyncExecutor(getEndpointHost()).execute(task);
+        }
+        catch( IllegalStateException e ) {
+            throw new CloudException(e.getMessage());
+        }
+        catch( RejectedExecutionException e ) {
+            // the provider was closed after the pool was handed out
+            throw new CloudException("The provider has been closed");
+        }
+        return task;
+    }
+
+    private @Nonnull String getEndpointHost() throws CloudException {
+        URL url;
+
+        try {
+            url = new URL(endpoint);
+        }
+        catch( MalformedURLException e ) {
+            throw new CloudException(e);
+        }
+        return url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    }
+
+    /**
+     * Marks this call as safe (or unsafe) to repeat regardless of its HTTP method, overriding {@link #isIdempotent()}.
+     * @param idempotent true if the request may be sent again after a transient failure
+     */
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * @return the number of (decompressed) body bytes parsed by the last call this method made, or -1 if it has not
+     * parsed a response, e.g. because it joined an identical read in flight
+     */
+    public long getResponseSize() {
+        return responseSize;
+    }
+
+    /**
+     * Allows (the default) or prevents {@link #invoke()} joining an identical read already in flight. Calls whose
+     * answer must come from their own request, such as a credentials check, should not be coalesced.
+     * @param coalesced false to always send this request
+     */
+    public void setCoalesced(boolean coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * Determines whether this call may be retried after a transient failure. Unless set explicitly, only GET, HEAD
+     * and OPTIONS requests qualify, and only when they are not OpSource actions: the API triggers actions such as
+     * <code>?delete</code> or <code>?start</code> with a GET carrying a bare query token, and those must never be
+     * repeated blindly.
+     * @return true if the call is safe to retry
+     */
+    public boolean isIdempotent() {
+        if( idempotent != null ) {
+            return idempotent;
+        }
+        String httpMethod = parameters.get(OpSource.HTTP_Method_Key);
+
+        if( !"GET".equals(httpMethod) && !"HEAD".equals(httpMethod) && !"OPTIONS".equals(httpMethod) ) {
+            return false;
+        }
+        int idx = endpoint.indexOf('?');
+
+        if( idx > -1 ) {
+            for( String token : endpoint.substring(idx + 1).split("&") ) {
+                if( token.length() > 0 && token.indexOf('=') < 0 ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Document invoke(String elementName, ElementHandler handler, boolean streaming) throws CloudException, InternalException {
+        String httpMethod = parameters.get(OpSource.HTTP_Method_Key);
+        MethodMetrics metrics = new MethodMetrics(httpMethod == null ? "GET" : httpMethod, endpoint);
+
+        // sample once per call so that all attempts of a logged call are logged
+        wireLog = new WireLog(provider, wire, endpoint);
+        long start = System.currentTimeMillis();
+        Throwable failure = null;
+
+        try {
+            return invoke(elementName, handler, streaming, metrics);
+        }
+        catch( CloudException e ) {
+            failure = e;
+            throw e;
+        }
+        catch( InternalException e ) {
+            failure = e;
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            metrics.setCompleted(System.currentTimeMillis() - start, failure);
+            responseSize = metrics.getResponseSize();
+            for( MethodListener listener : provider.getMethodListeners() ) {
+                try {
+                    listener.methodCompleted(metrics);
+                }
+                catch( Throwable t ) {
+                    logger.warn("Method listener " + listener + " failed: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    private Document invoke(String elementName, ElementHandler handler, boolean streaming, MethodMetrics metrics) throws CloudException, InternalException {
+        RequestGovernor governor = RequestGovernor.getInstance(provider, getEndpointHost());
+        RetryPolicy policy = provider.getRetryPolicy();
+        int attempts = (isIdempotent() ? policy.getMaxAttempts() : 1);
+
+        for( int attempt=1; ; attempt++ ) {
+            TransientFailure failure;
+
+            // every attempt, retries included, counts against the account's pace and in-flight limits
+            long queued = System.currentTimeMillis();
+
+            governor.acquire();
+            metrics.addQueueTime(System.currentTimeMillis() - queued);
+            metrics.attemptStarted();
+            try {
+                return invokeOnce(elementName, handler, streaming, metrics);
+            }
+            catch( TransientFailure e ) {
+                failure = e;
+            }
+            finally {
+                governor.release();
+            }
+            if( attempt >= attempts ) {
+                if( attempts > 1 ) {
+                    policy.recordExhausted();
+                }
+                return failure.giveUp();
+            }
+            if( !policy.acquireRetry() ) {
+                logger.warn("Retry budget exhausted, not retrying " + endpoint);
+                return failure.giveUp();
+            }
+            long delay = policy.getDelay(attempt);
+
+            logger.warn("Transient failure calling " + endpoint + " (attempt " + attempt + " of " + attempts + "), retrying in " + delay + "ms: " + failure.getMessage());
+            try {
+                Thread.sleep(delay);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return failure.giveUp();
+            }
+        }
+    }
+
+    private Document invokeOnce(String elementName, ElementHandler handler, boolean streaming, MethodMetrics metrics) throws CloudException, InternalException, TransientFailure {
         if( logger.isTraceEnabled() ) {
             logger.trace("enter - " + OpSource.class.getName() + ".invoke()");
         }
@@ -158,34 +439,21 @@ public class OpSourceMethod {
 			} catch (MalformedURLException e1) {
 				throw new CloudException(e1);				
 			}
-	        final String host = url.getHost();
-	        final int urlPort = url.getPort()==-1?url.getDefaultPort():url.getPort();
 	        final String urlStr = url.toString();
 	      	
-	        DefaultHttpClient httpclient = new DefaultHttpClient();
+	        DefaultHttpClient httpclient = getClient(provider.getContext(), url.getProtocol().equalsIgnoreCase("https"));
 
-	        /**  HTTP Authentication */
-	        String uid = new String(provider.getContext().getAccessPublic());
-	        String pwd = new String(provider.getContext().getAccessPrivate());
-	        
-	        /** Type of authentication */
-	        List<String> authPrefs = new ArrayList<String>(2);	       
-	        authPrefs.add(AuthPolicy.BASIC);
- 
-	        httpclient.getParams().setParameter("http.auth.scheme-pref", authPrefs);
-	        httpclient.getCredentialsProvider().setCredentials(
-                    new AuthScope(host, urlPort, null),
-                    new UsernamePasswordCredentials(uid, pwd));
-	        
-	        if( wire.isDebugEnabled() ) {
-	            wire.debug("--------------------------------------------------------------> " + urlStr);
-	            wire.debug("");
+	        if( wireLog.isEnabled() ) {
+	            wireLog.debug("--------------------------------------------------------------> " + urlStr);
+	            wireLog.debug("");
 	        }
  
 	        AbstractHttpMessage method = this.getMethod(parameters.get(OpSource.HTTP_Method_Key), urlStr) ;
 	        method.setParams(new BasicHttpParams().setParameter(urlStr, url));
 	        /**  Set headers */
 	        method.addHeader(OpSource.Content_Type_Key, parameters.get(OpSource.Content_Type_Key));
+	        /**  HTTP Authentication, sent up front instead of waiting for a challenge */
+	        method.addHeader("Authorization", provider.getAuthorizationHeader());
       
 	        /** POST/PUT method specific logic */
 	        if (method instanceof HttpEntityEnclosingRequest) {
@@ -193,8 +461,8 @@ public class OpSourceMethod {
 	        	String requestBody = parameters.get(OpSource.HTTP_Post_Body_Key);
 	        	
 	            if (requestBody != null) {
-                    if(wire.isDebugEnabled()){
-                        wire.debug(requestBody);
+                    if(wireLog.isEnabled()){
+                        wireLog.debug(requestBody);
                     }
 
 	            	AbstractHttpEntity entity = new ByteArrayEntity(requestBody.getBytes());
@@ -205,122 +473,176 @@ public class OpSourceMethod {
 	            }                
             }
 	        
+	        /** Revalidate list calls we have already seen instead of downloading them again */
+	        ConditionalResponseCache conditionalCache = provider.getConditionalCache();
+	        String conditionalKey = null;
+	        ConditionalResponseCache.Entry cached = null;
+
+	        if( conditionalCache.isEnabled() && method instanceof HttpGet && isIdempotent() ) {
+	            conditionalKey = provider.getContext().getAccountNumber() + "|" + urlStr;
+	            cached = conditionalCache.get(conditionalKey);
+	            if( cached != null ) {
+	                if( cached.getEtag() != null ) {
+	                    method.addHeader("If-None-Match", cached.getEtag());
+	                }
+	                if( cached.getLastModified() != null ) {
+	                    method.addHeader("If-Modified-Since", cached.getLastModified());
+	                }
+	            }
+	        }
+
 	        /** Now parse the xml */
+	        HttpEntity entity = null;
 	        try {
         		
     			HttpResponse httpResponse ;
         		int status;
-                if( wire.isDebugEnabled() ) {                   
+                if( wireLog.isEnabled() ) {                   
                     for( org.apache.http.Header header : method.getAllHeaders()) {
-                        wire.debug(header.getName() + ": " + header.getValue());
+                        wireLog.debug(header.getName() + ": " + header.getValue());
                     }
                 }
                 /**  Now execute the request */
                 APITrace.trace(provider, method.toString() + " " + urlStr);
+                long sent = System.currentTimeMillis();
                 httpResponse = httpclient.execute((HttpUriRequest) method);
                 status = httpResponse.getStatusLine().getStatusCode();
-                if( wire.isDebugEnabled() ) {
-                    wire.debug("invoke(): HTTP Status " + httpResponse.getStatusLine().getStatusCode() + " " +  httpResponse.getStatusLine().getReasonPhrase());
+
+                String contentLength = getHeaderValue(httpResponse, "Content-Length");
+                long length = -1L;
+
+                if( contentLength != null ) {
+                    try { length = Long.parseLong(contentLength); }
+                    catch( NumberFormatException ignore ) { }
+                }
+                metrics.setResponse(status, System.currentTimeMillis() - sent, length);
+                if( wireLog.isEnabled() ) {
+                    wireLog.debug("invoke(): HTTP Status " + httpResponse.getStatusLine().getStatusCode() + " " +  httpResponse.getStatusLine().getReasonPhrase());
                 }                
                 org.apache.http.Header[] headers = httpResponse.getAllHeaders();
                 
-                HttpEntity entity = httpResponse.getEntity();
-                if( wire.isDebugEnabled() ) {
-                    wire.debug("HTTP xml status code ---------" + status);
+                entity = httpResponse.getEntity();
+                if( wireLog.isEnabled() ) {
+                    wireLog.debug("HTTP xml status code ---------" + status);
                     for( org.apache.http.Header h : headers ) {
                         if( h.getValue() != null ) {
-                            wire.debug(h.getName() + ": " + h.getValue().trim());
+                            wireLog.debug(h.getName() + ": " + h.getValue().trim());
                         }
                         else {
-                            wire.debug(h.getName() + ":");
+                            wireLog.debug(h.getName() + ":");
                         }
                     }
-                    /** Can not enable this line, otherwise the entity would be empty*/
-                   // wire.debug("OpSource Response Body for request " + urlStr + " = " + EntityUtils.toString(entity));
-                    wire.debug("-----------------");
+                    wireLog.debug("-----------------");
+                }
+                if( status == HttpStatus.SC_NOT_MODIFIED && cached == null ) {
+                    throw new CloudException("Received 304 Not Modified for an unconditional request to " + urlStr);
                 }
-                if( entity == null ) {
+                if( entity == null && status != HttpStatus.SC_NOT_MODIFIED ) {
                     parseError(status, "Empty entity");
+                    return null;
                 }
 
-                String responseBody = EntityUtils.toString(entity);
+        		if( status == HttpStatus.SC_OK || status == HttpStatus.SC_NOT_MODIFIED ) {
+                    InputStream input;
 
-        		if( status == HttpStatus.SC_OK ) {
-                    InputStream input = null;
-                    try {
-                    	input = new ByteArrayInputStream(responseBody.getBytes("UTF-8"));
-                    	if(input != null){
-                            Document doc = null;
-                            try{
-                                doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
-                                if(wire.isDebugEnabled()){
-                                    try{
-                                        TransformerFactory transfac = TransformerFactory.newInstance();
-                                        Transformer trans = transfac.newTransformer();
-                                        trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-                                        trans.setOutputProperty(OutputKeys.INDENT, "yes");
-
-                                        StringWriter sw = new StringWriter();
-                                        StreamResult result = new StreamResult(sw);
-                                        DOMSource source = new DOMSource(doc);
-                                        trans.transform(source, result);
-                                        String xmlString = sw.toString();
-                                        wire.debug(xmlString);
-                                    }
-                                    catch(Exception ex){
-                                        ex.printStackTrace();
-                                    }
-                                }
+                    if( status == HttpStatus.SC_NOT_MODIFIED ) {
+                        if( wireLog.isEnabled() ) {
+                            wireLog.debug("Not modified, re-using the cached response for " + urlStr);
+                        }
+                        metrics.setNotModified(true);
+                        input = new ByteArrayInputStream(cached.getBody());
+                    }
+                    else {
+                        String etag = getHeaderValue(httpResponse, "ETag");
+                        String lastModified = getHeaderValue(httpResponse, "Last-Modified");
+                        boolean keep = (conditionalKey != null && (etag != null || lastModified != null));
+
+                        if( keep || wireLog.isEnabled() ) {
+                            // buffer only when the body has to be kept or logged; otherwise parse straight off the wire
+                            long reading = System.currentTimeMillis();
+                            byte[] body = EntityUtils.toByteArray(entity);
+
+                            metrics.setReadTime(System.currentTimeMillis() - reading);
+
+                            if( wireLog.isEnabled() ) {
+                                wireLog.debug(body);
                             }
-                            catch(Exception ex){
-                                ex.printStackTrace();
-                                logger.debug(ex.toString(), ex);
+                            if( keep ) {
+                                conditionalCache.put(conditionalKey, etag, lastModified, body);
+                            }
+                            input = new ByteArrayInputStream(body);
+                        }
+                        else {
+                            if( conditionalKey != null ) {
+                                conditionalCache.remove(conditionalKey);
                             }
-                    		return doc;
+                            input = entity.getContent();
                         }
                     }
+                    CountingInputStream counter = new CountingInputStream(input);
+                    long parsing = System.currentTimeMillis();
+
+                    try {
+                        if( streaming ) {
+                            return parseStreaming(counter, elementName, handler);
+                        }
+                        return OpSourceXml.parse(counter);
+                    }
+                    catch( CloudException e ) {
+                        throw e;
+                    }
+                    catch( InternalException e ) {
+                        throw e;
+                    }
                     catch( IOException e ) {
                         logger.error("invoke(): Failed to read xml error due to a cloud I/O error: " + e.getMessage());
-                        throw new CloudException(e);                    
-                    }
-                    /*
-                    catch( SAXException e ) {
+                        if( !streaming ) {
+                            // nothing has been handed to a handler yet, so the whole call can be repeated
+                            throw new TransientFailure(new CloudException(e));
+                        }
                         throw new CloudException(e);
-                    }                    
-                    catch( ParserConfigurationException e ) {
-                        throw new InternalException(e);
                     }
-                    */
+                    catch( Exception ex ) {
+                        if( streaming ) {
+                            // items may already have been handed out, so a cut-off listing must not pass for a complete one
+                            if( ex instanceof RuntimeException ) {
+                                throw new InternalException(ex);
+                            }
+                            throw new CloudException(ex);
+                        }
+                        logger.debug(ex.toString(), ex);
+                    }
+                    finally {
+                        metrics.setParsed(System.currentTimeMillis() - parsing, counter.getCount());
+                    }
+                    return null;
         		}
                 else if(status == HttpStatus.SC_NOT_FOUND){
                     throw new CloudException("An internal error occured: The endpoint was not found");
                 }
         		else{
+                    String responseBody = EntityUtils.toString(entity);
+
                     if(responseBody != null){
+                        wireLog.debug(responseBody);
                         parseError(status, responseBody);
                         Document parsedError = null;
-                        if(!responseBody.contains("<HR")){
-                            parsedError = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(responseBody.getBytes("UTF-8")));
-                            if(wire.isDebugEnabled()){
-                                try{
-                                    TransformerFactory transfac = TransformerFactory.newInstance();
-                                    Transformer trans = transfac.newTransformer();
-                                    trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-                                    trans.setOutputProperty(OutputKeys.INDENT, "yes");
-
-                                    StringWriter sw = new StringWriter();
-                                    StreamResult result = new StreamResult(sw);
-                                    DOMSource source = new DOMSource(parsedError);
-                                    trans.transform(source, result);
-                                    String xmlString = sw.toString();
-                                    wire.debug(xmlString);
-                                }
-                                catch(Exception ex){
-                                    ex.printStackTrace();
+                        boolean unparsable = responseBody.contains("<HR");
+                        if(!unparsable){
+                            try {
+                                parsedError = OpSourceXml.parse(responseBody);
+                            }
+                            catch( SAXException e ) {
+                                if( isTransient(status, true) ) {
+                                    throw new TransientFailure(new CloudException(e));
                                 }
+                                throw e;
                             }
                         }
                         else logger.debug("Error message was unparsable");
+                        if( isTransient(status, unparsable) ) {
+                            throw new TransientFailure(status, parsedError);
+                        }
                         return parsedError;
                     }
         		}
@@ -329,35 +651,206 @@ public class OpSourceMethod {
 			} catch (SAXException e) {
 				throw new CloudException(e);
 			} catch (IOException e) {
-                e.printStackTrace();
-				throw new CloudException(e);
-			} catch (ParserConfigurationException e) {
-				throw new CloudException(e);
+                logger.debug("invoke(): I/O error calling " + urlStr + ": " + e.getMessage());
+				throw new TransientFailure(new CloudException(e));
 			}
     		finally {
-    			httpclient.getConnectionManager().shutdown();
+                // hand the connection back to the provider's pool rather than tearing it down
+                try {
+                    EntityUtils.consume(entity);
+                }
+                catch( IOException ignore ) {
+                    // ignore
+                }
     		}
         }
         finally {
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + OpSource.class.getName() + ".invoke()");
             }
-            if( wire.isDebugEnabled() ) {
-                wire.debug("");
-                wire.debug("--------------------------------------------------------------> " + endpoint);
+            if( wireLog.isEnabled() ) {
+                wireLog.debug("");
+                wireLog.debug("--------------------------------------------------------------> " + endpoint);
             } 
         }
 		return null; 
 	}
+
+    /**
+     * Counts the bytes read through it so response sizes can be reported without buffering the body.
+     */
+    static private class CountingInputStream extends FilterInputStream {
+        private long count = 0L;
+
+        CountingInputStream(@Nonnull InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if( b > -1 ) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+
+            if( n > 0 ) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    static private String getHeaderValue(@Nonnull HttpResponse response, @Nonnull String name) {
+        org.apache.http.Header header = response.getFirstHeader(name);
+
+        if( header == null || header.getValue() == null || header.getValue().trim().length() < 1 ) {
+            return null;
+        }
+        return header.getValue().trim();
+    }
+
+    /**
+     * Gateway errors are always worth another try; a plain 500 only when it came back as an HTML error page rather
+     * than an OpSource result document describing a real failure.
+     */
+    static private boolean isTransient(int status, boolean unparsable) {
+        switch( status ) {
+            case HttpStatus.SC_BAD_GATEWAY:
+            case HttpStatus.SC_SERVICE_UNAVAILABLE:
+            case HttpStatus.SC_GATEWAY_TIMEOUT:
+                return true;
+            case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+                return unparsable;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Signals a failed attempt that may succeed if repeated. It carries the outcome the caller sees if no further
+     * attempt is made: either the exception to throw or the (error) document to return.
+     */
+    @SuppressWarnings("serial")
+    static private class TransientFailure extends Exception {
+        private final CloudException cause;
+        private final Document       result;
+
+        TransientFailure(@Nonnull CloudException cause) {
+            super(cause.getMessage(), cause);
+            this.cause = cause;
+            this.result = null;
+        }
+
+        TransientFailure(int status, @Nullable Document result) {
+            super("HTTP " + status);
+            this.cause = null;
+            this.result = result;
+        }
+
+        Document giveUp() throws CloudException {
+            if( cause != null ) {
+                throw cause;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Rebuilds the response as the non namespace-aware DOM the rest of this module expects (prefixed node names,
+     * whitespace text nodes), but only keeps one matching item subtree alive at a time.
+     */
+    private Document parseStreaming(InputStream input, String elementName, ElementHandler handler) throws CloudException, InternalException {
+        Document doc = OpSourceXml.newDocument();
+        XMLStreamReader reader = null;
+
+        try {
+            reader = OpSourceXml.createStreamReader(input);
+
+            Node current = doc;
+            Element item = null;
+
+            while( reader.hasNext() ) {
+                switch( reader.next() ) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Element element = doc.createElement(toQualifiedName(reader.getPrefix(), reader.getLocalName()));
+
+                        for( int i=0; i<reader.getNamespaceCount(); i++ ) {
+                            String prefix = reader.getNamespacePrefix(i);
+
+                            element.setAttribute((prefix == null || prefix.length() < 1) ? "xmlns" : "xmlns:" + prefix, reader.getNamespaceURI(i));
+                        }
+                        for( int i=0; i<reader.getAttributeCount(); i++ ) {
+                            element.setAttribute(toQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+                        }
+                        if( item == null && current != doc && reader.getLocalName().equals(elementName) ) {
+                            item = element;
+                        }
+                        current.appendChild(element);
+                        current = element;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if( current != doc ) {
+                            current.appendChild(doc.createTextNode(reader.getText()));
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        Node parent = current.getParentNode();
+
+                        if( current == item ) {
+                            handler.handleElement(item);
+                            parent.removeChild(item);
+                            item = null;
+                        }
+                        current = parent;
+                        break;
+                }
+            }
+            return doc;
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            if( reader != null ) {
+                try { reader.close(); }
+                catch( XMLStreamException ignore ) { }
+            }
+        }
+    }
+
+    static private String toQualifiedName(String prefix, String localName) {
+        if( prefix == null || prefix.length() < 1 ) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
 	
 	public String requestResult(String action, Document doc,String resultTag, String resultDetailTag) throws CloudException, InternalException{
 		 if(doc== null){
 	        throw new CloudException("Action -> " + action + " failed because request reponse is null");	
 		 }
                 
-        if( wire.isDebugEnabled() ) {
-        	wire.debug(provider.convertDomToString(doc));
-        }
 
         String sNS = "";
         try{
@@ -389,9 +882,6 @@ public class OpSourceMethod {
 	}
 	
 	public String requestResultCode(String action, Document doc,String resultCode) throws CloudException, InternalException{
-        if( wire.isDebugEnabled() ) {
-        	wire.debug(provider.convertDomToString(doc));
-        }
 
         String sNS = "";
         try{
@@ -407,9 +897,6 @@ public class OpSourceMethod {
 	}
 	
 	public String getRequestResultId(String action, Document doc,String resultTag, String resultDetailTag) throws CloudException, InternalException{
-        if( wire.isDebugEnabled() ) {
-        	wire.debug(provider.convertDomToString(doc));
-        }
 
         String sNS = "";
         try{
@@ -447,9 +934,6 @@ public class OpSourceMethod {
 	
 	public boolean requestResult(String action, Document doc) throws CloudException, InternalException{
 		
-        if( wire.isDebugEnabled() ) {
-        	wire.debug(provider.convertDomToString(doc));
-        }
 
         String sNS = "";
         try{
@@ -478,9 +962,6 @@ public class OpSourceMethod {
 	}
 	
 	public boolean parseRequestResult(String action, Document doc, String resultTag, String resultDetailTag) throws CloudException, InternalException{
-        if( wire.isDebugEnabled() ) {
-        	wire.debug(provider.convertDomToString(doc));
-        }
 
         String sNS = "";
         try{
@@ -511,9 +992,6 @@ public class OpSourceMethod {
 	}
 
     public boolean parseRequestResultNoError(String action, Document doc, String resultTag, String resultDetailTag) throws CloudException, InternalException{
-        if( wire.isDebugEnabled() ) {
-            wire.debug(provider.convertDomToString(doc));
-        }
 
         String sNS = "";
         try{
@@ -628,16 +1106,13 @@ public class OpSourceMethod {
 	    }
 	    try {
 	    	try {
-	    		if( wire.isDebugEnabled() ) {
-	    			wire.debug(xml);
-	    		}
 	            //ByteArrayInputStream input = new ByteArrayInputStream(xml.getBytes("UTF-8"));
 
 	            //return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
 
                 Document parseForError = null;
                 if(!xml.contains("<HR")){
-                    parseForError = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+                    parseForError = OpSourceXml.parse(xml);
                     return parseForError;
                 }
                 throw new InternalException("Unparsable error: " + xml);
@@ -645,9 +1120,6 @@ public class OpSourceMethod {
 	        catch(IOException e) {
 	        	throw new CloudException(e);
 	        }
-            catch(ParserConfigurationException e) {
-                throw new CloudException(e);
-            }
             catch(SAXException e) {
                 throw new CloudException("Received error code from server [" + code + "]: " + xml);
             }
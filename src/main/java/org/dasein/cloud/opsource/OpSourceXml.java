@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.dasein.cloud.InternalException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Shared XML infrastructure for the OpSource provider. The JAXP factories are looked up exactly once and
+ * configured up front; the non thread-safe {@link DocumentBuilder} and {@link Transformer} instances they produce
+ * are kept one per thread and reset between uses.
+ * <p>
+ * Parsing is deliberately <b>not</b> namespace aware: every converter in this module matches on the prefixed
+ * node names (e.g. <code>ns2:network</code>) exactly as the OpSource API sends them.
+ * </p>
+ */
+public final class OpSourceXml {
+    static private final DocumentBuilderFactory builderFactory;
+    static private final TransformerFactory     transformerFactory;
+    static private final XMLInputFactory        inputFactory;
+
+    static private final ThreadLocal<DocumentBuilder> builders     = new ThreadLocal<DocumentBuilder>();
+    static private final ThreadLocal<Transformer>     transformers = new ThreadLocal<Transformer>();
+
+    static {
+        builderFactory = DocumentBuilderFactory.newInstance();
+        builderFactory.setNamespaceAware(false);
+        builderFactory.setValidating(false);
+
+        transformerFactory = TransformerFactory.newInstance();
+
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private OpSourceXml() { }
+
+    static private @Nonnull DocumentBuilder getBuilder() throws InternalException {
+        DocumentBuilder builder = builders.get();
+
+        if( builder == null ) {
+            try {
+                // the factory itself is not guaranteed to be thread safe
+                synchronized( builderFactory ) {
+                    builder = builderFactory.newDocumentBuilder();
+                }
+            }
+            catch( ParserConfigurationException e ) {
+                throw new InternalException(e);
+            }
+            builders.set(builder);
+        }
+        else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    static private @Nonnull Transformer getTransformer() throws InternalException {
+        Transformer transformer = transformers.get();
+
+        if( transformer == null ) {
+            try {
+                synchronized( transformerFactory ) {
+                    transformer = transformerFactory.newTransformer();
+                }
+            }
+            catch( TransformerConfigurationException e ) {
+                throw new InternalException(e);
+            }
+            transformers.set(transformer);
+        }
+        else {
+            transformer.reset();
+        }
+        return transformer;
+    }
+
+    /**
+     * @return a new, empty document
+     * @throws InternalException the platform XML parser could not be configured
+     */
+    static public @Nonnull Document newDocument() throws InternalException {
+        return getBuilder().newDocument();
+    }
+
+    /**
+     * Parses a complete XML document from the specified stream. The stream is not closed.
+     * @param input the stream to parse
+     * @return the parsed document
+     * @throws InternalException the platform XML parser could not be configured
+     * @throws IOException an error occurred reading the stream
+     * @throws SAXException the content is not well-formed XML
+     */
+    static public @Nonnull Document parse(@Nonnull InputStream input) throws InternalException, IOException, SAXException {
+        return getBuilder().parse(input);
+    }
+
+    /**
+     * Parses a complete XML document held in memory.
+     * @param xml the XML text
+     * @return the parsed document
+     * @throws InternalException the platform XML parser could not be configured
+     * @throws IOException never in practice, part of the parser contract
+     * @throws SAXException the content is not well-formed XML
+     */
+    static public @Nonnull Document parse(@Nonnull String xml) throws InternalException, IOException, SAXException {
+        return parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    /**
+     * Opens a pull parser over the specified stream using the shared, pre-configured StAX factory.
+     * @param input the stream to read
+     * @return a reader the caller must close
+     * @throws XMLStreamException the reader could not be created
+     */
+    static public @Nonnull XMLStreamReader createStreamReader(@Nonnull InputStream input) throws XMLStreamException {
+        return inputFactory.createXMLStreamReader(input);
+    }
+
+    /**
+     * Serializes a DOM document for logging purposes.
+     * @param doc the document to serialize
+     * @param pretty true to omit the XML declaration and indent the output
+     * @return the serialized document
+     * @throws InternalException the document could not be serialized
+     */
+    static public @Nonnull String toString(@Nonnull Document doc, boolean pretty) throws InternalException {
+        Transformer transformer = getTransformer();
+        StringWriter writer = new StringWriter();
+
+        if( pretty ) {
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        }
+        try {
+            transformer.transform(new DOMSource(doc), new StreamResult(writer));
+        }
+        catch( TransformerException e ) {
+            throw new InternalException(e);
+        }
+        return writer.toString();
+    }
+}
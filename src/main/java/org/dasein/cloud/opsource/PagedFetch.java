@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.Jiterator;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Fetches every page of a paged listing (e.g. <code>serverWithState</code>) and pushes the items to an iterator or a
+ * {@link Sink} in page order. Each page is read in full before its items are pushed, so a slow sink never holds a
+ * connection or a slot in the account's {@link RequestGovernor}. When the root element of the first page carries the
+ * <code>totalCount</code> of the listing, the remaining pages are requested concurrently through
+ * {@link OpSourceMethod#invokeAsync()}, so they run on the provider's bounded pool for the endpoint; otherwise each
+ * page is requested once the previous one turned out to be full. Either way the listing ends at the first short
+ * page or at the last page announced.
+ * <p>
+ * At most <code>maxPagesInFlight</code> pages (4 by default) are requested ahead of the page being pushed, which
+ * bounds the number of parsed pages held in memory.
+ * </p>
+ * @param <T> the type of item listed
+ */
+public abstract class PagedFetch<T> {
+    /**
+     * Receives the items in listing order. A sink may block to slow the fetch down, or throw to stop it.
+     * @param <T> the type of item
+     */
+    static public interface Sink<T> {
+        public void push(@Nonnull T item) throws CloudException, InternalException;
+    }
+
+    static private final int DEFAULT_PAGES_IN_FLIGHT = 4;
+
+    private final OpSource provider;
+    private final String   itemElement;
+    private final int      pageSize;
+
+    /**
+     * @param provider the provider making the calls
+     * @param itemElement the local name of the repeating item elements
+     * @param pageSize the number of items requested per page
+     */
+    public PagedFetch(@Nonnull OpSource provider, @Nonnull String itemElement, int pageSize) {
+        this.provider = provider;
+        this.itemElement = itemElement;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param pageNumber the page sought, starting at 1
+     * @param pageSize the number of items per page
+     * @return the full URL of the page
+     * @throws CloudException an error occurred building the URL
+     * @throws InternalException an error occurred building the URL
+     */
+    protected abstract @Nonnull String getUrl(int pageNumber, int pageSize) throws CloudException, InternalException;
+
+    /**
+     * @param element an item element
+     * @return the item, or <code>null</code> to skip it
+     * @throws CloudException the item could not be read
+     * @throws InternalException the item could not be read
+     */
+    protected abstract @Nullable T toItem(@Nonnull Element element) throws CloudException, InternalException;
+
+    /**
+     * Fetches every page, pushing the items to the iterator in order. The iterator is neither completed nor failed
+     * here; that is up to the populator driving it.
+     * @param iterator the iterator receiving the items
+     * @throws CloudException an error occurred fetching a page
+     * @throws InternalException an error occurred reading a page
+     */
+    public void fetch(@Nonnull final Jiterator<T> iterator) throws CloudException, InternalException {
+        fetch(new Sink<T>() {
+            @Override
+            public void push(@Nonnull T item) {
+                iterator.push(item);
+            }
+        });
+    }
+
+    /**
+     * Fetches every page, pushing the items to the sink in order. Should the sink throw, the requests still
+     * outstanding are cancelled and the exception is passed on.
+     * @param sink the sink receiving the items
+     * @throws CloudException an error occurred fetching a page, or the sink refused an item
+     * @throws InternalException an error occurred reading a page
+     */
+    public void fetch(@Nonnull final Sink<T> sink) throws CloudException, InternalException {
+        // the page is read in full before the sink sees it: a sink blocking on a slow reader must not hold the
+        // call's connection and its slot in the account's request governor
+        Document doc = newMethod(1).invoke();
+
+        if( doc == null ) {
+            throw new CloudException("No response to a page request");
+        }
+        int total = getCount(doc, "totalCount");
+        int lastPage = (total < 0 ? -1 : Math.max(1, (total + pageSize - 1) / pageSize));
+        int inFlight = Math.max(1, provider.getCustomIntProperty("maxPagesInFlight", DEFAULT_PAGES_IN_FLIGHT));
+        LinkedList<Future<Document>> window = new LinkedList<Future<Document>>();
+        boolean more = (getPageCount(doc) >= pageSize && lastPage != 1);
+        int nextPage = 2;
+        int page = 2;
+
+        try {
+            // the next pages load while the first one is pushed
+            if( more ) {
+                nextPage = request(window, nextPage, Math.max(lastPage, page), inFlight);
+            }
+            push(doc, sink);
+            while( more ) {
+                // without a total, the next page is known to exist only once this one turned out full
+                nextPage = request(window, nextPage, Math.max(lastPage, page), inFlight);
+                doc = await(window.removeFirst());
+                push(doc, sink);
+                // a full page ends the listing only when it is the last one announced
+                more = (getPageCount(doc) >= pageSize && page != lastPage);
+                page++;
+            }
+        }
+        finally {
+            // the listing was shorter than announced, a page failed or the sink gave up
+            for( Future<Document> f : window ) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Requests the pages up to <code>lastPage</code> that fit in the window.
+     * @return the first page not yet requested
+     */
+    private int request(@Nonnull LinkedList<Future<Document>> window, int nextPage, int lastPage, int inFlight) throws CloudException, InternalException {
+        while( nextPage <= lastPage && window.size() < inFlight ) {
+            window.add(newMethod(nextPage++).invokeAsync());
+        }
+        return nextPage;
+    }
+
+    private void push(@Nonnull Document doc, @Nonnull Sink<T> sink) throws CloudException, InternalException {
+        NodeList items = doc.getElementsByTagName(itemElement);
+
+        for( int i=0; i<items.getLength(); i++ ) {
+            Node node = items.item(i);
+
+            if( node instanceof Element ) {
+                T item = toItem((Element)node);
+
+                if( item != null ) {
+                    sink.push(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of items on the page, as announced or as found
+     */
+    private int getPageCount(@Nonnull Document doc) {
+        int count = getCount(doc, "pageCount");
+
+        return (count < 0 ? doc.getElementsByTagName(itemElement).getLength() : count);
+    }
+
+    private @Nonnull OpSourceMethod newMethod(int pageNumber) throws CloudException, InternalException {
+        return new OpSourceMethod(provider, getUrl(pageNumber, pageSize), provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+    }
+
+    static private int getCount(@Nullable Document doc, @Nonnull String attribute) {
+        Element root = (doc == null ? null : doc.getDocumentElement());
+        String value = (root == null ? "" : root.getAttribute(attribute));
+
+        if( value == null || value.length() < 1 ) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            return -1;
+        }
+    }
+
+    static private @Nonnull Document await(@Nonnull Future<Document> page) throws CloudException, InternalException {
+        try {
+            Document doc = page.get();
+
+            if( doc == null ) {
+                throw new CloudException("No response to a page request");
+            }
+            return doc;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for a page");
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+/**
+ * Knows which API endpoint serves each region of a cloud. There is one registry per cloud (e.g. Dimension Data,
+ * NTTA), shared by every provider instance talking to that cloud, since a region is always served by the same
+ * endpoint whichever account asks.
+ * <p>
+ * An endpoint is resolved once: later lookups are answered from memory. Resolving a region asks the endpoints of the
+ * cloud one after the other and stops at the first one listing the region, rather than listing the regions of every
+ * endpoint. Concurrent resolutions of the same region by the same account share a single resolution.
+ * </p>
+ */
+public class RegionEndpoints {
+    static private final ConcurrentHashMap<String, RegionEndpoints> registries = new ConcurrentHashMap<String, RegionEndpoints>();
+
+    /**
+     * Provides the registry for the cloud the specified provider talks to. Clouds are identified by name when the
+     * context endpoint is a known one, otherwise by the context endpoint itself.
+     * @param provider the provider whose cloud is sought
+     * @return the registry for that cloud
+     */
+    static public @Nonnull RegionEndpoints getInstance(@Nonnull OpSource provider) {
+        String scope = new OpSourceLocation(provider).getCloudNameFromEndpoint();
+
+        if( scope == null ) {
+            scope = normalize(provider.getContext().getEndpoint());
+        }
+        RegionEndpoints registry = registries.get(scope);
+
+        if( registry == null ) {
+            registry = new RegionEndpoints(scope);
+
+            RegionEndpoints existing = registries.putIfAbsent(scope, registry);
+
+            if( existing != null ) {
+                registry = existing;
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Adds the https scheme to an endpoint configured as a bare host name.
+     * @param endpoint the endpoint as configured
+     * @return the endpoint as a URL
+     */
+    static @Nonnull String normalize(@Nonnull String endpoint) {
+        String t = endpoint.toLowerCase();
+
+        if( !(t.startsWith("http://") || t.startsWith("https://") || t.matches("^[a-z]+://.*")) ) {
+            return "https://" + endpoint;
+        }
+        return endpoint;
+    }
+
+    private final String                            cloud;
+    private final ConcurrentHashMap<String, String> endpoints = new ConcurrentHashMap<String, String>();
+    private final SingleFlight<String>              resolving = new SingleFlight<String>();
+
+    private RegionEndpoints(@Nonnull String cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * @return the name or endpoint identifying the cloud of this registry
+     */
+    public @Nonnull String getCloud() {
+        return cloud;
+    }
+
+    /**
+     * @param regionId the region sought
+     * @return the endpoint serving the region, or <code>null</code> if it has not been resolved yet
+     */
+    public @Nullable String get(@Nonnull String regionId) {
+        return endpoints.get(regionId);
+    }
+
+    /**
+     * Records the endpoint serving a region.
+     * @param regionId the region
+     * @param endpoint the endpoint serving it
+     */
+    public void put(@Nonnull String regionId, @Nonnull String endpoint) {
+        endpoints.put(regionId, normalize(endpoint));
+    }
+
+    /**
+     * @return every region resolved so far, with the endpoint serving it
+     */
+    public @Nonnull Map<String, String> getEndpoints() {
+        return Collections.unmodifiableMap(new HashMap<String, String>(endpoints));
+    }
+
+    /**
+     * Provides the endpoint serving a region, resolving it if it is not yet known.
+     * @param provider the provider asking, whose credentials are used to resolve the region
+     * @param regionId the region sought
+     * @return the endpoint serving the region, or <code>null</code> if no endpoint of the cloud lists it
+     * @throws CloudException an error occurred calling the API
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable String resolve(@Nonnull final OpSource provider, @Nonnull final String regionId) throws CloudException, InternalException {
+        String endpoint = endpoints.get(regionId);
+
+        if( endpoint != null ) {
+            return endpoint;
+        }
+        ProviderContext ctx = provider.getContext();
+        String key = (ctx == null ? null : ctx.getAccountNumber()) + "|" + regionId;
+
+        return resolving.execute(key, new SingleFlight.Call<String>() {
+            @Override
+            public String call() throws CloudException, InternalException {
+                String endpoint = endpoints.get(regionId);
+
+                if( endpoint != null ) {
+                    return endpoint;
+                }
+                new OpSourceLocation(provider).findRegionEndpoint(regionId);
+                return endpoints.get(regionId);
+            }
+        });
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+
+/**
+ * Paces the API calls made for a single OpSource account against a single endpoint. OpSource throttles per
+ * organization, so the governor is shared by every provider instance working with the same account rather than
+ * held by any one of them. Two limits apply to each call:
+ * <ul>
+ *     <li>a token bucket refilled at <code>requestsPerSecond</code> (10 by default) that holds up to
+ *     <code>requestBurst</code> tokens (20 by default); a value of 0 or less disables rate limiting</li>
+ *     <li>at most <code>maxRequestsInFlight</code> (20 by default) calls outstanding at any time</li>
+ * </ul>
+ * The limits come from the custom properties of the first provider context to use a given account and endpoint.
+ * Time spent waiting for either limit is tracked and exposed through the getters of this class.
+ */
+public class RequestGovernor {
+    static private final ConcurrentHashMap<String, RequestGovernor> governors = new ConcurrentHashMap<String, RequestGovernor>();
+
+    /**
+     * Provides the governor for the provider's current account and the specified endpoint.
+     * @param provider the provider making the call
+     * @param endpointHost the host (and port) the call is sent to
+     * @return the shared governor
+     */
+    static public @Nonnull RequestGovernor getInstance(@Nonnull OpSource provider, @Nonnull String endpointHost) {
+        ProviderContext ctx = provider.getContext();
+        String key = (ctx == null ? "" : ctx.getAccountNumber()) + "@" + endpointHost;
+        RequestGovernor governor = governors.get(key);
+
+        if( governor == null ) {
+            governor = new RequestGovernor(provider.getCustomLongProperty("requestsPerSecond", 10L), provider.getCustomIntProperty("requestBurst", 20),
+                    provider.getCustomIntProperty("maxRequestsInFlight", 20));
+
+            RequestGovernor existing = governors.putIfAbsent(key, governor);
+
+            if( existing != null ) {
+                governor = existing;
+            }
+        }
+        return governor;
+    }
+
+    private final double    tokensPerMilli;
+    private final double    maxTokens;
+    private final Semaphore inFlight;
+    private final int       maxInFlight;
+
+    private double tokens;
+    private long   lastRefill;
+
+    private final AtomicInteger waiting       = new AtomicInteger(0);
+    private final AtomicLong    requests      = new AtomicLong(0L);
+    private final AtomicLong    delayed       = new AtomicLong(0L);
+    private final AtomicLong    totalWaitTime = new AtomicLong(0L);
+    private final AtomicLong    maxWaitTime   = new AtomicLong(0L);
+
+    public RequestGovernor(long requestsPerSecond, int burst, int maxInFlight) {
+        this.tokensPerMilli = (requestsPerSecond > 0 ? requestsPerSecond / 1000.0 : 0.0);
+        this.maxTokens = Math.max(1, burst);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight, true);
+        this.tokens = maxTokens;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Blocks until the call may be sent. Every successful call to this method must be matched by a call to
+     * {@link #release()} once the response has been fully read.
+     * @throws CloudException the thread was interrupted while waiting
+     */
+    public void acquire() throws CloudException {
+        long start = System.currentTimeMillis();
+        boolean held = false;
+
+        waiting.incrementAndGet();
+        try {
+            long delay = reserve();
+
+            if( delay > 0L ) {
+                held = true;
+                Thread.sleep(delay);
+            }
+            // a timed try honors the fairness of the semaphore, unlike tryAcquire()
+            if( !inFlight.tryAcquire(0L, TimeUnit.MILLISECONDS) ) {
+                held = true;
+                inFlight.acquire();
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting to call the OpSource API");
+        }
+        finally {
+            waiting.decrementAndGet();
+        }
+        requests.incrementAndGet();
+        // only calls actually held back by a limit count as delayed, not those that saw the clock tick
+        if( held ) {
+            long waited = System.currentTimeMillis() - start;
+
+            delayed.incrementAndGet();
+            totalWaitTime.addAndGet(waited);
+
+            long max = maxWaitTime.get();
+
+            while( waited > max && !maxWaitTime.compareAndSet(max, waited) ) {
+                max = maxWaitTime.get();
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.release();
+    }
+
+    /**
+     * Takes a token, going into debt when none is left so that concurrent callers are spaced out in the order
+     * they arrived instead of all waking up at once.
+     * @return how long the caller must wait, in milliseconds, before its token is valid
+     */
+    private synchronized long reserve() {
+        if( tokensPerMilli <= 0.0 ) {
+            return 0L;
+        }
+        long now = System.currentTimeMillis();
+
+        tokens = Math.min(maxTokens, tokens + ((now - lastRefill) * tokensPerMilli));
+        lastRefill = now;
+        tokens = tokens - 1.0;
+        if( tokens >= 0.0 ) {
+            return 0L;
+        }
+        return (long)Math.ceil(-tokens / tokensPerMilli);
+    }
+
+    /**
+     * @return the number of calls currently waiting for a token or an in-flight slot
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of calls currently in flight
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * @return the number of calls admitted since the governor was created
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of admitted calls that had to wait
+     */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * @return the total time, in milliseconds, calls spent queued before being sent
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    /**
+     * @return the longest time, in milliseconds, a single call spent queued before being sent
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Governs how {@link OpSourceMethod} retries idempotent calls that fail transiently (I/O errors and 5xx gateway
+ * responses). Delays grow exponentially from <code>retryBaseDelay</code> up to <code>retryMaxDelay</code>
+ * milliseconds with full jitter, so callers that failed together do not all come back together. Each provider
+ * instance also has a retry budget of <code>retryBudgetPerMinute</code> retries; once it is spent, failures are
+ * reported immediately instead of adding load to an API that is already struggling.
+ * <p>
+ * All settings are read from the custom properties of the provider context. Setting <code>retryMaxAttempts</code>
+ * to 1 disables retries.
+ * </p>
+ */
+public class RetryPolicy {
+    static private final long BUDGET_WINDOW = 60000L;
+
+    static private final Random random = new Random();
+
+    private final int  maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int  budgetPerWindow;
+
+    private long budgetWindowStart = 0L;
+    private int  budgetUsed        = 0;
+
+    private final AtomicLong retries         = new AtomicLong(0L);
+    private final AtomicLong exhausted       = new AtomicLong(0L);
+    private final AtomicLong budgetRejected  = new AtomicLong(0L);
+
+    public RetryPolicy(@Nonnull OpSource provider) {
+        this(provider.getCustomIntProperty("retryMaxAttempts", 4), provider.getCustomLongProperty("retryBaseDelay", 500L),
+                provider.getCustomLongProperty("retryMaxDelay", 15000L), provider.getCustomIntProperty("retryBudgetPerMinute", 60));
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, int budgetPerMinute) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = Math.max(1L, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.budgetPerWindow = Math.max(0, budgetPerMinute);
+    }
+
+    /**
+     * @return the total number of attempts made for a single idempotent call, including the first one
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Calculates how long to wait before the specified retry.
+     * @param retry the retry about to be made, starting at 1
+     * @return a randomized delay in milliseconds between 0 and the exponential backoff ceiling for that retry
+     */
+    public long getDelay(int retry) {
+        long ceiling = baseDelay;
+
+        for( int i=1; i<retry && ceiling < maxDelay; i++ ) {
+            ceiling = ceiling * 2;
+        }
+        ceiling = Math.min(ceiling, maxDelay);
+        synchronized( random ) {
+            return (long)(random.nextDouble() * ceiling) + 1L;
+        }
+    }
+
+    /**
+     * Takes one retry from this provider's budget.
+     * @return true if the retry may proceed, false if the budget for the current minute is spent
+     */
+    public synchronized boolean acquireRetry() {
+        long now = System.currentTimeMillis();
+
+        if( now - budgetWindowStart >= BUDGET_WINDOW ) {
+            budgetWindowStart = now;
+            budgetUsed = 0;
+        }
+        if( budgetUsed >= budgetPerWindow ) {
+            budgetRejected.incrementAndGet();
+            return false;
+        }
+        budgetUsed++;
+        retries.incrementAndGet();
+        return true;
+    }
+
+    void recordExhausted() {
+        exhausted.incrementAndGet();
+    }
+
+    /**
+     * @return the number of retries made since this provider instance was created
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of calls that still failed after using all of their attempts
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return the number of retries refused because the retry budget was spent
+     */
+    public long getBudgetRejectedCount() {
+        return budgetRejected.get();
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+/**
+ * Coalesces concurrent identical calls: the first caller for a key (the leader) makes the call while every other caller
+ * arriving before it completes waits for and shares its outcome, result or exception alike. Nothing is remembered
+ * once the call completes; this is not a cache.
+ * @param <V> the type of result shared
+ */
+public class SingleFlight<V> {
+    /**
+     * The work to be done by the leader.
+     * @param <V> the type of result
+     */
+    static public interface Call<V> {
+        public @Nullable V call() throws CloudException, InternalException;
+    }
+
+    static private class Flight<V> {
+        final FutureTask<V>  task;
+        /** number of callers that joined, or -1 once the leader stopped accepting them */
+        final AtomicInteger  joined = new AtomicInteger(0);
+
+        Flight(FutureTask<V> task) {
+            this.task = task;
+        }
+
+        boolean join() {
+            while( true ) {
+                int count = joined.get();
+
+                if( count < 0 ) {
+                    return false;
+                }
+                if( joined.compareAndSet(count, count + 1) ) {
+                    return true;
+                }
+            }
+        }
+
+        int close() {
+            return joined.getAndSet(-1);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Flight<V>> inFlight = new ConcurrentHashMap<String, Flight<V>>();
+
+    private final AtomicLong leaders   = new AtomicLong(0L);
+    private final AtomicLong followers = new AtomicLong(0L);
+
+    /**
+     * Makes the call, or joins the identical call already in flight for the same key. When nobody joined, the leader
+     * gets the result itself. Otherwise the result is only ever handed out through {@link #share(Object)}, to the
+     * leader as well, so that no caller can be reading it while another copies it.
+     * @param key identifies identical calls; it must include everything the result depends on (URL, credentials)
+     * @param call the call to make if none is in flight
+     * @return the result
+     * @throws CloudException the call failed in the cloud or the waiting thread was interrupted
+     * @throws InternalException the call failed within Dasein Cloud
+     */
+    public @Nullable V execute(@Nonnull String key, @Nonnull final Call<V> call) throws CloudException, InternalException {
+        while( true ) {
+            Flight<V> flight = new Flight<V>(new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return call.call();
+                }
+            }));
+            Flight<V> existing = inFlight.putIfAbsent(key, flight);
+
+            if( existing == null ) {
+                int joined;
+
+                leaders.incrementAndGet();
+                try {
+                    flight.task.run();
+                }
+                finally {
+                    inFlight.remove(key, flight);
+                    joined = flight.close();
+                }
+                V value = await(flight.task);
+
+                return (value == null || joined == 0 ? value : copy(value));
+            }
+            if( existing.join() ) {
+                followers.incrementAndGet();
+
+                V value = await(existing.task);
+
+                return (value == null ? null : copy(value));
+            }
+            // the call completed before we could join it, so its result may already be in use: start over
+        }
+    }
+
+    private @Nonnull V copy(@Nonnull V value) {
+        synchronized( value ) {
+            return share(value);
+        }
+    }
+
+    /**
+     * Prepares the result of a coalesced call for one of its callers. Calls are serialized on the value. By default the
+     * same object is handed out, which is only safe for immutable results.
+     * @param value the result of the coalesced call
+     * @return the value to hand to the caller
+     */
+    protected @Nonnull V share(@Nonnull V value) {
+        return value;
+    }
+
+    private V await(@Nonnull FutureTask<V> task) throws CloudException, InternalException {
+        try {
+            return task.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for a shared call");
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    /**
+     * @return the number of calls actually made
+     */
+    public long getLeaderCount() {
+        return leaders.get();
+    }
+
+    /**
+     * @return the number of callers that shared another caller's call instead of making their own
+     */
+    public long getFollowerCount() {
+        return followers.get();
+    }
+}
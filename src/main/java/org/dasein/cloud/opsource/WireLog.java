@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.ProviderContext;
+
+/**
+ * Writes request and response traffic to a wire logger for a subset of calls. Only the text already in hand is
+ * logged (raw bodies, headers), never a re-serialized DOM. Everything goes through {@link #redact(String)} and is cut
+ * off after <code>wireMaxChars</code> characters (16384 by default).
+ * <p>
+ * Which calls are logged is controlled by the custom properties of the provider context:
+ * </p>
+ * <ul>
+ *     <li><code>wireSamplePercent</code>: the percentage of calls to log, 100 by default</li>
+ *     <li><code>wirePaths</code>: a comma separated list of fragments; when set, only calls whose URL contains one of
+ *     them are logged (e.g. <code>serverWithState,networkWithLocation</code>)</li>
+ * </ul>
+ * Nothing is logged unless the wire logger itself is at DEBUG.
+ */
+public class WireLog {
+    static private final Random random = new Random();
+
+    static private final Pattern AUTHORIZATION = Pattern.compile("(?i)(authorization:\\s*\\S+\\s+)\\S+");
+    static private final Pattern SECRET_ELEMENT = Pattern.compile("(?i)(<([\\w.-]+:)?[\\w.-]*(password|secret)[^>/]*>)[^<]*(</)");
+    static private final Pattern SECRET_PARAM = Pattern.compile("(?i)((password|secret)[\\w.-]*=)[^&\\s\"<]*");
+
+    static private final int DEFAULT_MAX_CHARS = 16384;
+
+    private final Logger  wire;
+    private final boolean enabled;
+    private final int     maxChars;
+
+    /**
+     * Decides, once per call, whether the call to the specified URL is logged.
+     * @param provider the provider making the call
+     * @param wire the wire logger of the calling class
+     * @param endpoint the URL being called
+     */
+    public WireLog(@Nonnull OpSource provider, @Nonnull Logger wire, @Nonnull String endpoint) {
+        this.wire = wire;
+        this.maxChars = provider.getCustomIntProperty("wireMaxChars", DEFAULT_MAX_CHARS);
+        this.enabled = wire.isDebugEnabled() && isSelected(provider, endpoint);
+    }
+
+    static private boolean isSelected(@Nonnull OpSource provider, @Nonnull String endpoint) {
+        ProviderContext ctx = provider.getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String paths = (p == null ? null : p.getProperty("wirePaths"));
+
+        if( paths != null && paths.trim().length() > 0 ) {
+            boolean matched = false;
+
+            for( String path : paths.split(",") ) {
+                path = path.trim();
+                if( path.length() > 0 && endpoint.contains(path) ) {
+                    matched = true;
+                    break;
+                }
+            }
+            if( !matched ) {
+                return false;
+            }
+        }
+        int percent = provider.getCustomIntProperty("wireSamplePercent", 100);
+
+        if( percent >= 100 ) {
+            return true;
+        }
+        if( percent <= 0 ) {
+            return false;
+        }
+        synchronized( random ) {
+            return (random.nextInt(100) < percent);
+        }
+    }
+
+    /**
+     * Masks credentials in wire text: Authorization header values, password/secret elements and query parameters.
+     * @param text the text to clean
+     * @return the text with credentials replaced by <code>****</code>
+     */
+    static public @Nonnull String redact(@Nonnull String text) {
+        String redacted = AUTHORIZATION.matcher(text).replaceAll("$1****");
+
+        redacted = SECRET_ELEMENT.matcher(redacted).replaceAll("$1****$4");
+        return SECRET_PARAM.matcher(redacted).replaceAll("$1****");
+    }
+
+    /**
+     * @return true if this call is being logged
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void debug(@Nullable String text) {
+        if( !enabled || text == null ) {
+            return;
+        }
+        // redact before truncating so a cut can never expose the head of a secret
+        text = redact(text);
+        if( maxChars > 0 && text.length() > maxChars ) {
+            text = text.substring(0, maxChars) + "... [" + (text.length() - maxChars) + " more characters]";
+        }
+        wire.debug(text);
+    }
+
+    /**
+     * Logs a raw UTF-8 body exactly as received.
+     * @param body the raw body
+     */
+    public void debug(@Nonnull byte[] body) {
+        if( !enabled ) {
+            return;
+        }
+        try {
+            debug(new String(body, "UTF-8"));
+        }
+        catch( UnsupportedEncodingException ignore ) {
+            // UTF-8 is always supported
+        }
+    }
+}
@@ -0,0 +1,621 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.compute;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.opsource.OpSource;
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * Carries servers through the steps that follow a deployment: waiting for the deployment to finish, changing CPU and
+ * memory, adding local storage and starting the server. Each server moves through these steps as a small state
+ * machine; nothing sleeps on a thread while waiting.
+ * <p>
+ * A single scheduler thread triggers a status poll every 15 seconds. The poll checks every server in progress for an
+ * account and region together: with a single status listing when that listing takes fewer pages than there are
+ * servers to check, with individual lookups otherwise. A server the API briefly does not know is given 5 minutes to
+ * reappear before its launch fails. Polls and API actions run on a shared pool of at most
+ * <code>maxLaunchWorkers</code> threads (8 by default, read when the pool is first created), so any number of
+ * concurrent launches costs a fixed number of threads. Progress is reported to {@link LaunchListener}s.
+ * </p>
+ */
+public class LaunchOrchestrator {
+    static private final Logger logger = OpSource.getLogger(LaunchOrchestrator.class);
+
+    static private final long POLL_INTERVAL   = 15000L;
+    static private final long RETRY_INTERVAL  = 30000L;
+    static private final long MISSING_TIMEOUT = CalendarWrapper.MINUTE * 5L;
+    static private final long COUNT_INTERVAL  = CalendarWrapper.MINUTE * 10L;
+    static private final int  BATCH_THRESHOLD = 4;
+    static private final int  DEFAULT_WORKERS = 8;
+
+    /**
+     * The steps a server goes through. Servers skip the steps they do not need.
+     */
+    static public enum Step {
+        WAITING_FOR_DEPLOYMENT, MODIFYING, ADDING_STORAGE, STARTING, COMPLETE, FAILED
+    }
+
+    /**
+     * Receives the progress of every server handled by the orchestrator. Callbacks run on the orchestrator's threads
+     * and should return quickly.
+     */
+    static public interface LaunchListener {
+        public void stepChanged(@Nonnull String serverId, @Nonnull Step step);
+
+        public void completed(@Nonnull String serverId);
+
+        public void failed(@Nonnull String serverId, @Nonnull String reason);
+    }
+
+    /**
+     * What remains to be done to a server once it is deployed.
+     */
+    static public class Plan {
+        private final int     cpuCount;
+        private final int     memoryInMb;
+        private final int     storageInGb;
+        private final boolean start;
+
+        /**
+         * @param cpuCount the target CPU count, or -1 to leave CPU and memory as they are
+         * @param memoryInMb the target memory
+         * @param storageInGb the size of local storage to add, or 0 for none
+         * @param start true to start the server at the end
+         */
+        public Plan(int cpuCount, int memoryInMb, int storageInGb, boolean start) {
+            this.cpuCount = cpuCount;
+            this.memoryInMb = memoryInMb;
+            this.storageInGb = storageInGb;
+            this.start = start;
+        }
+    }
+
+    static private class Launch {
+        final VirtualMachines support;
+        final OpSource        provider;
+        final String          scope;
+        final String          serverId;
+
+        Plan    plan;
+        Step    step         = Step.WAITING_FOR_DEPLOYMENT;
+        long    stepStart;
+        long    nextAction   = 0L;
+        long    missingSince = 0L;
+        boolean accepted     = false;
+        boolean busy         = false;
+
+        Launch(VirtualMachines support, OpSource provider, String scope, String serverId, Plan plan, long now) {
+            this.support = support;
+            this.provider = provider;
+            this.scope = scope;
+            this.serverId = serverId;
+            this.plan = plan;
+            this.stepStart = now;
+        }
+    }
+
+    /**
+     * The number of servers of an account and region, as last counted.
+     */
+    static private class ServerCount {
+        final int  count;
+        final long countedAt;
+
+        ServerCount(int count, long countedAt) {
+            this.count = count;
+            this.countedAt = countedAt;
+        }
+    }
+
+    static private final LaunchOrchestrator instance = new LaunchOrchestrator();
+
+    static public @Nonnull LaunchOrchestrator getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentHashMap<String, Launch>      launches  = new ConcurrentHashMap<String, Launch>();
+    private final ConcurrentHashMap<String, Boolean>     polling   = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentHashMap<String, ServerCount> counts    = new ConcurrentHashMap<String, ServerCount>();
+    private final CopyOnWriteArrayList<LaunchListener>   listeners = new CopyOnWriteArrayList<LaunchListener>();
+
+    private ScheduledThreadPoolExecutor scheduler = null;
+    private Executor                    workers   = null;
+
+    private LaunchOrchestrator() { }
+
+    /**
+     * Builds an orchestrator running its work on the specified executor, without a scheduler: servers are only polled
+     * by calling {@link #poll()}.
+     * @param workers the executor running status checks and API actions
+     */
+    LaunchOrchestrator(@Nonnull Executor workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @return the current time in milliseconds, against which steps time out
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    public void addListener(@Nonnull LaunchListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(@Nonnull LaunchListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param serverId the server sought
+     * @return the step the server is at, or <code>null</code> if it is not being handled
+     */
+    public @Nullable Step getStep(@Nonnull String serverId) {
+        Launch launch = launches.get(serverId);
+
+        if( launch == null ) {
+            return null;
+        }
+        synchronized( launch ) {
+            return launch.step;
+        }
+    }
+
+    /**
+     * @return the number of servers in progress
+     */
+    public int getActiveCount() {
+        return launches.size();
+    }
+
+    /**
+     * Takes over a freshly deployed server. The provider is held until the server completes or fails. Should the
+     * server already be in progress, the plan is merged into the one being carried out.
+     * @param support the virtual machine support of the provider that deployed the server
+     * @param provider the provider that deployed the server
+     * @param serverId the ID of the deployed server
+     * @param plan what remains to be done
+     * @throws CloudException the server is already in progress and past the steps this plan needs
+     */
+    void submit(@Nonnull VirtualMachines support, @Nonnull OpSource provider, @Nonnull String serverId, @Nonnull Plan plan) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+        String scope = (ctx == null ? "" : ctx.getAccountNumber() + "|" + ctx.getRegionId());
+        Launch launch = new Launch(support, provider, scope, serverId, plan, now());
+
+        while( true ) {
+            Launch existing = launches.get(serverId);
+
+            if( existing == null ) {
+                provider.hold();
+                if( launches.putIfAbsent(serverId, launch) == null ) {
+                    break;
+                }
+                provider.release();
+                continue;
+            }
+            synchronized( existing ) {
+                // a launch that just ended is being removed, take its place
+                if( existing.step != Step.COMPLETE && existing.step != Step.FAILED ) {
+                    existing.plan = merge(existing, plan);
+                    if( logger.isInfoEnabled() ) {
+                        logger.info("Merged new changes into the launch of " + serverId + " at " + existing.step);
+                    }
+                    return;
+                }
+            }
+        }
+        start(provider);
+        fireStepChanged(launch, launch.step);
+    }
+
+    /**
+     * Combines the plan of a server in progress with further changes. Must be called holding the lock on the launch.
+     * @param launch the server in progress
+     * @param plan the further changes
+     * @return the combined plan
+     * @throws CloudException the server is past a step the further changes need, or both plans add storage
+     */
+    static private @Nonnull Plan merge(@Nonnull Launch launch, @Nonnull Plan plan) throws CloudException {
+        Plan current = launch.plan;
+        int cpuCount = current.cpuCount;
+        int memoryInMb = current.memoryInMb;
+        int storageInGb = current.storageInGb;
+
+        if( plan.cpuCount > 0 && (plan.cpuCount != cpuCount || plan.memoryInMb != memoryInMb) ) {
+            if( launch.step != Step.WAITING_FOR_DEPLOYMENT ) {
+                throw new CloudException("Server " + launch.serverId + " is already being launched and can no longer change CPU or memory");
+            }
+            cpuCount = plan.cpuCount;
+            memoryInMb = plan.memoryInMb;
+        }
+        if( plan.storageInGb > 0 ) {
+            if( storageInGb > 0 || (launch.step != Step.WAITING_FOR_DEPLOYMENT && launch.step != Step.MODIFYING) ) {
+                throw new CloudException("Server " + launch.serverId + " is already being launched and can no longer add storage");
+            }
+            storageInGb = plan.storageInGb;
+        }
+        return new Plan(cpuCount, memoryInMb, storageInGb, current.start || plan.start);
+    }
+
+    private synchronized void start(@Nonnull OpSource provider) {
+        if( workers != null ) {
+            return;
+        }
+        int size = Math.max(1, provider.getCustomIntProperty("maxLaunchWorkers", DEFAULT_WORKERS));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory("opsource-launch-worker-"));
+
+        pool.allowCoreThreadTimeOut(true);
+        workers = pool;
+        scheduler = new ScheduledThreadPoolExecutor(1, newThreadFactory("opsource-launch-scheduler-"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                }
+                catch( Throwable t ) {
+                    logger.error("Launch status poll failed: " + t.getMessage(), t);
+                }
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    static private @Nonnull ThreadFactory newThreadFactory(@Nonnull final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Groups the idle servers by account and region and hands each group to a worker for one status check.
+     */
+    void poll() {
+        HashMap<String, List<Launch>> groups = new HashMap<String, List<Launch>>();
+
+        for( Launch launch : launches.values() ) {
+            synchronized( launch ) {
+                if( launch.busy ) {
+                    continue;
+                }
+            }
+            List<Launch> group = groups.get(launch.scope);
+
+            if( group == null ) {
+                group = new ArrayList<Launch>();
+                groups.put(launch.scope, group);
+            }
+            group.add(launch);
+        }
+        for( final Map.Entry<String, List<Launch>> group : groups.entrySet() ) {
+            // a slow poll of the same account is still running
+            if( polling.putIfAbsent(group.getKey(), Boolean.TRUE) != null ) {
+                continue;
+            }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check(group.getValue());
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Unable to check launch status for " + group.getKey() + ": " + t.getMessage());
+                    }
+                    finally {
+                        polling.remove(group.getKey());
+                    }
+                }
+            });
+        }
+    }
+
+    private void check(@Nonnull List<Launch> group) throws Exception {
+        Launch first = group.get(0);
+
+        if( isWorthListing(first, group.size()) ) {
+            HashMap<String, VmState> states = new HashMap<String, VmState>();
+
+            for( ResourceStatus status : first.support.listVirtualMachineStatus() ) {
+                states.put(status.getProviderResourceId(), (VmState)status.getResourceStatus());
+            }
+            counts.put(first.scope, new ServerCount(states.size(), now()));
+            for( Launch launch : group ) {
+                advance(launch, states.get(launch.serverId));
+            }
+            return;
+        }
+        for( Launch launch : group ) {
+            VirtualMachine vm;
+
+            // one failed lookup leaves that server for the next poll without holding up the others
+            try {
+                vm = launch.support.lookupVirtualMachine(launch.serverId);
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to check launch status of " + launch.serverId + ": " + t.getMessage());
+                continue;
+            }
+            advance(launch, vm == null ? null : vm.getCurrentState());
+        }
+    }
+
+    /**
+     * Tells whether a status listing of the whole account and region costs fewer calls than looking the servers up
+     * one by one, i.e. whether it takes fewer pages than there are servers. The servers of the account are counted
+     * with a one-server page at most every 10 minutes, and recounted by every listing.
+     * @param first the first server of the group, which the count is made for
+     * @param pending the number of servers to check
+     * @return true to check the servers with a single listing
+     * @throws Exception the servers could not be counted
+     */
+    private boolean isWorthListing(@Nonnull Launch first, int pending) throws Exception {
+        if( pending < BATCH_THRESHOLD ) {
+            return false;
+        }
+        long now = now();
+        ServerCount count = counts.get(first.scope);
+
+        if( count == null || now - count.countedAt > COUNT_INTERVAL ) {
+            count = new ServerCount(first.support.countVirtualMachines(), now);
+            counts.put(first.scope, count);
+        }
+        int pages = (count.count + VirtualMachines.STATUS_PAGE_SIZE - 1) / VirtualMachines.STATUS_PAGE_SIZE;
+
+        return (count.count >= 0 && pages < pending);
+    }
+
+    /**
+     * Moves a server along according to its current state, running at most one API action for it.
+     * @param launch the server in progress
+     * @param state the state just polled, <code>null</code> if the server was not found
+     */
+    private void advance(@Nonnull Launch launch, @Nullable VmState state) {
+        long now = now();
+
+        synchronized( launch ) {
+            if( launch.busy || launch.step == Step.COMPLETE || launch.step == Step.FAILED ) {
+                return;
+            }
+            if( state == null ) {
+                // listings and lookups may miss a server for a while, e.g. right after it was deployed
+                if( launch.missingSince == 0L ) {
+                    launch.missingSince = now;
+                }
+                else if( now - launch.missingSince > MISSING_TIMEOUT ) {
+                    finish(launch, "Server disappeared while in " + launch.step);
+                }
+                return;
+            }
+            launch.missingSince = 0L;
+            boolean idle = (state != VmState.PENDING);
+
+            // a server entering a new step is acted upon in the same poll
+            while( true ) {
+                if( launch.busy || launch.step == Step.COMPLETE || launch.step == Step.FAILED ) {
+                    return;
+                }
+                if( launch.step == Step.WAITING_FOR_DEPLOYMENT ) {
+                    if( idle ) {
+                        next(launch);
+                        continue;
+                    }
+                    if( now - launch.stepStart > CalendarWrapper.MINUTE * 90L ) {
+                        finish(launch, "Deployment did not complete in time");
+                    }
+                    return;
+                }
+                if( launch.step == Step.MODIFYING || launch.step == Step.ADDING_STORAGE ) {
+                    if( !idle ) {
+                        return;
+                    }
+                    if( launch.accepted ) {
+                        next(launch);
+                        continue;
+                    }
+                    long timeout = (launch.step == Step.MODIFYING ? CalendarWrapper.MINUTE * 90L : CalendarWrapper.MINUTE * 20L);
+
+                    if( now - launch.stepStart > timeout ) {
+                        // as before, a server that could not be changed is still booted
+                        logger.error("Server " + launch.serverId + " could not be changed in " + launch.step + ", moving on");
+                        next(launch);
+                        continue;
+                    }
+                    break;
+                }
+                // STARTING
+                if( state == VmState.RUNNING ) {
+                    if( logger.isInfoEnabled() ) {
+                        logger.info(launch.serverId + " is now RUNNING");
+                    }
+                    finish(launch, null);
+                    return;
+                }
+                if( now - launch.stepStart > CalendarWrapper.MINUTE * 15L ) {
+                    finish(launch, "Server did not start in time");
+                    return;
+                }
+                if( state != VmState.STOPPED ) {
+                    return;
+                }
+                break;
+            }
+            if( now < launch.nextAction ) {
+                return;
+            }
+            launch.busy = true;
+        }
+        act(launch);
+    }
+
+    private void act(@Nonnull final Launch launch) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                Step step;
+                Plan plan;
+
+                synchronized( launch ) {
+                    step = launch.step;
+                    plan = launch.plan;
+                }
+                boolean accepted = false;
+
+                try {
+                    switch( step ) {
+                        case MODIFYING:
+                            accepted = modify(launch, plan);
+                            break;
+                        case ADDING_STORAGE:
+                            accepted = launch.support.addLocalStorage(launch.serverId, plan.storageInGb);
+                            break;
+                        case STARTING:
+                            launch.support.start(launch.serverId);
+                            break;
+                        default:
+                            break;
+                    }
+                    if( !accepted && step != Step.STARTING ) {
+                        logger.warn(step + " of " + launch.serverId + " failed without explanation, will retry");
+                    }
+                }
+                catch( Throwable t ) {
+                    logger.warn(step + " of " + launch.serverId + " failed, will retry: " + t.getMessage());
+                }
+                finally {
+                    synchronized( launch ) {
+                        launch.busy = false;
+                        launch.accepted = accepted;
+                        launch.nextAction = now() + (step == Step.STARTING ? POLL_INTERVAL : RETRY_INTERVAL);
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean modify(@Nonnull Launch launch, @Nonnull Plan plan) throws Exception {
+        VirtualMachine vm = launch.support.lookupVirtualMachine(launch.serverId);
+
+        if( vm != null ) {
+            Map<String, String> tags = vm.getTags();
+            String cpuCount = tags.get("cpuCount");
+            String memory = tags.get("memory");
+
+            if( cpuCount != null && memory != null && Integer.parseInt(cpuCount) == plan.cpuCount && Integer.parseInt(memory) == plan.memoryInMb ) {
+                return true;
+            }
+        }
+        logger.info("Changing " + launch.serverId + " to " + plan.cpuCount + " CPU/" + plan.memoryInMb + "MB");
+        return launch.support.modify(launch.serverId, plan.cpuCount, plan.memoryInMb);
+    }
+
+    /**
+     * Moves to the next step the plan calls for. Must be called holding the lock on the launch.
+     */
+    private void next(@Nonnull Launch launch) {
+        Step step = launch.step;
+
+        if( step == Step.WAITING_FOR_DEPLOYMENT && launch.plan.cpuCount > 0 ) {
+            step = Step.MODIFYING;
+        }
+        else if( (step == Step.WAITING_FOR_DEPLOYMENT || step == Step.MODIFYING) && launch.plan.storageInGb > 0 ) {
+            step = Step.ADDING_STORAGE;
+        }
+        else if( step != Step.STARTING && launch.plan.start ) {
+            step = Step.STARTING;
+        }
+        else {
+            finish(launch, null);
+            return;
+        }
+        launch.step = step;
+        launch.stepStart = now();
+        launch.nextAction = 0L;
+        launch.accepted = false;
+        if( logger.isInfoEnabled() ) {
+            logger.info("Server " + launch.serverId + " is now " + step);
+        }
+        fireStepChanged(launch, step);
+    }
+
+    private void finish(@Nonnull Launch launch, @Nullable String failure) {
+        launch.step = (failure == null ? Step.COMPLETE : Step.FAILED);
+        if( launches.remove(launch.serverId, launch) ) {
+            launch.provider.release();
+        }
+        if( failure != null ) {
+            logger.error("Launch of " + launch.serverId + " failed: " + failure);
+        }
+        fireStepChanged(launch, launch.step);
+        for( LaunchListener listener : listeners ) {
+            try {
+                if( failure == null ) {
+                    listener.completed(launch.serverId);
+                }
+                else {
+                    listener.failed(launch.serverId, failure);
+                }
+            }
+            catch( Throwable t ) {
+                logger.warn("Launch listener failed: " + t.getMessage());
+            }
+        }
+    }
+
+    private void fireStepChanged(@Nonnull Launch launch, @Nonnull Step step) {
+        for( LaunchListener listener : listeners ) {
+            try {
+                listener.stepChanged(launch.serverId, step);
+            }
+            catch( Throwable t ) {
+                logger.warn("Launch listener failed: " + t.getMessage());
+            }
+        }
+    }
+}
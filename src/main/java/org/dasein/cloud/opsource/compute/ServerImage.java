@@ -29,12 +29,15 @@ import javax.annotation.Nullable;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.compute.*;
+import org.dasein.cloud.opsource.CallCache;
+import org.dasein.cloud.opsource.NegativeCache;
 import org.dasein.cloud.opsource.OpSource;
 import org.dasein.cloud.opsource.OpSourceMethod;
 import org.dasein.cloud.opsource.Param;
 
 import org.dasein.cloud.util.APITrace;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -88,6 +91,9 @@ public class ServerImage extends AbstractImageSupport {
     public MachineImage getImage(@Nonnull String imageId) throws CloudException, InternalException {
         APITrace.begin(provider, "Image.getImage");
         try {
+            if( NegativeCache.getInstance().isMissing(provider, "image", imageId) ) {
+                return null;
+            }
             //First check the pending images, because it is mostly being checked by customers
             ArrayList<MachineImage> list = (ArrayList<MachineImage>) listCustomerMachinePendingImages(null);
             for(MachineImage image : list){
@@ -110,6 +116,7 @@ public class ServerImage extends AbstractImageSupport {
                 }
             }
 
+            NegativeCache.getInstance().setMissing(provider, "image", imageId);
             return null;
         }
         finally {
@@ -216,7 +223,7 @@ public class ServerImage extends AbstractImageSupport {
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
 
-            if(method.parseRequestResult("Imaging", method.invoke(), "result", "resultDetail")){
+            if(method.parseRequestResult("Imaging", CallCache.getInstance().invokeChange(provider, method, "image"), "result", "resultDetail")){
                 //First check the pending images, because it is mostly being checked by customers
                 ArrayList<MachineImage> list = (ArrayList<MachineImage>) listCustomerMachinePendingImages(ImageFilterOptions.getInstance());
                 for(MachineImage image : list){
@@ -295,7 +302,7 @@ public class ServerImage extends AbstractImageSupport {
             logger.trace("ENTER: " + ServerImage.class.getName() + ".listOpSourceMachineImages()");
         }
 
-        ArrayList<MachineImage> list = new ArrayList<MachineImage>();
+        final ArrayList<MachineImage> list = new ArrayList<MachineImage>();
 
         /** Get OpSource public Image */
         HashMap<Integer, Param> parameters = new HashMap<Integer, Param>();
@@ -309,18 +316,16 @@ public class ServerImage extends AbstractImageSupport {
                 provider.buildUrl(null, false, parameters),
                 provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
 
-        Document doc = method.invoke();
-
-        NodeList matches = doc.getElementsByTagName(OpSource_IMAGE_TAG);
-        for( int i=0; i<matches.getLength(); i++ ) {
-            Node node = matches.item(i);
-
-            MachineImage image = toImage(node,false,false, "");
+        method.invoke(OpSource_IMAGE_TAG, new OpSourceMethod.ElementHandler() {
+            @Override
+            public void handleElement(@Nonnull Element element) throws CloudException, InternalException {
+                MachineImage image = toImage(element, false, false, "");
 
-            if( image != null ) {
-                list.add(image);
+                if( image != null ) {
+                    list.add(image);
+                }
             }
-        }
+        });
 
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER: " + ServerImage.class.getName() + ".listOpSourceMachineImages()");
@@ -356,12 +361,12 @@ public class ServerImage extends AbstractImageSupport {
 	 *	image/deployedWithSoftwareLabels/{location-id}
      */
     
-    private Iterable<MachineImage> listCustomerMachineDeployedImages(@Nullable ImageFilterOptions options) throws InternalException, CloudException {
+    private Iterable<MachineImage> listCustomerMachineDeployedImages(@Nullable final ImageFilterOptions options) throws InternalException, CloudException {
         if( logger.isTraceEnabled() ) {
         	logger.trace("ENTER: " + ServerImage.class.getName() + ".listCustomerMachineDeployedImages()");
         }
         try{
-	    	ArrayList<MachineImage> list = new ArrayList<MachineImage>();
+	    	final ArrayList<MachineImage> list = new ArrayList<MachineImage>();
 	    	
 	    	/** Get deployed Image */
 	        HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
@@ -374,18 +379,16 @@ public class ServerImage extends AbstractImageSupport {
 	    	parameters.put(2, param);   	
 	    
 	    	OpSourceMethod method = new OpSourceMethod(provider, provider.buildUrl(null, true, parameters),provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
-	    	Document doc = method.invoke();
-	        NodeList matches = doc.getElementsByTagName(DEPLOYOED_IMAGE_TAG);
-	        if(matches != null){
-	            for( int i=0; i<matches.getLength(); i++ ) {
-	                Node node = matches.item(i);            
-	                MachineImage image = toImage(node, true, false, "");
-	                
-	                if( image != null && (options == null || options.matches(image)) ) {
-	                	list.add(image);
-	                }
-	            }
-	        }
+	    	method.invoke(DEPLOYOED_IMAGE_TAG, new OpSourceMethod.ElementHandler() {
+                @Override
+                public void handleElement(@Nonnull Element element) throws CloudException, InternalException {
+                    MachineImage image = toImage(element, true, false, "");
+
+                    if( image != null && (options == null || options.matches(image)) ) {
+                        list.add(image);
+                    }
+                }
+            });
 	        return list;
         }finally{        	
 	        if( logger.isTraceEnabled() ) {
@@ -394,12 +397,12 @@ public class ServerImage extends AbstractImageSupport {
         }
     }
     
-    private Iterable<MachineImage> listCustomerMachinePendingImages(@Nullable ImageFilterOptions options) throws InternalException, CloudException {
+    private Iterable<MachineImage> listCustomerMachinePendingImages(@Nullable final ImageFilterOptions options) throws InternalException, CloudException {
         if( logger.isTraceEnabled() ) {
         	logger.trace("ENTER: " + ServerImage.class.getName() + ".listCustomerMachinePendingImages()");
         }
     	
-    	ArrayList<MachineImage> list = new ArrayList<MachineImage>();
+    	final ArrayList<MachineImage> list = new ArrayList<MachineImage>();
          
     	/** Get pending deployed Image */
         HashMap<Integer, Param> parameters = new HashMap<Integer, Param>();
@@ -415,18 +418,16 @@ public class ServerImage extends AbstractImageSupport {
     	OpSourceMethod method = new OpSourceMethod(provider,
     								provider.buildUrl(null, true, parameters),
     								provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-    	Document doc = method.invoke();
-        NodeList matches = doc.getElementsByTagName("PendingDeployImage");
-        if(matches != null){
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node node = matches.item(i);            
-                MachineImage image = toImage(node, true, true, "");
-                
+    	method.invoke("PendingDeployImage", new OpSourceMethod.ElementHandler() {
+            @Override
+            public void handleElement(@Nonnull Element element) throws CloudException, InternalException {
+                MachineImage image = toImage(element, true, true, "");
+
                 if( image != null && (options == null || options.matches(image)) ) {
-                	list.add(image);
+                    list.add(image);
                 }
             }
-        }
+        });
         if( logger.isTraceEnabled() ) {
         	logger.trace("EXIT: " + ServerImage.class.getName() + ".listCustomerMachinePendingImages()");
         }
@@ -434,10 +435,10 @@ public class ServerImage extends AbstractImageSupport {
         return list;
     }
 
-    public Iterable<MachineImage> listOpSourceMachineImages(@Nullable ImageFilterOptions options) throws InternalException, CloudException {
+    public Iterable<MachineImage> listOpSourceMachineImages(@Nullable final ImageFilterOptions options) throws InternalException, CloudException {
         APITrace.begin(provider, "Image.listOpSourceMachineImages");
         try {
-            ArrayList<MachineImage> list = new ArrayList<MachineImage>();
+            final ArrayList<MachineImage> list = new ArrayList<MachineImage>();
 
             /** Get OpSource public Image */
             HashMap<Integer, Param> parameters = new HashMap<Integer, Param>();
@@ -451,18 +452,16 @@ public class ServerImage extends AbstractImageSupport {
                                 provider.buildUrl(null, false, parameters),
                                 provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
 
-            Document doc = method.invoke();
-
-            NodeList matches = doc.getElementsByTagName(OpSource_IMAGE_TAG);
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node node = matches.item(i);
-
-                MachineImage image = toImage(node,false,false, "");
+            method.invoke(OpSource_IMAGE_TAG, new OpSourceMethod.ElementHandler() {
+                @Override
+                public void handleElement(@Nonnull Element element) throws CloudException, InternalException {
+                    MachineImage image = toImage(element, false, false, "");
 
-                if( image != null && (options == null || options.matches(image)) ) {
-                    list.add(image);
+                    if( image != null && (options == null || options.matches(image)) ) {
+                        list.add(image);
+                    }
                 }
-            }
+            });
 
             if( logger.isTraceEnabled() ) {
                 logger.trace("ENTER: " + ServerImage.class.getName() + ".listOpSourceMachineImages()");
@@ -507,7 +506,7 @@ public class ServerImage extends AbstractImageSupport {
             param = new Param(providerImageId, null);
             parameters.put(1, param);
             OpSourceMethod method = new OpSourceMethod(provider, provider.buildUrl(DELETE_IMAGE,true, parameters),provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-            method.requestResult("Removing image",method.invoke());
+            method.requestResult("Removing image",CallCache.getInstance().invokeChange(provider, method, "image"));
         }
         finally {
             APITrace.end();
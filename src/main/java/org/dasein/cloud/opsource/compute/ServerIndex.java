@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.compute;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.opsource.CallCache;
+import org.dasein.cloud.opsource.OpSource;
+
+/**
+ * Maps server name and VLAN to server ID for each account and region, as seen in the last complete server listing.
+ * Only IDs are kept, never the servers themselves, so a hit still reads the server fresh by ID; the index merely
+ * saves scanning for it. An index lives for <code>serverIndexTtl</code> milliseconds (10 seconds by default, 0
+ * disables it) and is dropped as soon as servers of the account change through {@link CallCache#invalidate}.
+ */
+class ServerIndex implements CallCache.InvalidationListener {
+    static private final long DEFAULT_TTL = 10000L;
+
+    static private final ServerIndex instance = new ServerIndex();
+
+    static {
+        CallCache.getInstance().addInvalidationListener(instance);
+    }
+
+    static @Nonnull ServerIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Collects the servers of one listing; the index is only replaced once the listing completed.
+     */
+    static class Builder {
+        private final long                    startedAt = System.currentTimeMillis();
+        private final HashMap<String, String> ids       = new HashMap<String, String>();
+        private final HashMap<String, Long>   created   = new HashMap<String, Long>();
+
+        void add(@Nonnull VirtualMachine vm) {
+            if( vm.getName() == null || vm.getProviderVlanId() == null ) {
+                return;
+            }
+            String key = getKey(vm.getName(), vm.getProviderVlanId());
+            Long previous = created.get(key);
+
+            // servers may share a name and VLAN while one of them is being deleted: keep the newest
+            if( previous == null || vm.getCreationTimestamp() >= previous ) {
+                ids.put(key, vm.getProviderVirtualMachineId());
+                created.put(key, vm.getCreationTimestamp());
+            }
+        }
+    }
+
+    static private class Index {
+        final String              account;
+        final Map<String, String> ids;
+        final long                expiresAt;
+
+        Index(String account, Map<String, String> ids, long expiresAt) {
+            this.account = account;
+            this.ids = ids;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Index> indexes     = new ConcurrentHashMap<String, Index>();
+    /** when servers of each account, or of every account under the empty key, last changed */
+    private final ConcurrentHashMap<String, Long>  invalidated = new ConcurrentHashMap<String, Long>();
+
+    private ServerIndex() { }
+
+    static private @Nonnull String getKey(@Nonnull String name, @Nonnull String vlanId) {
+        return vlanId + "|" + name;
+    }
+
+    static private @Nullable String getScope(@Nonnull OpSource provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx == null ? null : ctx.getAccountNumber() + "|" + ctx.getRegionId());
+    }
+
+    /**
+     * Replaces the index of the provider's account and region with the servers of a complete listing.
+     * @param provider the provider that listed the servers
+     * @param builder the servers listed
+     */
+    void publish(@Nonnull OpSource provider, @Nonnull Builder builder) {
+        String scope = getScope(provider);
+        long ttl = provider.getCustomLongProperty("serverIndexTtl", DEFAULT_TTL);
+
+        if( scope == null || ttl <= 0L ) {
+            return;
+        }
+        String account = provider.getContext().getAccountNumber();
+
+        // checked and published under the same lock as invalidated(), so a change cannot slip in between
+        synchronized( this ) {
+            // a change made while the listing was running may be missing from it
+            if( changedSince(account, builder.startedAt) || changedSince("", builder.startedAt) ) {
+                return;
+            }
+            indexes.put(scope, new Index(account, builder.ids, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    private boolean changedSince(@Nullable String account, long when) {
+        Long at = (account == null ? null : invalidated.get(account));
+
+        return (at != null && at >= when);
+    }
+
+    /**
+     * @param provider the provider looking up the server
+     * @param name the server name
+     * @param vlanId the VLAN of the server
+     * @return the ID of the server, or <code>null</code> if there is no fresh index or it does not hold the server
+     */
+    @Nullable String getServerId(@Nonnull OpSource provider, @Nonnull String name, @Nonnull String vlanId) {
+        String scope = getScope(provider);
+        Index index = (scope == null ? null : indexes.get(scope));
+
+        if( index == null ) {
+            return null;
+        }
+        if( index.expiresAt <= System.currentTimeMillis() ) {
+            indexes.remove(scope, index);
+            return null;
+        }
+        return index.ids.get(getKey(name, vlanId));
+    }
+
+    @Override
+    public synchronized void invalidated(@Nullable String accountNumber, @Nonnull String resource) {
+        if( !resource.equals(OpSource.SERVER_BASE_PATH) ) {
+            return;
+        }
+        invalidated.put(accountNumber == null ? "" : accountNumber, System.currentTimeMillis());
+
+        Iterator<Index> it = indexes.values().iterator();
+
+        while( it.hasNext() ) {
+            Index index = it.next();
+
+            if( accountNumber == null || accountNumber.equals(index.account) ) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -19,10 +19,13 @@
 package org.dasein.cloud.opsource.compute;
 
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -34,12 +37,14 @@ import org.dasein.cloud.compute.*;
 import org.dasein.cloud.dc.Region;
 import org.dasein.cloud.network.IPVersion;
 import org.dasein.cloud.network.RawAddress;
+import org.dasein.cloud.opsource.CallCache;
+import org.dasein.cloud.opsource.ListingStream;
+import org.dasein.cloud.opsource.NegativeCache;
 import org.dasein.cloud.opsource.OpSource;
 import org.dasein.cloud.opsource.OpSourceMethod;
+import org.dasein.cloud.opsource.PagedFetch;
 import org.dasein.cloud.opsource.Param;
 import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
-import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.Jiterator;
 import org.dasein.util.JiteratorPopulator;
@@ -47,8 +52,6 @@ import org.dasein.util.PopulatorThread;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Megabyte;
 import org.dasein.util.uom.storage.Storage;
-import org.dasein.util.uom.time.Day;
-import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -68,6 +71,12 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
     //static private final String Deployed_Server_Tag = "Server";
     static private final String Pending_Deployed_Server_Tag = "PendingDeployServer";
 
+    /** Servers read per page of a status listing */
+    static final int STATUS_PAGE_SIZE = 250;
+
+    /** Endpoints seen ignoring the name and network filters of server listings, with when that was last seen */
+    static private final ConcurrentHashMap<String, Long> unfilteredEndpoints = new ConcurrentHashMap<String, Long>();
+
     long waitTimeToAttempt = 30000L;
 
     private OpSource provider;
@@ -94,7 +103,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
                     provider.buildUrl("addLocalStorage",true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-            Document doc = method.invoke();
+            Document doc = CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH);
 
             return method.parseRequestResult("Attaching disk", doc , "result","resultDetail");
         }
@@ -117,7 +126,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl(START_VIRTUAL_MACHINE,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-            method.parseRequestResult("Booting vm",method.invoke(), "result", "resultDetail");
+            method.parseRequestResult("Booting vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH), "result", "resultDetail");
         }
         finally{
             APITrace.end();
@@ -136,7 +145,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl(CLEAN_VIRTUAL_MACHINE,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-            return method.parseRequestResult("Clean failed vm",method.invoke(),"result", "resultDetail");
+            return method.parseRequestResult("Clean failed vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH),"result", "resultDetail");
         }finally{
             APITrace.end();
         }
@@ -221,7 +230,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
                 OpSourceMethod method = new OpSourceMethod(provider,
                         provider.buildUrl(null, true, parameters),
                         provider.getBasicRequestParameters(OpSource.Content_Type_Value_Modify, "POST", requestBody));
-                success =  method.parseRequestResult("Alter vm", method.invoke(), "result", "resultDetail");
+                success =  method.parseRequestResult("Alter vm", CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH), "result", "resultDetail");
             }
 
             if(success){
@@ -245,27 +254,9 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
                         if(currentDisks.length > newDisks.length) throw new CloudException("Only scaling up is supported for disk alterations.");
                         else{
                             try{
-                                final int newDiskSize = Integer.parseInt(newDisks[newDisks.length-1]);
-                                final String fServerId = serverId;
-                                Thread t = new Thread(){
-                                    public void run(){
-                                        provider.hold();
-                                        try{
-                                            try{
-                                                addLocalStorage(fServerId, newDiskSize);
-                                            }
-                                            catch (Throwable th){
-                                                logger.debug("Alter VM failed while adding storage. CPU and RAM alteration may have been sucessful.");
-                                            }
-                                        }
-                                        finally {
-                                            provider.release();
-                                        }
-                                    }
-                                };
-                                t.setName("Alter OpSource VM: " + vm.getProviderVirtualMachineId());
-                                t.setDaemon(true);
-                                t.start();
+                                int newDiskSize = Integer.parseInt(newDisks[newDisks.length-1]);
+
+                                LaunchOrchestrator.getInstance().submit(this, provider, serverId, new LaunchOrchestrator.Plan(-1, -1, newDiskSize, false));
                             }
                             catch(NumberFormatException ex){
                                 throw new CloudException("Invalid format for HDD in product description.");
@@ -282,42 +273,25 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
         }
     }
 
-    private void addLocalStorage(String serverId, int storageSize){
+    /**
+     * Asks for local storage to be added to a server, once; {@link LaunchOrchestrator} retries as needed.
+     * @param serverId the server to change
+     * @param storageSize the size of the storage to add, in GB
+     * @return true if the change was accepted
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred calling the API
+     */
+    boolean addLocalStorage(@Nonnull String serverId, int storageSize) throws InternalException, CloudException {
         HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
         Param param = new Param(OpSource.SERVER_BASE_PATH, null);
         parameters.put(0, param);
         param = new Param(serverId, null);
         parameters.put(1, param);
 
-        long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
-        Exception currentException = null;
-        while( timeout > System.currentTimeMillis() ) {
-            try{
-                OpSourceMethod method = new OpSourceMethod(provider,
-                        provider.buildUrl(ADD_LOCAL_STORAGE + "&amount=" + storageSize, true, parameters),
-                        provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
-                if(method.parseRequestResult("Alter vm - HDD", method.invoke(), "result", "resultDetail")){
-                    currentException = null;
-                    break;
-                }
-                else{
-                    currentException = new CloudException("Modification failed without explanation");
-                }
-            }
-            catch (Exception ex){
-                logger.warn("Modification of local storage failed: " + ex.getMessage());
-                currentException = ex;
-            }
-            try { Thread.sleep(30000L); }
-            catch( InterruptedException ignore ) { }
-        }
-        if( currentException == null ) {
-            logger.info("Modification succeeded");
-        }
-        else {
-            logger.error("Server could not be modified: " + currentException.getMessage());
-            currentException.printStackTrace();
-        }
+        OpSourceMethod method = new OpSourceMethod(provider,
+                provider.buildUrl(ADD_LOCAL_STORAGE + "&amount=" + storageSize, true, parameters),
+                provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+        return method.parseRequestResult("Alter vm - HDD", CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH), "result", "resultDetail");
     }
 
     @Nullable
@@ -341,9 +315,9 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
         APITrace.begin(getProvider(), "VM.getProduct");
         try {
             for( Architecture architecture : Architecture.values() ) {
-                for( VirtualMachineProduct product : listProducts(architecture) ) {
+                for( VirtualMachineProduct product : listCachedProducts(architecture) ) {
                     if( product.getProviderProductId().equals(productId) ) {
-                        return product;
+                        return copy(product);
                     }
                 }
             }
@@ -365,6 +339,32 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
     @Override
     public VirtualMachine getVirtualMachine(@Nonnull String serverId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.getVirtualMachine");
+        try {
+            if( NegativeCache.getInstance().isMissing(provider, OpSource.SERVER_BASE_PATH, serverId) ) {
+                return null;
+            }
+            VirtualMachine vm = lookupVirtualMachine(serverId);
+
+            if( vm == null ) {
+                NegativeCache.getInstance().setMissing(provider, OpSource.SERVER_BASE_PATH, serverId);
+            }
+            return vm;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Looks a server up without consulting the {@link NegativeCache}, for callers following a server they know exists
+     * (e.g. one they just deployed) that must not be told it is gone because an earlier lookup missed it.
+     * @param serverId the server sought
+     * @return the server, or <code>null</code> if the API does not know it
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred calling the API
+     */
+    @Nullable VirtualMachine lookupVirtualMachine(@Nonnull String serverId) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.lookupVirtualMachine");
         try {
             HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
             Param param = new Param(OpSource.SERVER_WITH_STATE, null);
@@ -378,7 +378,11 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
 
             NodeList  matches = doc.getElementsByTagName("serverWithState");
             if(matches != null){
-                return toVirtualMachineWithStatus(matches.item(0), "");
+                VirtualMachine vm = toVirtualMachineWithStatus(matches.item(0), "");
+
+                if( vm != null ) {
+                    return vm;
+                }
             }
             if( logger.isDebugEnabled() ) {
                 logger.debug("Can not identify VM with ID " + serverId);
@@ -395,16 +399,73 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             logger.debug("Identify VM with VM Name " + name);
         }
 
-        //ArrayList<VirtualMachine> list = (ArrayList<VirtualMachine>)listVirtualMachines();
-        for(VirtualMachine vm : listVirtualMachines(true) ){
+        String serverId = ServerIndex.getInstance().getServerId(provider, name, providerVlanId);
+
+        if( serverId != null ) {
+            VirtualMachine vm = getVirtualMachine(serverId);
+
+            if( vm != null && name.equals(vm.getName()) && providerVlanId.equals(vm.getProviderVlanId()) ) {
+                return vm;
+            }
+        }
+        String endpoint = String.valueOf(provider.getContext().getEndpoint());
+        Long unfilteredAt = unfilteredEndpoints.get(endpoint);
+
+        // an endpoint that ignored the filters is scanned for serverFilterRetry ms (1 hour by default) before they are tried again
+        if( unfilteredAt == null || System.currentTimeMillis() - unfilteredAt > provider.getCustomLongProperty("serverFilterRetry", CalendarWrapper.HOUR) ) {
+            HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+            Param param = new Param(OpSource.SERVER_WITH_STATE, null);
+            parameters.put(0, param);
+
+            // let the API find the newest server with this name on this VLAN
+            String query;
+
             try{
-                if(vm != null && vm.getName().equals(name) && vm.getProviderVlanId().equals(providerVlanId)){
-                    return vm;
+                query = "name=" + URLEncoder.encode(name, "UTF-8") + "&networkId=" + URLEncoder.encode(providerVlanId, "UTF-8");
+            }
+            catch(UnsupportedEncodingException e){
+                throw new InternalException(e);
+            }
+            OpSourceMethod method = new OpSourceMethod(provider,
+                    getServerPageUrl(parameters, 1, 1, true) + "&" + query,
+                    provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+            NodeList matches = method.invoke().getElementsByTagName("serverWithState");
+
+            if( matches.getLength() < 1 ) {
+                unfilteredEndpoints.remove(endpoint);
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Can not identify VM with VM Name " + name);
                 }
+                return null;
             }
-            catch(Exception ex){
-                logger.debug(ex.getMessage());
+            VirtualMachine match = toVirtualMachineWithStatus(matches.item(0), "");
+
+            if( match != null && name.equals(match.getName()) && providerVlanId.equals(match.getProviderVlanId()) ) {
+                unfilteredEndpoints.remove(endpoint);
+                return match;
             }
+            // the filters were not applied; later lookups against this endpoint skip straight to the scan for a while
+            if( unfilteredEndpoints.put(endpoint, System.currentTimeMillis()) == null ) {
+                logger.warn("Server filters ignored by " + endpoint + ", scanning all servers for lookups by name");
+            }
+        }
+        // stop fetching pages as soon as the server is found
+        ListingStream<VirtualMachine> servers = streamVirtualMachines(true);
+
+        try{
+            for(VirtualMachine vm : servers ){
+                try{
+                    if(vm != null && vm.getName().equals(name) && vm.getProviderVlanId().equals(providerVlanId)){
+                        return vm;
+                    }
+                }
+                catch(Exception ex){
+                    logger.debug(ex.getMessage());
+                }
+            }
+        }
+        finally{
+            servers.close();
         }
 
         /*
@@ -591,27 +652,8 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             }
             server.setRootPassword(password);
 
-            Thread t = new Thread() {
-                public void run() {
-                    provider.hold();
-                    try {
-                        try {
-                            //configure(server, name, currentCPU, currentMemory, currentDisk, targetCPU, targetMemory, targetDisk);
-                            configure(server, name, withVlanId, currentCPU, currentMemory, currentDisk, targetCPU, targetMemory);
-                        }
-                        catch( Throwable t ) {
-                            logger.error("Failed to complete configuration of " + server.getProviderVirtualMachineId() + " in OpSource: " + t.getMessage());
-                            t.printStackTrace();
-                        }
-                    }
-                    finally {
-                        provider.release();
-                    }
-                }
-            };
-            t.setName("Configure OpSource VM " + server.getProviderVirtualMachineId());
-            t.setDaemon(true);
-            t.start();
+            // CPU and memory are changed and the server started in the background, see LaunchOrchestrator
+            LaunchOrchestrator.getInstance().submit(this, provider, server.getProviderVirtualMachineId(), new LaunchOrchestrator.Plan(targetCPU, targetMemory, 0, true));
 
             return server;
         }
@@ -620,156 +662,6 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
         }
     }
 
-    //private void configure(VirtualMachine server, String name, int currentCPU, int currentMemory, int currentDisk, int targetCPU, int targetMemory, int targetDisk) {
-    private void configure(VirtualMachine server, String name, String providerVlanId, int currentCPU, int currentMemory, int currentDisk, int targetCPU, int targetMemory) {
-        APITrace.begin(getProvider(), "VM.configure");
-        try {
-            if( logger.isInfoEnabled() ) {
-                logger.info("Configuring " + server.getName() + " [#" + server.getProviderVirtualMachineId() + "] - " + server.getCurrentState());
-            }
-            if( currentCPU != targetCPU || currentMemory != targetMemory ) {
-                if( logger.isInfoEnabled() ) {
-                    logger.info("Need to reconfigure CPU and/or memory");
-                }
-                /** Modify server to target cpu and memory */
-
-                /** VM has finished deployment before continuing, therefore wait 15s */
-                try {
-                    server = getVirtualMachineByNameAndVlan(name, providerVlanId);
-                }
-                catch( Exception e ) {
-                    logger.warn("Unable to load server for configuration: " + e.getMessage());
-                }
-                if( server == null ) {
-                    logger.error("Server disappeared while waiting for deployment to complete");
-                    return;
-                }
-                currentCPU = Integer.valueOf((String) server.getTag("cpuCount"));
-                currentMemory = Integer.valueOf((String) server.getTag("memory"));
-
-                if( currentCPU != targetCPU || currentMemory != targetMemory ) {
-                    //long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
-                    long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 90L);
-
-                    Exception currentException = null;
-
-                    logger.info("Beginning modification process...");
-                    while( timeout > System.currentTimeMillis() ) {
-                        try {
-                            if( modify(server.getProviderVirtualMachineId(), targetCPU, targetMemory) ) {
-                                currentException = null;
-                                break;
-                            }
-                            else {
-                                currentException = new CloudException("Modification failed without explanation");
-                            }
-                        }
-                        catch( Exception e ) {
-                            logger.warn("Modification of CPU and Memory failed: " + e.getMessage());
-                            currentException = e;
-                        }
-                        try { Thread.sleep(30000L); }
-                        catch( InterruptedException ignore ) { }
-                    }
-                    if( currentException == null ) {
-                        logger.info("Modification of CPU and Memory succeeded");
-                    }
-                    else {
-                        logger.error("Server could not be modified: " + currentException.getMessage());
-                        currentException.printStackTrace();
-                    }
-                }
-            }
-            /** Third Step: attach the disk */
-        /* No longer attaching disks on launch
-            if( targetDisk != currentDisk) {
-                if( logger.isInfoEnabled() ) {
-                    logger.info("Need to reconfigure for disk: " + currentDisk + " vs " + targetDisk);
-                }
-                long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
-                Exception currentException = null;
-
-                // Update usually take another 6 mins
-                while( System.currentTimeMillis() < timeout ) {
-                    try {
-                        server = getVirtualMachineByName(name);
-                        if( server == null ) {
-                            logger.error("Lost access to server while attempting to attach disk");
-                            return;
-                        }
-                    }
-                    catch( Exception e ) {
-                        logger.warn("Unable to load the server's current state, praying the old one works: " + e.getMessage());
-                    }
-
-                    if( server.getProductId() != null ) {
-                        try {
-                            VirtualMachineProduct prd = getProduct(server.getProductId());
-
-                            if( prd != null && prd.getRootVolumeSize().intValue() == targetDisk ) {
-                                if( logger.isInfoEnabled() ) {
-                                    logger.info("Target match, aborting attachment for " + server.getProviderVirtualMachineId());
-                                }
-                                break;
-                            }
-                            if( attachDisk(server.getProviderVirtualMachineId(), targetDisk) ){
-                                if( logger.isInfoEnabled() ) {
-                                    logger.info("Attach succeeded for " + server.getProviderVirtualMachineId());
-                                }
-                                break;
-                            }
-                        }
-                        catch( Exception e ) {
-                            logger.warn("Error during attach: " + e.getMessage());
-                            currentException = e;
-                        }
-                    }
-                    try { Thread.sleep(30000L); }
-                    catch( InterruptedException ignore ) { }
-                }
-                if( currentException != null ) {
-                    logger.error("Unable to attach disk: " + currentException.getMessage());
-                    currentException.printStackTrace();
-                }
-            }
-            */
-            /**  Fourth Step: boot the server */
-            /** Update usually take another 10 mins, wait 5 minutes first */
-            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 15L);
-
-            if( logger.isInfoEnabled() ) {
-                logger.info("Booting " + server.getProviderVirtualMachineId());
-            }
-            while( System.currentTimeMillis() < timeout ) {
-                try {
-                    /** Begin to start the VM */
-                    server = getVirtualMachineByNameAndVlan(name, providerVlanId);
-                    if( server == null ) {
-                        logger.error("Server disappeared while performing bootup");
-                        return;
-                    }
-                    if( server.getCurrentState().equals(VmState.RUNNING)) {
-                        if( logger.isInfoEnabled() ) {
-                            logger.info(server.getProviderVirtualMachineId() + " is now RUNNING");
-                        }
-                        return;
-                    }
-                    else if( server.getCurrentState().equals(VmState.STOPPED) ) {
-                        start(server.getProviderVirtualMachineId());
-                    }
-                }
-                catch( Exception e ) {
-                    logger.warn("Error during boot process, maybe retry?: " + e.getMessage());
-                }
-                try { Thread.sleep(15000L); }
-                catch( InterruptedException ignore ) { }
-            }
-        }
-        finally {
-            APITrace.end();
-        }
-    }
-
     private boolean deploy(@Nonnull String imageId, String inZoneId, String name, String description, String withVlanId, String adminPassword, String isStart) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.deploy");
         try {
@@ -827,7 +719,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
-            return method.parseRequestResult("Deploying server",method.invoke(), "result", "resultDetail");
+            return method.parseRequestResult("Deploying server",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH), "result", "resultDetail");
         }
         finally {
             APITrace.end();
@@ -862,93 +754,131 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
     public @Nonnull Iterable<VirtualMachineProduct> listProducts(@Nonnull Architecture architecture) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.listProducts");
         try {
-            Cache<VirtualMachineProduct> cache = Cache.getInstance(provider, "vmProduct" + architecture.name(), VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Iterable<VirtualMachineProduct> cached = cache.get(getContext());
+            ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
 
-            if( cached != null ) {
-                return cached;
+            for( VirtualMachineProduct product : listCachedProducts(architecture) ) {
+                products.add(copy(product));
             }
-            List<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+            return products;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            VirtualMachineProduct product;
-            /** OpSource enables any combination of CPU (1 -8 for East 1-4 or west) and RAM (1 - 64G for East and 1-32G for west) */
+    /**
+     * @return the products as held by the {@link CallCache}, shared by every caller and never to be handed out
+     */
+    private @Nonnull List<VirtualMachineProduct> listCachedProducts(@Nonnull Architecture architecture) throws InternalException, CloudException {
+        HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+        Param param = new Param(OpSource.LOCATION_BASE_PATH, null);
+        parameters.put(0, param);
+
+        return CallCache.getInstance().getList("vmProduct", architecture.name(), provider, provider.buildUrl(null,true, parameters), new CallCache.Loader<VirtualMachineProduct>() {
+            @Override
+            public List<VirtualMachineProduct> load(@Nonnull CallCache.ResponseSize read) throws CloudException, InternalException {
+                // derived from the cached computing power limits, which are measured on their own
+                return loadProducts();
+            }
+        });
+    }
 
-            //int maxCPUNum = 0, maxMemInGB =0,  diskSizeInGB = 0, maxMemInMB = 0;
-            int maxCPUNum = 0, maxMemInGB =0,  maxMemInMB = 0;
+    static private @Nonnull VirtualMachineProduct copy(@Nonnull VirtualMachineProduct product) {
+        VirtualMachineProduct p = new VirtualMachineProduct();
 
-            /** Obtain the maximum CPU and Memory for each data center */
-            String regionId = provider.getDefaultRegionId();
-            HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
-            Param param = new Param(OpSource.LOCATION_BASE_PATH, null);
-            parameters.put(0, param);
+        p.setProviderProductId(product.getProviderProductId());
+        p.setName(product.getName());
+        p.setDescription(product.getDescription());
+        p.setCpuCount(product.getCpuCount());
+        if( product.getRamSize() != null ) {
+            p.setRamSize(product.getRamSize());
+        }
+        if( product.getRootVolumeSize() != null ) {
+            p.setRootVolumeSize(product.getRootVolumeSize());
+        }
+        p.setStandardHourlyRate(product.getStandardHourlyRate());
+        return p;
+    }
 
-            OpSourceMethod method = new OpSourceMethod(provider,
-                    provider.buildUrl(null,true, parameters),
-                    provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
+    private @Nonnull List<VirtualMachineProduct> loadProducts() throws InternalException, CloudException {
+        List<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
 
-            Document doc = method.invoke();
+        VirtualMachineProduct product;
+        /** OpSource enables any combination of CPU (1 -8 for East 1-4 or west) and RAM (1 - 64G for East and 1-32G for west) */
 
-            String sNS = "";
-            try{
-                sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
-            }
-            catch(IndexOutOfBoundsException ignore){
-                // ignore
-            }
-            NodeList blocks = doc.getElementsByTagName(sNS + "datacenterWithLimits");
+        //int maxCPUNum = 0, maxMemInGB =0,  diskSizeInGB = 0, maxMemInMB = 0;
+        int maxCPUNum = 0, maxMemInGB =0,  maxMemInMB = 0;
 
-            if(blocks != null){
-                for(int i=0; i< blocks.getLength();i++){
-                    Node item = blocks.item(i);
+        /** Obtain the maximum CPU and Memory for each data center */
+        String regionId = provider.getDefaultRegionId();
+        HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+        Param param = new Param(OpSource.LOCATION_BASE_PATH, null);
+        parameters.put(0, param);
 
-                    RegionComputingPower r = toRegionComputingPower(item, sNS);
-                    if( r.getProviderRegionId().equals(regionId)){
-                        maxCPUNum = r.getMaxCPUNum();
-                        maxMemInMB = r.getMaxMemInMB();
+        List<RegionComputingPower> limits = CallCache.getInstance().getAPICall(OpSource.LOCATION_BASE_PATH, "computingPower", provider, parameters, provider.buildUrl(null,true, parameters), new CallCache.Parser<RegionComputingPower>() {
+            @Override
+            public @Nonnull List<RegionComputingPower> parse(@Nonnull Document doc) {
+                ArrayList<RegionComputingPower> list = new ArrayList<RegionComputingPower>();
+                String sNS = "";
+                try{
+                    sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
+                }
+                catch(IndexOutOfBoundsException ignore){
+                    // ignore
+                }
+                NodeList blocks = doc.getElementsByTagName(sNS + "datacenterWithLimits");
+
+                if(blocks != null){
+                    for(int i=0; i< blocks.getLength();i++){
+                        list.add(toRegionComputingPower(blocks.item(i), sNS));
                     }
                 }
+                return list;
+            }
+        });
+
+        for( RegionComputingPower r : limits ){
+            if( r.getProviderRegionId().equals(regionId)){
+                maxCPUNum = r.getMaxCPUNum();
+                maxMemInMB = r.getMaxMemInMB();
             }
+        }
 
-            for( int disk = 0 ; disk < 6; disk ++ ){
-                //diskSizeInGB = disk * 50;
+        for( int disk = 0 ; disk < 6; disk ++ ){
+            //diskSizeInGB = disk * 50;
+
+            for(int cpuNum =1;cpuNum <= maxCPUNum;cpuNum ++){
+                /**
+                 * Default cpuNum = 1, 2, max ram = 8
+                 * cpuNum = 3, 4, min ram 4, max ram = 32
+                 * cpuNum = 1, 2, max ram = 8
+                 */
+                int ramInMB = 1024*cpuNum;
+                if(cpuNum <=2){
+                    ramInMB = 1024;
+                }
+                while((ramInMB/1024) <= 4*cpuNum && ramInMB <=  maxMemInMB){
+                    product = new VirtualMachineProduct();
+                    //product.setProviderProductId(cpuNum + ":" + ramInMB + ":" + diskSizeInGB);
+                    product.setProviderProductId(cpuNum + ":" + ramInMB);
+                    //product.setName(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM/" + diskSizeInGB + " GB Disk)");
+                    product.setName(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM)");
+                    //product.setDescription(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM/" + diskSizeInGB + " GB Disk)");
+                    product.setDescription(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM)");
+                    product.setRamSize(new Storage<Megabyte>(ramInMB, Storage.MEGABYTE));
+                    product.setCpuCount(cpuNum);
+                    product.setRootVolumeSize(new Storage<Gigabyte>(10, Storage.GIGABYTE));
+                    products.add(product);
 
-                for(int cpuNum =1;cpuNum <= maxCPUNum;cpuNum ++){
-                    /**
-                     * Default cpuNum = 1, 2, max ram = 8
-                     * cpuNum = 3, 4, min ram 4, max ram = 32
-                     * cpuNum = 1, 2, max ram = 8
-                     */
-                    int ramInMB = 1024*cpuNum;
                     if(cpuNum <=2){
-                        ramInMB = 1024;
-                    }
-                    while((ramInMB/1024) <= 4*cpuNum && ramInMB <=  maxMemInMB){
-                        product = new VirtualMachineProduct();
-                        //product.setProviderProductId(cpuNum + ":" + ramInMB + ":" + diskSizeInGB);
-                        product.setProviderProductId(cpuNum + ":" + ramInMB);
-                        //product.setName(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM/" + diskSizeInGB + " GB Disk)");
-                        product.setName(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM)");
-                        //product.setDescription(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM/" + diskSizeInGB + " GB Disk)");
-                        product.setDescription(" (" + cpuNum + " CPU/" + ramInMB + " MB RAM)");
-                        product.setRamSize(new Storage<Megabyte>(ramInMB, Storage.MEGABYTE));
-                        product.setCpuCount(cpuNum);
-                        product.setRootVolumeSize(new Storage<Gigabyte>(10, Storage.GIGABYTE));
-                        products.add(product);
-
-                        if(cpuNum <=2){
-                            ramInMB = ramInMB + 1024;
-                        }else{
-                            ramInMB = ramInMB + ramInMB;
-                        }
+                        ramInMB = ramInMB + 1024;
+                    }else{
+                        ramInMB = ramInMB + ramInMB;
                     }
                 }
             }
-            cache.put(getContext(), products);
-            return products;
-        }
-        finally {
-            APITrace.end();
         }
+        return products;
     }
 
     @Override
@@ -962,23 +892,74 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
     @Nonnull
     @Override
     public Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
-        ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
-        for(VirtualMachine vm : listVirtualMachines()){
-            ResourceStatus status = new ResourceStatus(vm.getProviderVirtualMachineId(), vm.getCurrentState());
-            list.add(status);
+        APITrace.begin(getProvider(), "VM.listVirtualMachineStatus");
+        try {
+            final ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
+            final HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+            Param param = new Param(OpSource.SERVER_WITH_STATE, null);
+            parameters.put(0, param);
+
+            // only the ID and state of each server are read, no full VirtualMachine is built
+            new PagedFetch<ResourceStatus>(provider, "serverWithState", STATUS_PAGE_SIZE) {
+                @Override
+                protected @Nonnull String getUrl(int pageNumber, int pageSize) throws CloudException, InternalException {
+                    return getServerPageUrl(parameters, pageNumber, pageSize, false);
+                }
+
+                @Override
+                protected @Nullable ResourceStatus toItem(@Nonnull Element element) throws CloudException, InternalException {
+                    return toServerStatus(element);
+                }
+            }.fetch(new PagedFetch.Sink<ResourceStatus>() {
+                @Override
+                public void push(@Nonnull ResourceStatus item) {
+                    list.add(item);
+                }
+            });
+            return list;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Counts the servers in the current region by asking for a page of a single server, whose <code>totalCount</code>
+     * tells how many there are.
+     * @return the number of servers, or -1 if the API does not say
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred calling the API
+     */
+    int countVirtualMachines() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.countVirtualMachines");
+        try {
+            HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+            Param param = new Param(OpSource.SERVER_WITH_STATE, null);
+            parameters.put(0, param);
+
+            OpSourceMethod method = new OpSourceMethod(provider,
+                    getServerPageUrl(parameters, 1, 1, false),
+                    provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+            Document doc = method.invoke();
+            String total = (doc == null ? "" : doc.getDocumentElement().getAttribute("totalCount"));
+
+            try {
+                return Integer.parseInt(total.trim());
+            }
+            catch( NumberFormatException e ) {
+                return -1;
+            }
+        }
+        finally {
+            APITrace.end();
         }
-        return list;
     }
 
     public @Nonnull Iterable<VirtualMachine> listVirtualMachines(final boolean withOrdering) throws InternalException, CloudException {
         PopulatorThread<VirtualMachine> populator = new PopulatorThread<VirtualMachine>(new JiteratorPopulator<VirtualMachine>() {
             @Override
             public void populate(@Nonnull Jiterator<VirtualMachine> iterator) throws Exception {
-                HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
-                Param param = new Param(OpSource.SERVER_WITH_STATE, null);
-                parameters.put(0, param);
-
-                listPage(iterator, 1, 250, parameters, withOrdering);
+                listServers(iterator, withOrdering);
             }
         });
 
@@ -988,71 +969,71 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
 
     @Override
     public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        PopulatorThread<VirtualMachine> populator = new PopulatorThread<VirtualMachine>(new JiteratorPopulator<VirtualMachine>() {
-            @Override
-            public void populate(@Nonnull Jiterator<VirtualMachine> iterator) throws Exception {
-                HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
-                Param param = new Param(OpSource.SERVER_WITH_STATE, null);
-                parameters.put(0, param);
+        return listVirtualMachines(false);
+    }
 
-                listPage(iterator, 1, 250, parameters, false);
+    /**
+     * Lists the servers in the current region as they are read, holding a bounded number of them in memory. Unlike
+     * {@link #listVirtualMachines()} the listing can be iterated only once, and it must be closed by the caller, which
+     * is why it is reserved for callers within this package that may stop before the end.
+     * @param withOrdering true to list newest servers first, skipping servers being deleted
+     * @return the servers, to be iterated once and then closed
+     */
+    @Nonnull ListingStream<VirtualMachine> streamVirtualMachines(final boolean withOrdering) {
+        return new ListingStream<VirtualMachine>(provider, "opsource-servers", new ListingStream.Producer<VirtualMachine>() {
+            @Override
+            public void produce(@Nonnull PagedFetch.Sink<VirtualMachine> sink) throws CloudException, InternalException {
+                listServers(sink, withOrdering);
             }
         });
-
-        populator.populate();
-        return populator.getResult();
     }
 
-    private void listPage(final Jiterator<VirtualMachine> iterator, final int pageNumber, final int pageSize, final HashMap<Integer,Param> parameters, final boolean withOrdering) throws CloudException, InternalException {
-        boolean completeList = false;
-        String sortAndOrder = "";
-        if(withOrdering){
-            sortAndOrder = "&orderBy=created.desc&state=PENDING_ADD&state=NORMAL&state=PENDING_CHANGE";
-        }
-
-        OpSourceMethod method = new OpSourceMethod(provider,
-                provider.buildUrl("pageSize=" + pageSize + "&pageNumber=" + pageNumber + "&location=" + provider.getContext().getRegionId() + sortAndOrder, true, parameters),
-                provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+    private void listServers(@Nonnull final Jiterator<VirtualMachine> iterator, boolean withOrdering) throws CloudException, InternalException {
+        listServers(new PagedFetch.Sink<VirtualMachine>() {
+            @Override
+            public void push(@Nonnull VirtualMachine item) {
+                iterator.push(item);
+            }
+        }, withOrdering);
+    }
 
-        Document doc = method.invoke();
-        NodeList headMatches = doc.getElementsByTagName("ServersWithState");
-        Collection<VirtualMachine> next = null;
+    private void listServers(@Nonnull final PagedFetch.Sink<VirtualMachine> sink, boolean withOrdering) throws CloudException, InternalException {
+        HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+        Param param = new Param(OpSource.SERVER_WITH_STATE, null);
+        parameters.put(0, param);
 
-        if(headMatches != null){
+        // a complete listing indexes servers by name and VLAN for getVirtualMachineByNameAndVlan()
+        final ServerIndex.Builder index = new ServerIndex.Builder();
 
-            int currentPageSize = Integer.parseInt(headMatches.item(0).getAttributes().getNamedItem("pageCount").getNodeValue());
+        listPages(new PagedFetch.Sink<VirtualMachine>() {
+            @Override
+            public void push(@Nonnull VirtualMachine item) throws CloudException, InternalException {
+                index.add(item);
+                sink.push(item);
+            }
+        }, 250, parameters, withOrdering);
+        ServerIndex.getInstance().publish(provider, index);
+    }
 
-            if( currentPageSize >= pageSize ) {
-                PopulatorThread<VirtualMachine> populator = new PopulatorThread<VirtualMachine>(new JiteratorPopulator<VirtualMachine>() {
-                    @Override
-                    public void populate(@Nonnull Jiterator<VirtualMachine> ignored) throws Exception {
-                        listPage(iterator, pageNumber+1, pageSize, parameters, withOrdering);
-                    }
-                });
+    private @Nonnull String getServerPageUrl(@Nonnull HashMap<Integer,Param> parameters, int pageNumber, int pageSize, boolean withOrdering) throws CloudException, InternalException {
+        String sortAndOrder = (withOrdering ? "&orderBy=created.desc&state=PENDING_ADD&state=NORMAL&state=PENDING_CHANGE" : "");
 
-                populator.populate();
-                next = populator.getResult();
-            }
-        }
-        NodeList  matches = doc.getElementsByTagName("serverWithState");
+        return provider.buildUrl("pageSize=" + pageSize + "&pageNumber=" + pageNumber + "&location=" + provider.getContext().getRegionId() + sortAndOrder, true, parameters);
+    }
 
-        if(matches != null){
-            for(int i=0;i<matches.getLength();i++){
-                VirtualMachine vm = toVirtualMachineWithStatus(matches.item(i), "");
-                if(vm != null) {
-                    iterator.push(vm);
-                }
+    private void listPages(@Nonnull PagedFetch.Sink<VirtualMachine> sink, int pageSize, @Nonnull final HashMap<Integer,Param> parameters, final boolean withOrdering) throws CloudException, InternalException {
+        // the pages after the first are fetched concurrently and pushed in order
+        new PagedFetch<VirtualMachine>(provider, "serverWithState", pageSize) {
+            @Override
+            protected @Nonnull String getUrl(int pageNumber, int pageSize) throws CloudException, InternalException {
+                return getServerPageUrl(parameters, pageNumber, pageSize, withOrdering);
             }
-        }
-        if( next != null ) {
-            // don't return from this method until ALL results from the next page are done
-            Iterator<VirtualMachine> it = next.iterator();
 
-            while( it.hasNext() ) {
-                it.next();
+            @Override
+            protected @Nullable VirtualMachine toItem(@Nonnull Element element) throws CloudException, InternalException {
+                return toVirtualMachineWithStatus(element, "");
             }
-            // we're done, it's done -> done, done
-        }
+        }.fetch(sink);
     }
 
     /*
@@ -1163,7 +1144,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
     }
 
 	/** Modify VM with the cpu and memory */
-	private boolean modify(String serverId, int cpuCount, int memoryInMb ) throws InternalException, CloudException {
+	boolean modify(String serverId, int cpuCount, int memoryInMb ) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.modify");
         try{
             HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
@@ -1180,7 +1161,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Modify, "POST", requestBody));
-            return method.parseRequestResultNoError("Modify vm",method.invoke(), "result", "resultDetail");
+            return method.parseRequestResultNoError("Modify vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH), "result", "resultDetail");
         }
         finally {
             APITrace.end();
@@ -1202,7 +1183,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
                 OpSourceMethod method = new OpSourceMethod(provider,
                         provider.buildUrl(PAUSE_VIRTUAL_MACHINE,true, parameters),
                         provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-                method.parseRequestResult("Pausing vm",method.invoke(),"result","resultDetail");
+                method.parseRequestResult("Pausing vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH),"result","resultDetail");
             }
             else{
                 HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
@@ -1214,7 +1195,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
                 OpSourceMethod method = new OpSourceMethod(provider,
                         provider.buildUrl(HARD_STOP_VIRTUAL_MACHINE,true, parameters),
                         provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
-                method.parseRequestResult("Stopping vm",method.invoke(),"result","resultDetail");
+                method.parseRequestResult("Stopping vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH),"result","resultDetail");
             }
         }
         finally {
@@ -1236,7 +1217,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl(REBOOT_VIRTUAL_MACHINE,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-            method.parseRequestResult("Rebooting vm",method.invoke(),"result","resultDetail");
+            method.parseRequestResult("Rebooting vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH),"result","resultDetail");
         }
         finally {
             APITrace.end();
@@ -1433,7 +1414,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
         OpSourceMethod method = new OpSourceMethod(provider,
                 provider.buildUrl(DESTROY_VIRTUAL_MACHINE,true, parameters),
                 provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-        return method.requestResultCode("Terminating vm",method.invoke(),"resultCode");
+        return method.requestResultCode("Terminating vm",CallCache.getInstance().invokeChange(provider, method, OpSource.SERVER_BASE_PATH),"resultCode");
     }
 
     private String translateZone(String zoneId) throws InternalException, CloudException {
@@ -1459,7 +1440,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
         return null;
     }
 
-    private VirtualMachine toVirtualMachineWithStatus(Node node, String nameSpace) throws InternalException, CloudException{
+    VirtualMachine toVirtualMachineWithStatus(Node node, String nameSpace) throws InternalException, CloudException{
         if(node == null) {
             return null;
         }
@@ -1477,10 +1458,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
         server.setProviderVirtualMachineId(node.getAttributes().getNamedItem("id").getFirstChild().getNodeValue().trim());
         server.setProviderRegionId(node.getAttributes().getNamedItem("location").getFirstChild().getNodeValue().trim());
 
-        boolean isDeployed = false;
-        boolean pendingChange = false;
-        String serverState = "";
-        String failureReason = "";
+        ServerStateReader serverState = new ServerStateReader();
         //ArrayList<Integer> attachedDisks = new ArrayList<Integer>();
         HashMap<String, String> attachedDisks = new HashMap<String, String>();
 
@@ -1497,6 +1475,9 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
             String nameSpaceString = "";
             if(!nameSpace.equals("")) nameSpaceString = nameSpace + ":";
 
+            if(serverState.read(attribute, nameSpaceString)){
+                continue;
+            }
             if(name.equalsIgnoreCase(nameSpaceString + "name")){
                 server.setName(value);
             }
@@ -1584,55 +1565,6 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
                     server.setLastBootTimestamp(0L);
                 }
             }
-            else if(name.equalsIgnoreCase(nameSpaceString + "isDeployed")){
-                if(value.equalsIgnoreCase("true"))isDeployed = true;
-                else isDeployed = false;
-            }
-            else if(name.equalsIgnoreCase(nameSpaceString + "isStarted")){
-                if(value.equalsIgnoreCase("true"))server.setCurrentState(VmState.RUNNING);
-                else server.setCurrentState(VmState.STOPPED);
-            }
-            else if(name.equalsIgnoreCase(nameSpaceString + "state")){
-                serverState = value.trim();
-                if(isDeployed && value.equals("PENDING_CHANGE"))pendingChange = true;
-                else if(!isDeployed && value.equals("PENDING_ADD"))server.setCurrentState(VmState.PENDING);
-            }
-            else if(pendingChange && name.equalsIgnoreCase(nameSpaceString + "status")){
-                NodeList status = attribute.getChildNodes();
-                if(status != null){
-                    for(int j=0;j<status.getLength();j++){
-                        Node statusNode = status.item(j);
-
-                        if(statusNode.getNodeName().equalsIgnoreCase(nameSpaceString + "action")){
-                            String action = statusNode.getFirstChild().getNodeValue().trim();
-                            if(action.equalsIgnoreCase("START_SERVER")){
-                                server.setCurrentState(VmState.RUNNING);
-                                server.setLastBootTimestamp(System.currentTimeMillis());
-                            }
-                            else if(action.equalsIgnoreCase("POWER_OFF_SERVER"))server.setCurrentState(VmState.STOPPING);
-                            else if(action.equalsIgnoreCase("SHUTDOWN_SERVER"))server.setCurrentState(VmState.STOPPING);
-                            else if(action.equalsIgnoreCase("RESET_SERVER")){
-                                server.setCurrentState(VmState.REBOOTING);
-                                server.setLastBootTimestamp(System.currentTimeMillis());
-                            }
-                            else server.setCurrentState(VmState.PENDING);
-                        }
-                    }
-                }
-            }
-            else if(!serverState.equals("NORMAL") && !serverState.equals("PENDING_ADD") && !serverState.equals("PENDING_CHANGE") && !serverState.equals("PENDING_DELETE") && name.equalsIgnoreCase(nameSpaceString + "status")){
-                //Any other state is in error
-                server.setCurrentState(VmState.SUSPENDED);
-                NodeList status = attribute.getChildNodes();
-                if(status != null){
-                    for(int j=0;j<status.getLength();j++){
-                        Node statusNode = status.item(j);
-                        if(statusNode.getNodeName().equalsIgnoreCase(nameSpaceString + "failureReason")){
-                            failureReason = statusNode.getFirstChild().getNodeValue().trim();
-                        }
-                    }
-                }
-            }
         }
         if( server.getName() == null ) {
             server.setName(server.getProviderVirtualMachineId());
@@ -1664,13 +1596,142 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
 
             server.setProductId(cpuCount + ":" + memoryInMb + ":" + diskString);
         }
-        if(server.getCurrentState().equals(VmState.SUSPENDED) && !failureReason.equals("")){
-            server.setTag("serverState", serverState);
-            server.setTag("failureReason", failureReason);
+        if(serverState.state != null){
+            server.setCurrentState(serverState.state);
+        }
+        if(serverState.booted){
+            server.setLastBootTimestamp(System.currentTimeMillis());
+        }
+        if(VmState.SUSPENDED.equals(server.getCurrentState()) && !serverState.failureReason.equals("")){
+            server.setTag("serverState", serverState.serverState);
+            server.setTag("failureReason", serverState.failureReason);
         }
         return server;
     }
 
+    /**
+     * Reads only the ID and state of a <code>serverWithState</code> element, following the same state rules as
+     * {@link #toVirtualMachineWithStatus(Node, String)} through {@link ServerStateReader}.
+     * @param node the server element
+     * @return the status of the server, or <code>null</code> if the element has no ID
+     */
+    @Nullable ResourceStatus toServerStatus(@Nullable Node node) {
+        if( node == null ) {
+            return null;
+        }
+        Node id = node.getAttributes().getNamedItem("id");
+
+        if( id == null || id.getFirstChild() == null ) {
+            return null;
+        }
+        ServerStateReader serverState = new ServerStateReader();
+        NodeList attributes = node.getChildNodes();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+
+            if( attribute.getNodeType() == Node.ELEMENT_NODE ) {
+                serverState.read(attribute, "");
+            }
+        }
+        return new ResourceStatus(id.getFirstChild().getNodeValue().trim(), serverState.state == null ? VmState.PENDING : serverState.state);
+    }
+
+    /**
+     * Works out the state of a server from its <code>isDeployed</code>, <code>isStarted</code>, <code>state</code>
+     * and <code>status</code> elements, fed to it in document order. This is the one place the state rules live,
+     * for both full servers and status-only listings.
+     */
+    static private class ServerStateReader {
+        /** the state of the server, or <code>null</code> if nothing decided it */
+        VmState state         = null;
+        /** true if a pending change is (re)booting the server */
+        boolean booted        = false;
+        String  serverState   = "";
+        String  failureReason = "";
+
+        private boolean isDeployed    = false;
+        private boolean pendingChange = false;
+
+        /**
+         * Reads one child element of a server.
+         * @param attribute the element
+         * @param prefix the namespace prefix of the element names, including the colon, or an empty string
+         * @return true if the element concerns the state of the server
+         */
+        boolean read(@Nonnull Node attribute, @Nonnull String prefix) {
+            String name = attribute.getNodeName();
+
+            if( name.equalsIgnoreCase(prefix + "isDeployed") ) {
+                isDeployed = "true".equalsIgnoreCase(getText(attribute));
+            }
+            else if( name.equalsIgnoreCase(prefix + "isStarted") ) {
+                state = ("true".equalsIgnoreCase(getText(attribute)) ? VmState.RUNNING : VmState.STOPPED);
+            }
+            else if( name.equalsIgnoreCase(prefix + "state") ) {
+                String value = getText(attribute);
+
+                serverState = value.trim();
+                if( isDeployed && value.equals("PENDING_CHANGE") ) {
+                    pendingChange = true;
+                }
+                else if( !isDeployed && value.equals("PENDING_ADD") ) {
+                    state = VmState.PENDING;
+                }
+            }
+            else if( name.equalsIgnoreCase(prefix + "status") ) {
+                NodeList status = attribute.getChildNodes();
+
+                if( pendingChange ) {
+                    for( int j=0; j<status.getLength(); j++ ) {
+                        Node statusNode = status.item(j);
+
+                        if( statusNode.getNodeName().equalsIgnoreCase(prefix + "action") ) {
+                            String action = getText(statusNode).trim();
+
+                            if( action.equalsIgnoreCase("START_SERVER") ) {
+                                state = VmState.RUNNING;
+                                booted = true;
+                            }
+                            else if( action.equalsIgnoreCase("POWER_OFF_SERVER") || action.equalsIgnoreCase("SHUTDOWN_SERVER") ) {
+                                state = VmState.STOPPING;
+                            }
+                            else if( action.equalsIgnoreCase("RESET_SERVER") ) {
+                                state = VmState.REBOOTING;
+                                booted = true;
+                            }
+                            else {
+                                state = VmState.PENDING;
+                            }
+                        }
+                    }
+                }
+                else if( !serverState.equals("NORMAL") && !serverState.equals("PENDING_ADD") && !serverState.equals("PENDING_CHANGE") && !serverState.equals("PENDING_DELETE") ) {
+                    //Any other state is in error
+                    state = VmState.SUSPENDED;
+                    for( int j=0; j<status.getLength(); j++ ) {
+                        Node statusNode = status.item(j);
+
+                        if( statusNode.getNodeName().equalsIgnoreCase(prefix + "failureReason") ) {
+                            failureReason = getText(statusNode).trim();
+                        }
+                    }
+                }
+            }
+            else {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    static private @Nonnull String getText(@Nonnull Node node) {
+        Node text = node.getFirstChild();
+        String value = (text == null ? null : text.getNodeValue());
+
+        return (value == null ? "" : value);
+    }
+
     @Deprecated
     private VirtualMachine toVirtualMachine(Node node, Boolean isPending, String nameSpace) throws CloudException, InternalException {
         if( node == null ) {
@@ -2043,7 +2104,7 @@ public class VirtualMachines extends AbstractVMSupport<OpSource> {
 
 
     @SuppressWarnings("serial")
-    public class RegionComputingPower extends Region{
+    static public class RegionComputingPower extends Region{
 
         public int maxCPUNum;
         public int maxMemInMB;
@@ -42,6 +42,7 @@ import org.dasein.cloud.network.RawAddress;
 import org.dasein.cloud.network.Subnet;
 
 import org.dasein.cloud.network.VLAN;
+import org.dasein.cloud.opsource.CallCache;
 import org.dasein.cloud.opsource.OpSource;
 import org.dasein.cloud.opsource.OpSourceMethod;
 import org.dasein.cloud.opsource.Param;
@@ -115,7 +116,7 @@ public class IpAddressImplement implements IpAddressSupport {
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
 
-            method.parseRequestResult("Assign Ip",method.invoke(), "result", "resultDetail");
+            method.parseRequestResult("Assign Ip",CallCache.getInstance().invokeChange(provider, method, "natrule", OpSource.SERVER_BASE_PATH), "result", "resultDetail");
         }
         finally {
             APITrace.end();
@@ -558,7 +559,7 @@ public class IpAddressImplement implements IpAddressSupport {
                     provider.buildUrl("delete",true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-            method.requestResult("Release Ip from server",method.invoke());
+            method.requestResult("Release Ip from server",CallCache.getInstance().invokeChange(provider, method, "natrule", OpSource.SERVER_BASE_PATH));
         }
         finally {
             APITrace.end();
@@ -582,7 +583,7 @@ public class IpAddressImplement implements IpAddressSupport {
                 provider.buildUrl("delete",true, parameters),
                 provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-        method.requestResult("Release Ip from server",method.invoke());
+        method.requestResult("Release Ip from server",CallCache.getInstance().invokeChange(provider, method, "natrule", OpSource.SERVER_BASE_PATH));
     }
 
     @Override
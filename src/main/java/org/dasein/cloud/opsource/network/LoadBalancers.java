@@ -36,6 +36,8 @@ import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.network.*;
+import org.dasein.cloud.opsource.CallCache;
+import org.dasein.cloud.opsource.NegativeCache;
 import org.dasein.cloud.opsource.OpSource;
 import org.dasein.cloud.opsource.OpSourceMethod;
 import org.dasein.cloud.opsource.Param;
@@ -235,7 +237,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<OpSource> {
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
 
-		return  method.getRequestResultId("Add probe ", method.invoke(), "result", "resultDetail");
+		return  method.getRequestResultId("Add probe ", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 	}
 
 
@@ -336,7 +338,7 @@ serverFarm
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
 
-		return method.getRequestResultId("Add server farm", method.invoke(), "result", "resultDetail");
+		return method.getRequestResultId("Add server farm", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 	}
 
 	private String addRealServer(String networkId, String serverId) throws InternalException, CloudException{
@@ -380,7 +382,7 @@ serverFarm
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
 
-		if(method.parseRequestResult("Add real server", method.invoke(), "result", "resultDetail")){
+		if(method.parseRequestResult("Add real server", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail")){
 			return getRealServerIdfromServerId(networkId, serverId);
 		}else{
 			throw new CloudException("Fail to add real server");
@@ -420,7 +422,7 @@ serverFarm/{server-farm-id}/addRealServer
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Modify, "POST", requestBody));
 
-		return method.requestResult("Add real server to server farm", method.invoke(), "result", "resultCode");
+		return method.requestResult("Add real server to server farm", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultCode");
 
 	} 
 	/**
@@ -457,7 +459,7 @@ serverFarm/{server-farm-id}/addRealServer
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Modify, "POST", requestBody));
 
-		return method.requestResult("Add probe to server farm", method.invoke(), "result", "resultDetail");
+		return method.requestResult("Add probe to server farm", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 	}
 
 	private String convertLbAlgorithToPredictor(LbAlgorithm lbAlgorithm){
@@ -676,7 +678,7 @@ serverFarm/{server-farm-id}/addRealServer
 					provider.buildUrl(null,true, parameters),
 					provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
 
-			return method.getRequestResultId("Add load balancer", method.invoke(), "result", "resultDetail");
+			return method.getRequestResultId("Add load balancer", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 		}catch (Exception e){
 			logger.error(e.getMessage());			
 			/** If vip fails,then kill all resources */
@@ -873,6 +875,9 @@ serverFarm/{server-farm-id}
 	public LoadBalancer getLoadBalancer(String loadBalancerId) throws CloudException, InternalException {
         APITrace.begin(provider, "LB.getLoadBalancer");
         try {
+            if( NegativeCache.getInstance().isMissing(provider, "vip", loadBalancerId) ) {
+                return null;
+            }
             ArrayList<LoadBalancer> list = (ArrayList<LoadBalancer>) listLoadBalancers();
             if(list == null){
                 return null;
@@ -882,6 +887,7 @@ serverFarm/{server-farm-id}
                     return balancer;
                 }
             }
+            NegativeCache.getInstance().setMissing(provider, "vip", loadBalancerId);
             return null;
         }
         finally {
@@ -904,6 +910,12 @@ serverFarm/{server-farm-id}
     public LoadBalancer getLoadBalancer(String networkId, String loadBalancerId) throws CloudException, InternalException {
         APITrace.begin(provider, "LB.getLoadBalancerOnNetwork");
         try {
+            // a miss on one network says nothing about the others, so it is recorded for this network only
+            String missingId = networkId + "/" + loadBalancerId;
+
+            if( NegativeCache.getInstance().isMissing(provider, "vip", loadBalancerId) || NegativeCache.getInstance().isMissing(provider, "vip", missingId) ) {
+                return null;
+            }
             ArrayList<LoadBalancer> list = (ArrayList<LoadBalancer>) listLoadBalancers(networkId);
             if(list == null){
                 return null;
@@ -913,6 +925,7 @@ serverFarm/{server-farm-id}
                     return balancer;
                 }
             }
+            NegativeCache.getInstance().setMissing(provider, "vip", missingId);
             return null;
         }
         finally {
@@ -1317,7 +1330,7 @@ serverFarm/{server-farm-id}
         }
 	}
 
-	public Iterable<LoadBalancer> listLoadBalancers(String networkId) throws CloudException, InternalException {
+	public Iterable<LoadBalancer> listLoadBalancers(final String networkId) throws CloudException, InternalException {
         APITrace.begin(provider, "LB.listLoadBalancersOnNetwork");
         try {
             if(networkId == null){
@@ -1336,20 +1349,21 @@ serverFarm/{server-farm-id}
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-            Document doc = method.invoke();
-            String sNS = "";
-            try{
-                sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
-            }
-            catch(IndexOutOfBoundsException ex){}
-            NodeList matches = doc.getElementsByTagName(sNS + "vip");
-            if(matches != null){
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
-                    LoadBalancer balancer = toLoadBalancer(node, networkId );
-                    if(balancer != null){
-                        list.add(balancer);
-                    }
+            // each VIP needs a call of its own for its server farm, which is made only once this call has returned
+            // its connection and its slot in the request governor: nested calls could otherwise wait on each other forever
+            final ArrayList<Element> vips = new ArrayList<Element>();
+
+            method.invoke("vip", new OpSourceMethod.ElementHandler() {
+                @Override
+                public void handleElement(@Nonnull Element element) {
+                    vips.add(element);
+                }
+            });
+            for( Element vip : vips ) {
+                LoadBalancer balancer = toLoadBalancer(vip, networkId);
+
+                if( balancer != null ) {
+                    list.add(balancer);
                 }
             }
             return list;
@@ -1388,7 +1402,7 @@ serverFarm/{server-farm-id}
                     provider.buildUrl("delete",true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-            method.requestResult("Delete probe", method.invoke(), "result", "resultDetail");
+            method.requestResult("Delete probe", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
         }
         finally {
             APITrace.end();
@@ -1443,7 +1457,7 @@ serverFarm/{server-farm-id}
 				provider.buildUrl("delete",true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-		method.requestResult("Delete server Farm", method.invoke(), "result", "resultDetail");
+		method.requestResult("Delete server Farm", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 	}
 
     @Deprecated
@@ -1563,7 +1577,7 @@ serverFarm/{server-farm-id}
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Modify, "POST", requestBody));
 
-		return method.parseRequestResult("Remove probe from server farm", method.invoke(), "result", "resultDetail");
+		return method.parseRequestResult("Remove probe from server farm", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 	} 
 
 	/**
@@ -1614,7 +1628,7 @@ serverFarm/{server-farm-id}/removeRealServer
 				provider.buildUrl(null,true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Modify, "POST", requestBody));
 
-		return method.requestResult("Remove real server from server farm", method.invoke(), "result", "resultDetail");
+		return method.requestResult("Remove real server from server farm", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 
 	}
 
@@ -1643,7 +1657,7 @@ serverFarm/{server-farm-id}/removeRealServer
 				provider.buildUrl("delete",true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-		return method.requestResult("Remove real server ", method.invoke(), "result", "resultDetail");
+		return method.requestResult("Remove real server ", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultDetail");
 	} 
 
 	@Override
@@ -1708,7 +1722,7 @@ serverFarm/{server-farm-id}/removeRealServer
 				provider.buildUrl("delete",true, parameters),
 				provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
 
-		method.requestResult("Remove LB from the network", method.invoke(), "result", "resultCode");
+		method.requestResult("Remove LB from the network", CallCache.getInstance().invokeChange(provider, method, "vip"), "result", "resultCode");
 	}
 	private LbProtocol guessLbProtocol(String value){
 		if(value.equalsIgnoreCase("TCP")){
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 import javax.annotation.Nonnull;
@@ -39,14 +40,11 @@ import org.dasein.cloud.network.SubnetState;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANState;
 import org.dasein.cloud.network.VLANSupport;
+import org.dasein.cloud.opsource.CallCache;
 import org.dasein.cloud.opsource.OpSource;
 import org.dasein.cloud.opsource.OpSourceMethod;
 import org.dasein.cloud.opsource.Param;
 import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
-import org.dasein.cloud.util.CacheLevel;
-import org.dasein.util.uom.time.Minute;
-import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -103,57 +101,48 @@ public class Network extends AbstractVLANSupport {
         return true;
     }
 
-    private @Nonnull Iterable<VLAN> fetchVlans() throws CloudException, InternalException {
-        ArrayList<VLAN> list = new ArrayList<VLAN>();
-        HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
-        Param param = new Param("networkWithLocation", null);
-        parameters.put(0, param);
+    @Override
+    public @Nonnull Iterable<VLAN> listVlans() throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VLAN.listVlans");
+        try {
+            HashMap<Integer, Param>  parameters = new HashMap<Integer, Param>();
+            Param param = new Param("networkWithLocation", null);
+            parameters.put(0, param);
 
-        //param = new Param(provider.getDefaultRegionId(), null);//Removed this as it appears to break when switching regions
-        //parameters.put(1, param);
+            //param = new Param(provider.getDefaultRegionId(), null);//Removed this as it appears to break when switching regions
+            //parameters.put(1, param);
 
-        OpSourceMethod method = new OpSourceMethod(provider,
-                provider.buildUrl(null,true, parameters),
-                provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
-        Document doc = method.invoke();
-        //Document doc = CallCache.getInstance().getAPICall("networkWithLocation", provider, parameters);
+            final String url = provider.buildUrl(null,true, parameters);
 
-        String sNS = "";
-        try{
-            sNS = doc.getDocumentElement().getTagName().substring(0, doc.getDocumentElement().getTagName().indexOf(":") + 1);
-        }
-        catch(IndexOutOfBoundsException ignore){
-            // ignore
-        }
-        NodeList matches = doc.getElementsByTagName(sNS + "network");
+            List<VLAN> cached = CallCache.getInstance().getList("networkWithLocation", "vlans", provider, url, new CallCache.Loader<VLAN>() {
+                @Override
+                public List<VLAN> load(@Nonnull CallCache.ResponseSize read) throws CloudException, InternalException {
+                    final ArrayList<VLAN> list = new ArrayList<VLAN>();
+                    OpSourceMethod method = new OpSourceMethod(provider, url,
+                            provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET",null));
+                    method.invoke("network", new OpSourceMethod.ElementHandler() {
+                        @Override
+                        public void handleElement(@Nonnull Element element) {
+                            VLAN vlan = toVLAN(element);
 
-        if(matches != null){
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node node = matches.item(i);
-
-                VLAN vlan = toVLAN(node);
-                if( vlan != null ) {
-                    list.add(vlan);
+                            if( vlan != null ) {
+                                list.add(vlan);
+                            }
+                        }
+                    });
+                    read.add(method);
+                    return list;
                 }
-            }
-        }
-        Cache<VLAN> cache = Cache.getInstance(getProvider(), "vlans", VLAN.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(3, TimePeriod.MINUTE));
-
-        cache.put(getContext(), list);
-        return list;
-    }
+            });
 
-    @Override
-    public @Nonnull Iterable<VLAN> listVlans() throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "VLAN.listVlans");
-        try {
-            Cache<VLAN> cache = Cache.getInstance(getProvider(), "vlans", VLAN.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(3, TimePeriod.MINUTE));
-            Iterable<VLAN> vlans = cache.get(getContext());
+            // callers expect a list of their own (several cast it to an ArrayList) and may modify the VLANs in it,
+            // so the shared cached ones are never handed out
+            ArrayList<VLAN> list = new ArrayList<VLAN>();
 
-            if( vlans != null ) {
-                return vlans;
+            for( VLAN vlan : cached ) {
+                list.add(copy(vlan));
             }
-            return fetchVlans();
+            return list;
         }
         finally {
             APITrace.end();
@@ -209,7 +198,7 @@ public class Network extends AbstractVLANSupport {
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
 
-            String vlanId = method.getRequestResultId("Creating VLan", method.invoke(), "result", "resultDetail");
+            String vlanId = method.getRequestResultId("Creating VLan", CallCache.getInstance().invokeChange(provider, method, "networkWithLocation"), "result", "resultDetail");
             if(vlanId != null){
                 return this.getVlan(vlanId);
             }else{
@@ -236,19 +225,41 @@ public class Network extends AbstractVLANSupport {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl("delete",true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
-            method.parseRequestResult("Removing Vlan",method.invoke(), "result", "resultDetail");
-            try {
-                fetchVlans(); // resets the cache
-            }
-            catch( Throwable ignore ) {
-                // ignore
-            }
+            method.parseRequestResult("Removing Vlan",CallCache.getInstance().invokeChange(provider, method, "networkWithLocation"), "result", "resultDetail");
         }
         finally {
             APITrace.end();
         }
     }
 
+    static private @Nonnull VLAN copy(@Nonnull VLAN vlan) {
+        VLAN network = new VLAN();
+
+        network.setProviderVlanId(vlan.getProviderVlanId());
+        network.setName(vlan.getName());
+        network.setDescription(vlan.getDescription());
+        network.setCidr(vlan.getCidr());
+        network.setCurrentState(vlan.getCurrentState());
+        network.setDomainName(vlan.getDomainName());
+        network.setNetworkType(vlan.getNetworkType());
+        network.setProviderDataCenterId(vlan.getProviderDataCenterId());
+        network.setProviderOwnerId(vlan.getProviderOwnerId());
+        network.setProviderRegionId(vlan.getProviderRegionId());
+        if( vlan.getDnsServers() != null ) {
+            network.setDnsServers(vlan.getDnsServers().clone());
+        }
+        if( vlan.getNtpServers() != null ) {
+            network.setNtpServers(vlan.getNtpServers().clone());
+        }
+        if( vlan.getSupportedTraffic() != null ) {
+            network.setSupportedTraffic(vlan.getSupportedTraffic().clone());
+        }
+        if( vlan.getTags() != null ) {
+            network.setTags(new HashMap<String, String>(vlan.getTags()));
+        }
+        return network;
+    }
+
     public VLAN toVLAN(Node node) {
         if( node == null ) {
             return null;
@@ -31,6 +31,7 @@ import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.network.*;
+import org.dasein.cloud.opsource.CallCache;
 import org.dasein.cloud.opsource.OpSource;
 import org.dasein.cloud.opsource.OpSourceMethod;
 import org.dasein.cloud.opsource.Param;
@@ -241,7 +242,7 @@ public class SecurityGroup extends AbstractFirewallSupport {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl(null,true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", provider.convertDomToString(doc)));
-            Document responseDoc = method.invoke();
+            Document responseDoc = CallCache.getInstance().invokeChange(provider, method, "aclrule");
 
             String errorMsg = "";
             try{
@@ -615,7 +616,7 @@ public class SecurityGroup extends AbstractFirewallSupport {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl("delete",true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
-            Document doc = method.invoke();
+            Document doc = CallCache.getInstance().invokeChange(provider, method, "aclrule");
             method.parseRequestResult("Revoking firewall rule", doc, "result", "resultDetail");
         }
         finally {
@@ -671,7 +672,7 @@ public class SecurityGroup extends AbstractFirewallSupport {
             OpSourceMethod method = new OpSourceMethod(provider,
                     provider.buildUrl("delete",true, parameters),
                     provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
-            method.parseRequestResult("Revoking firewall rule",method.invoke(), "result", "resultDetail");
+            method.parseRequestResult("Revoking firewall rule",CallCache.getInstance().invokeChange(provider, method, "aclrule"), "result", "resultDetail");
         }
         finally {
             APITrace.end();
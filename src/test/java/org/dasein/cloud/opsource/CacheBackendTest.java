@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.junit.Test;
+
+/**
+ * Exercises {@link CallCache} instances sharing entries through a {@link CacheBackend}, each instance standing in for
+ * a node.
+ */
+public class CacheBackendTest {
+    static private class CountingLoader implements CallCache.Loader<Object> {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final Object        value;
+
+        CountingLoader(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public List<Object> load(@Nonnull CallCache.ResponseSize read) throws CloudException, InternalException {
+            calls.incrementAndGet();
+            return Collections.singletonList(value);
+        }
+    }
+
+    /**
+     * A backend that cannot be created, as when its store is unreachable.
+     */
+    static public class FailingBackend extends InProcessCacheBackend {
+        public FailingBackend() {
+            throw new IllegalStateException("store unreachable");
+        }
+    }
+
+    static private CallCache getNode(CacheBackend backend) {
+        CallCache node = new CallCache();
+
+        node.setBackend(backend);
+        return node;
+    }
+
+    @Test
+    public void inProcessBackendExpiresAndCopiesValues() throws Exception {
+        InProcessCacheBackend backend = new InProcessCacheBackend();
+        byte[] value = new byte[] { 1, 2, 3 };
+
+        backend.put("key", value, 50L);
+        value[0] = 9;
+        assertArrayEquals(new byte[] { 1, 2, 3 }, backend.get("key"));
+        backend.get("key")[1] = 9;
+        assertArrayEquals(new byte[] { 1, 2, 3 }, backend.get("key"));
+        Thread.sleep(100L);
+        assertNull(backend.get("key"));
+        backend.put("forever", value, Long.MAX_VALUE);
+        assertArrayEquals(value, backend.get("forever"));
+    }
+
+    @Test
+    public void backendIsCreatedFromItsClassName() throws Exception {
+        CallCache node = new CallCache();
+
+        node.getList("server", "list", CallCacheTest.getProvider("a", "cacheBackend", InProcessCacheBackend.class.getName()), "url", new CountingLoader("a"));
+        assertTrue(node.getBackend() instanceof InProcessCacheBackend);
+    }
+
+    @Test
+    public void unusableBackendsKeepEntriesInProcess() throws Exception {
+        String[] names = { FailingBackend.class.getName(), String.class.getName(), "org.dasein.cloud.opsource.NoSuchBackend" };
+
+        for( String name : names ) {
+            CallCache node = new CallCache();
+            CountingLoader loader = new CountingLoader("a");
+            OpSource provider = CallCacheTest.getProvider("a", "cacheBackend", name);
+
+            assertEquals(Collections.singletonList("a"), node.getList("server", "list", provider, "url", loader));
+            assertEquals(Collections.singletonList("a"), node.getList("server", "list", provider, "url", loader));
+            assertNull(name, node.getBackend());
+            assertEquals(1, loader.calls.get());
+        }
+    }
+
+    @Test
+    public void entryLoadedOnOneNodeIsReusedByAnother() throws Exception {
+        InProcessCacheBackend backend = new InProcessCacheBackend();
+        OpSource provider = CallCacheTest.getProvider("a");
+        CountingLoader first = new CountingLoader("NA1");
+        CountingLoader second = new CountingLoader("EU1");
+
+        assertEquals(Collections.singletonList("NA1"), getNode(backend).getList("datacenterWithLimits", "regions", provider, "url", first));
+
+        CallCache other = getNode(backend);
+
+        assertEquals(Collections.singletonList("NA1"), other.getList("datacenterWithLimits", "regions", provider, "url", second));
+        assertEquals(1, first.calls.get());
+        assertEquals(0, second.calls.get());
+        assertEquals(1L, other.getStatistics("datacenterWithLimits/regions").getSharedHits());
+        assertTrue(other.getStatistics("datacenterWithLimits/regions").getBytes() > 0L);
+    }
+
+    @Test
+    public void otherAccountsDoNotShareEntries() throws Exception {
+        InProcessCacheBackend backend = new InProcessCacheBackend();
+        CountingLoader a = new CountingLoader("a");
+        CountingLoader b = new CountingLoader("b");
+
+        getNode(backend).getList("myaccount", "orgId", CallCacheTest.getProvider("a"), "url", a);
+        assertEquals(Collections.singletonList("b"), getNode(backend).getList("myaccount", "orgId", CallCacheTest.getProvider("b"), "url", b));
+        assertEquals(1, b.calls.get());
+    }
+
+    @Test
+    public void invalidationOnOneNodeOrphansSharedEntries() throws Exception {
+        InProcessCacheBackend backend = new InProcessCacheBackend();
+        OpSource a = CallCacheTest.getProvider("a");
+        CountingLoader loader = new CountingLoader("NA1");
+
+        getNode(backend).getList("datacenterWithLimits", "regions", a, "url", loader);
+        getNode(backend).invalidate(a, "datacenterWithLimits");
+        getNode(backend).getList("datacenterWithLimits", "regions", a, "url", loader);
+        assertEquals(2, loader.calls.get());
+
+        // invalidating another account leaves the entry shared
+        getNode(backend).invalidate(CallCacheTest.getProvider("b"), "datacenterWithLimits");
+        getNode(backend).getList("datacenterWithLimits", "regions", a, "url", loader);
+        assertEquals(2, loader.calls.get());
+
+        getNode(backend).invalidate("datacenterWithLimits");
+        getNode(backend).getList("datacenterWithLimits", "regions", a, "url", loader);
+        assertEquals(3, loader.calls.get());
+    }
+
+    @Test
+    public void unserializableValuesStayLocal() throws Exception {
+        InProcessCacheBackend backend = new InProcessCacheBackend();
+        OpSource a = CallCacheTest.getProvider("a");
+
+        getNode(backend).getList("serverWithState", "list", a, "url", new CountingLoader(new Object()));
+        assertEquals(0, backend.size());
+    }
+
+    @Test
+    public void failingBackendFallsBackToTheApi() throws Exception {
+        CacheBackend broken = new CacheBackend() {
+            @Override
+            public @Nullable byte[] get(@Nonnull String key) {
+                throw new IllegalStateException("store down");
+            }
+
+            @Override
+            public void put(@Nonnull String key, @Nonnull byte[] value, long ttl) {
+                throw new IllegalStateException("store down");
+            }
+        };
+        CallCache node = getNode(broken);
+        OpSource a = CallCacheTest.getProvider("a");
+        CountingLoader loader = new CountingLoader(new ArrayList<String>());
+
+        assertEquals(1, node.getList("datacenterWithLimits", "regions", a, "url", loader).size());
+        // still cached locally
+        node.getList("datacenterWithLimits", "regions", a, "url", loader);
+        assertEquals(1, loader.calls.get());
+        node.invalidate(a, "datacenterWithLimits");
+        node.getList("datacenterWithLimits", "regions", a, "url", loader);
+        assertEquals(2, loader.calls.get());
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheSnapshotTest {
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("snapshot", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "cache.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+
+        if( files != null ) {
+            for( File f : files ) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    static private CacheSnapshot.Record getRecord(String key, long expiresAt, String ... values) {
+        return new CacheSnapshot.Record(key, "account", "datacenterWithLimits", new ArrayList<String>(Arrays.asList(values)), expiresAt, expiresAt);
+    }
+
+    @Test
+    public void liveRecordsAreReadBack() throws IOException {
+        long now = System.currentTimeMillis();
+        CacheSnapshot snapshot = new CacheSnapshot(file);
+
+        snapshot.write(Arrays.asList(getRecord("live", now + 60000L, "NA1", "EU1"), getRecord("expired", now - 1L, "AP1")));
+
+        List<CacheSnapshot.Record> records = new CacheSnapshot(file).read(now);
+
+        assertEquals(1, records.size());
+        assertEquals("live", records.get(0).getKey());
+        assertEquals("account", records.get(0).getAccount());
+        assertEquals(Arrays.asList("NA1", "EU1"), records.get(0).getValue());
+    }
+
+    @Test
+    public void missingFileYieldsNoRecords() {
+        assertEquals(0, new CacheSnapshot(file).read(System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void corruptLengthYieldsNoRecords() throws IOException {
+        for( int length : new int[] { -1, Integer.MAX_VALUE } ) {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+
+            out.writeInt(0x4F505343);
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeUTF("key");
+            out.writeBoolean(false);
+            out.writeUTF("resource");
+            out.writeLong(Long.MAX_VALUE);
+            out.writeLong(Long.MAX_VALUE);
+            out.writeInt(length);
+            out.close();
+            assertEquals(0, new CacheSnapshot(file).read(System.currentTimeMillis()).size());
+        }
+    }
+
+    @Test
+    public void rewritesReplaceTheSnapshotAndLeaveNoTemporaryFiles() throws IOException {
+        long now = System.currentTimeMillis();
+        CacheSnapshot snapshot = new CacheSnapshot(file);
+
+        snapshot.write(Collections.singletonList(getRecord("first", now + 60000L, "NA1")));
+        snapshot.write(Collections.singletonList(getRecord("second", now + 60000L, "EU1")));
+
+        List<CacheSnapshot.Record> records = snapshot.read(now);
+
+        assertEquals(1, records.size());
+        assertEquals("second", records.get(0).getKey());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void concurrentWritesLeaveAReadableSnapshot() throws Exception {
+        final long now = System.currentTimeMillis();
+        final CacheSnapshot snapshot = new CacheSnapshot(file);
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<4; i++ ) {
+            final int writer = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for( int j=0; j<25; j++ ) {
+                            List<CacheSnapshot.Record> records = new ArrayList<CacheSnapshot.Record>();
+
+                            for( int k=0; k<20; k++ ) {
+                                records.add(getRecord(writer + "-" + k, now + 60000L, "value " + j));
+                            }
+                            snapshot.write(records);
+                        }
+                    }
+                    catch( Exception e ) {
+                        failures.add(e);
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        for( Thread t : threads ) {
+            t.join(30000L);
+        }
+        assertEquals(Collections.<Exception>emptyList(), failures);
+        assertEquals(20, snapshot.read(now).size());
+        assertEquals(1, dir.listFiles().length);
+    }
+}
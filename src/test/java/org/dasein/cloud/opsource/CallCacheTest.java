@@ -0,0 +1,318 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class CallCacheTest {
+    static private class CountingLoader implements CallCache.Loader<String> {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final String        value;
+
+        CountingLoader(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public List<String> load(@Nonnull CallCache.ResponseSize read) throws CloudException, InternalException {
+            return Collections.singletonList(value + calls.incrementAndGet());
+        }
+    }
+
+    /**
+     * A loader that blocks until released, so that invalidations can be made while it is loading.
+     */
+    static private class BlockingLoader extends CountingLoader {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingLoader(String value) {
+            super(value);
+        }
+
+        @Override
+        public List<String> load(@Nonnull CallCache.ResponseSize read) throws CloudException, InternalException {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch( InterruptedException e ) {
+                throw new CloudException(e);
+            }
+            return super.load(read);
+        }
+    }
+
+    static OpSource getProvider(String account, String ... properties) throws Exception {
+        ProviderContext ctx = new ProviderContext(account, "region");
+        Properties p = new Properties();
+
+        for( int i=0; i<properties.length; i+=2 ) {
+            p.setProperty(properties[i], properties[i + 1]);
+        }
+        ctx.setEndpoint("https://api.opsourcecloud.net");
+        ctx.setCustomProperties(p);
+
+        OpSource provider = new OpSource();
+
+        provider.connect(ctx);
+        return provider;
+    }
+
+    /**
+     * Runs a load on another thread and waits until it is inside the loader.
+     */
+    static private Thread startLoad(final CallCache cache, final OpSource provider, final String resource, final BlockingLoader loader) throws Exception {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.getList(resource, "list", provider, "url", loader);
+                }
+                catch( Exception ignore ) {
+                    // the assertions on the loader fail
+                }
+            }
+        };
+
+        t.start();
+        assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+        return t;
+    }
+
+    @Test
+    public void entriesAreServedUntilTheirTtl() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource provider = getProvider("a", "cacheTtl", "100");
+        CountingLoader loader = new CountingLoader("v");
+
+        assertEquals(Collections.singletonList("v1"), cache.getList("server", "list", provider, "url", loader));
+        assertEquals(Collections.singletonList("v1"), cache.getList("server", "list", provider, "url", loader));
+        assertEquals(1, loader.calls.get());
+        Thread.sleep(150L);
+        assertEquals(Collections.singletonList("v2"), cache.getList("server", "list", provider, "url", loader));
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void resourceTtlOverridesTheGeneralOne() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource provider = getProvider("a", "cacheTtl", "100", "cacheTtl.image", "60000");
+
+        assertEquals(100L, cache.getTtl(provider, "server"));
+        assertEquals(60000L, cache.getTtl(provider, "image"));
+        // defaults apply when nothing is set
+        assertEquals(180000L, cache.getTtl(getProvider("a"), "networkWithLocation"));
+        assertEquals(300000L, cache.getTtl(getProvider("a"), "server"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource provider = getProvider("a", "callCacheMaxEntries", "2");
+        CountingLoader first = new CountingLoader("first");
+        CountingLoader second = new CountingLoader("second");
+        CountingLoader third = new CountingLoader("third");
+
+        cache.getList("server", "list", provider, "url1", first);
+        cache.getList("server", "list", provider, "url2", second);
+        // touching the first entry makes the second the least recently used
+        cache.getList("server", "list", provider, "url1", first);
+        cache.getList("server", "list", provider, "url3", third);
+        assertEquals(2, cache.size());
+        assertEquals(1L, cache.getEvictionCount());
+
+        cache.getList("server", "list", provider, "url1", first);
+        assertEquals(1, first.calls.get());
+        cache.getList("server", "list", provider, "url2", second);
+        assertEquals(2, second.calls.get());
+    }
+
+    @Test
+    public void accountsAndRegionsDoNotShareEntries() throws Exception {
+        CallCache cache = new CallCache();
+        CountingLoader a = new CountingLoader("a");
+        CountingLoader b = new CountingLoader("b");
+
+        assertEquals(Collections.singletonList("a1"), cache.getList("server", "list", getProvider("a"), "url", a));
+        assertEquals(Collections.singletonList("b1"), cache.getList("server", "list", getProvider("b"), "url", b));
+        assertEquals(Collections.singletonList("a1"), cache.getList("server", "list", getProvider("a"), "url", a));
+
+        OpSource otherRegion = getProvider("a");
+
+        otherRegion.getContext().setRegionId("other");
+        assertEquals(Collections.singletonList("a2"), cache.getList("server", "list", otherRegion, "url", a));
+        assertEquals(2, a.calls.get());
+        assertEquals(1, b.calls.get());
+    }
+
+    @Test
+    public void invalidationIsLimitedToTheAccount() throws Exception {
+        CallCache cache = new CallCache();
+        CountingLoader a = new CountingLoader("a");
+        CountingLoader b = new CountingLoader("b");
+
+        cache.getList("server", "list", getProvider("a"), "url", a);
+        cache.getList("server", "list", getProvider("b"), "url", b);
+        cache.invalidate(getProvider("a"), "server");
+        cache.getList("server", "list", getProvider("a"), "url", a);
+        cache.getList("server", "list", getProvider("b"), "url", b);
+        assertEquals(2, a.calls.get());
+        assertEquals(1, b.calls.get());
+    }
+
+    @Test
+    public void failedChangeStillInvalidates() throws Exception {
+        CallCache cache = new CallCache();
+        TestServer server = new TestServer();
+        OpSource provider = server.connect();
+        CountingLoader loader = new CountingLoader("v");
+
+        cache.getList("server", "list", provider, "url", loader);
+        // the answer to the change is lost, but the change may have been applied
+        server.stop();
+        try {
+            cache.invokeChange(provider, new OpSourceMethod(provider, server.getEndpoint() + "/server",
+                    provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "POST", "<server/>")), "server");
+            fail("The call succeeded without a server");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertEquals(Collections.singletonList("v2"), cache.getList("server", "list", provider, "url", loader));
+    }
+
+    @Test
+    public void entriesKeptInProcessAreMeasuredByTheirResponses() throws Exception {
+        String xml = "<list><item>a</item><item>b</item></list>";
+        TestServer server = new TestServer();
+
+        try {
+            server.reply("/list", xml);
+
+            CallCache cache = new CallCache();
+            OpSource provider = server.connect();
+
+            // no backend: nothing is serialized, yet the entry has a size
+            cache.getAPICall("server", "list", provider, null, server.getEndpoint() + "/list", new CallCache.Parser<String>() {
+                @Override
+                public @Nonnull List<String> parse(@Nonnull Document doc) {
+                    return Collections.singletonList(doc.getDocumentElement().getTagName());
+                }
+            });
+            assertNull(cache.getBackend());
+            assertEquals(1, cache.getStatistics("server/list").getEntries());
+            assertTrue(cache.getStatistics("server/list").getBytes() > 0L);
+            assertEquals(xml.getBytes("UTF-8").length, cache.getStatistics("server/list").getBytes());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void cachedListsAreReadOnly() throws Exception {
+        CallCache cache = new CallCache();
+        List<String> list = cache.getList("server", "list", getProvider("a"), "url", new CountingLoader("a"));
+
+        try {
+            list.add("b");
+        }
+        catch( UnsupportedOperationException expected ) {
+            return;
+        }
+        fail("A cached list could be modified");
+    }
+
+    @Test
+    public void invalidatingAnotherAccountDoesNotDiscardALoad() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource a = getProvider("a");
+        BlockingLoader loader = new BlockingLoader("a");
+        Thread t = startLoad(cache, a, "server", loader);
+
+        cache.invalidate(getProvider("b"), "server");
+        loader.release.countDown();
+        t.join(5000L);
+        assertEquals(Collections.singletonList("a1"), cache.getList("server", "list", a, "url", loader));
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void invalidatingAnotherResourceDoesNotDiscardALoad() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource a = getProvider("a");
+        BlockingLoader loader = new BlockingLoader("a");
+        Thread t = startLoad(cache, a, "server", loader);
+
+        cache.invalidate(a, "vip");
+        cache.invalidate("image");
+        loader.release.countDown();
+        t.join(5000L);
+        cache.getList("server", "list", a, "url", loader);
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void invalidatingTheAccountDiscardsALoad() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource a = getProvider("a");
+        BlockingLoader loader = new BlockingLoader("a");
+        Thread t = startLoad(cache, a, "server", loader);
+
+        cache.invalidate(a, "server");
+        loader.release.countDown();
+        t.join(5000L);
+        // the load may predate the change: it was not stored
+        assertEquals(Collections.singletonList("a2"), cache.getList("server", "list", a, "url", loader));
+    }
+
+    @Test
+    public void invalidatingEveryAccountDiscardsALoad() throws Exception {
+        CallCache cache = new CallCache();
+        OpSource a = getProvider("a");
+        BlockingLoader loader = new BlockingLoader("a");
+        Thread t = startLoad(cache, a, "server", loader);
+
+        cache.invalidate("server");
+        loader.release.countDown();
+        t.join(5000L);
+        cache.getList("server", "list", a, "url", loader);
+        assertEquals(2, loader.calls.get());
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ConditionalResponseCacheTest {
+    @Test
+    public void responsesWithoutValidatorsAreNotKept() {
+        ConditionalResponseCache cache = new ConditionalResponseCache(4, 100, 1000L);
+
+        cache.put("a", null, null, new byte[10]);
+        assertNull(cache.get("a"));
+        cache.put("a", "\"v1\"", null, new byte[10]);
+        assertEquals("\"v1\"", cache.get("a").getEtag());
+        // a later response without validators drops the stale one
+        cache.put("a", null, null, new byte[10]);
+        assertNull(cache.get("a"));
+        assertEquals(0L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedPastTheEntryLimit() {
+        ConditionalResponseCache cache = new ConditionalResponseCache(2, 100, 1000L);
+
+        cache.put("a", "1", null, new byte[10]);
+        cache.put("b", "2", null, new byte[10]);
+        cache.get("a");
+        cache.put("c", "3", null, new byte[10]);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(20L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void totalSizeIsBounded() {
+        ConditionalResponseCache cache = new ConditionalResponseCache(10, 100, 250L);
+
+        cache.put("a", "1", null, new byte[100]);
+        cache.put("b", "2", null, new byte[100]);
+        cache.put("c", "3", null, new byte[100]);
+        assertNull(cache.get("a"));
+        assertEquals(200L, cache.getTotalBytes());
+        // too large for a single entry
+        cache.put("d", "4", null, new byte[101]);
+        assertNull(cache.get("d"));
+        // replacing an entry accounts for the old body
+        cache.put("b", "5", null, new byte[50]);
+        assertEquals(150L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void zeroLimitsDisableTheCache() {
+        assertFalse(new ConditionalResponseCache(0, 100, 1000L).isEnabled());
+        assertFalse(new ConditionalResponseCache(4, 100, 0L).isEnabled());
+    }
+}
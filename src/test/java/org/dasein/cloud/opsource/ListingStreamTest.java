@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.dasein.util.JiteratorLoadException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class ListingStreamTest {
+    /**
+     * Pushes numbered items, optionally failing after the last one, and records how it ended.
+     */
+    static private class CountingProducer implements ListingStream.Producer<Integer> {
+        private final int            count;
+        private final CloudException failure;
+
+        final CountDownLatch done      = new CountDownLatch(1);
+        volatile int         pushed    = 0;
+        volatile Throwable   stoppedBy = null;
+
+        CountingProducer(int count, CloudException failure) {
+            this.count = count;
+            this.failure = failure;
+        }
+
+        @Override
+        public void produce(@Nonnull PagedFetch.Sink<Integer> sink) throws CloudException, InternalException {
+            try {
+                for( int i=0; i<count; i++ ) {
+                    sink.push(i);
+                    pushed++;
+                }
+                if( failure != null ) {
+                    throw failure;
+                }
+            }
+            catch( CloudException e ) {
+                stoppedBy = e;
+                throw e;
+            }
+            finally {
+                done.countDown();
+            }
+        }
+    }
+
+    static private List<Integer> drain(Iterator<Integer> it) {
+        List<Integer> items = new ArrayList<Integer>();
+
+        while( it.hasNext() ) {
+            items.add(it.next());
+        }
+        return items;
+    }
+
+    @Test
+    public void itemsAreReadInOrderThroughASmallBuffer() throws Exception {
+        OpSource provider = CallCacheTest.getProvider("a", "streamBufferSize", "10");
+        CountingProducer producer = new CountingProducer(1000, null);
+        ListingStream<Integer> stream = new ListingStream<Integer>(provider, "test", producer);
+        List<Integer> items = drain(stream.iterator());
+
+        assertEquals(1000, items.size());
+        for( int i=0; i<items.size(); i++ ) {
+            assertEquals(Integer.valueOf(i), items.get(i));
+        }
+        assertTrue(stream.isClosed());
+        assertTrue(producer.done.await(5, TimeUnit.SECONDS));
+        assertEquals(null, producer.stoppedBy);
+    }
+
+    @Test
+    public void producerWaitsForTheReader() throws Exception {
+        OpSource provider = CallCacheTest.getProvider("a", "streamBufferSize", "5");
+        CountingProducer producer = new CountingProducer(100, null);
+        ListingStream<Integer> stream = new ListingStream<Integer>(provider, "test", producer);
+
+        Thread.sleep(300L);
+        assertEquals(5, producer.pushed);
+        assertFalse(producer.done.await(0, TimeUnit.SECONDS));
+        assertEquals(100, drain(stream.iterator()).size());
+    }
+
+    @Test
+    public void earlyCloseStopsTheProducerSilently() throws Exception {
+        OpSource provider = CallCacheTest.getProvider("a", "streamBufferSize", "5");
+        CountingProducer producer = new CountingProducer(Integer.MAX_VALUE, null);
+        ListingStream<Integer> stream = new ListingStream<Integer>(provider, "test", producer);
+        Iterator<Integer> it = stream.iterator();
+
+        assertEquals(Integer.valueOf(0), it.next());
+        assertEquals(Integer.valueOf(1), it.next());
+        stream.close();
+
+        assertTrue("The producer was not stopped", producer.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(producer.stoppedBy);
+        assertTrue(stream.isClosed());
+        // a reader that closed the stream itself sees a plain end
+        assertFalse(it.hasNext());
+        stream.close();
+    }
+
+    @Test
+    public void producerFailureSurfacesAfterTheBufferedItems() throws Exception {
+        OpSource provider = CallCacheTest.getProvider("a");
+        CloudException failure = new CloudException("page 3 failed");
+        ListingStream<Integer> stream = new ListingStream<Integer>(provider, "test", new CountingProducer(3, failure));
+        Iterator<Integer> it = stream.iterator();
+        List<Integer> items = new ArrayList<Integer>();
+
+        try {
+            while( it.hasNext() ) {
+                items.add(it.next());
+            }
+            fail("The failure of the producer was not reported");
+        }
+        catch( JiteratorLoadException e ) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(3, items.size());
+    }
+
+    @Test
+    public void idleTimeoutReportsAnIncompleteListing() throws Exception {
+        OpSource provider = CallCacheTest.getProvider("a", "streamBufferSize", "2", "streamIdleTimeout", "1000");
+        CountingProducer producer = new CountingProducer(10, null);
+        ListingStream<Integer> stream = new ListingStream<Integer>(provider, "test", producer);
+
+        assertTrue("The producer did not give up", producer.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(producer.stoppedBy);
+        assertEquals(2, producer.pushed);
+        assertFalse(stream.isClosed());
+
+        // the late reader gets what was buffered, then learns the listing is incomplete
+        Iterator<Integer> it = stream.iterator();
+
+        assertEquals(Integer.valueOf(0), it.next());
+        assertEquals(Integer.valueOf(1), it.next());
+        try {
+            it.hasNext();
+            fail("An abandoned listing looked complete");
+        }
+        catch( JiteratorLoadException e ) {
+            assertSame(producer.stoppedBy, e.getCause());
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void listingCanBeIteratedOnce() throws Exception {
+        ListingStream<Integer> stream = new ListingStream<Integer>(CallCacheTest.getProvider("a"), "test", new CountingProducer(1, null));
+
+        drain(stream.iterator());
+        stream.iterator();
+    }
+
+    @Test(timeout=10000)
+    public void stalledReaderDoesNotBlockOtherCalls() throws Exception {
+        TestServer server = new TestServer();
+
+        try {
+            StringBuilder servers = new StringBuilder("<ServersWithState pageCount=\"5\" totalCount=\"5\">");
+
+            for( int i=0; i<5; i++ ) {
+                servers.append("<serverWithState id=\"").append(i).append("\"/>");
+            }
+            server.reply("/servers", servers.append("</ServersWithState>").toString());
+            server.reply("/other", "<Other/>");
+
+            // one request at a time for the account, and room for a single item in the buffer
+            final OpSource provider = server.connect("maxRequestsInFlight", "1", "streamBufferSize", "1");
+            final String endpoint = server.getEndpoint();
+            ListingStream<String> stream = new ListingStream<String>(provider, "test", new ListingStream.Producer<String>() {
+                @Override
+                public void produce(@Nonnull PagedFetch.Sink<String> sink) throws CloudException, InternalException {
+                    new PagedFetch<String>(provider, "serverWithState", 250) {
+                        @Override
+                        protected @Nonnull String getUrl(int pageNumber, int pageSize) {
+                            return endpoint + "/servers?pageNumber=" + pageNumber;
+                        }
+
+                        @Override
+                        protected String toItem(@Nonnull Element element) {
+                            return element.getAttribute("id");
+                        }
+                    }.fetch(sink);
+                }
+            });
+
+            try {
+                // the producer is now blocked on the full buffer
+                while( server.getRequestCount("/servers") < 1 ) {
+                    Thread.sleep(20L);
+                }
+                Thread.sleep(200L);
+
+                OpSourceMethod other = new OpSourceMethod(provider, endpoint + "/other", provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+
+                assertEquals("Other", other.invoke().getDocumentElement().getTagName());
+            }
+            finally {
+                stream.close();
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+}
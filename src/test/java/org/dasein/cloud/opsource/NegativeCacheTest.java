@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NegativeCacheTest {
+    static private String newAccount() {
+        return "negative-" + System.nanoTime();
+    }
+
+    @Test
+    public void missingIdExpires() throws Exception {
+        NegativeCache cache = NegativeCache.getInstance();
+        OpSource provider = CallCacheTest.getProvider(newAccount(), "negativeCacheTtl", "100");
+
+        assertFalse(cache.isMissing(provider, "server", "1"));
+        cache.setMissing(provider, "server", "1");
+        assertTrue(cache.isMissing(provider, "server", "1"));
+        Thread.sleep(150L);
+        assertFalse(cache.isMissing(provider, "server", "1"));
+    }
+
+    @Test
+    public void resourceTtlOverridesTheGeneralOne() throws Exception {
+        NegativeCache cache = NegativeCache.getInstance();
+        OpSource provider = CallCacheTest.getProvider(newAccount(), "negativeCacheTtl", "60000", "negativeCacheTtl.image", "0");
+
+        cache.setMissing(provider, "server", "1");
+        cache.setMissing(provider, "image", "1");
+        assertTrue(cache.isMissing(provider, "server", "1"));
+        // 0 turns negative caching off for the resource
+        assertFalse(cache.isMissing(provider, "image", "1"));
+    }
+
+    @Test
+    public void createClearsTheResourceForTheAccountOnly() throws Exception {
+        NegativeCache cache = NegativeCache.getInstance();
+        OpSource provider = CallCacheTest.getProvider(newAccount());
+        OpSource other = CallCacheTest.getProvider(newAccount());
+
+        cache.setMissing(provider, "server", "1");
+        cache.setMissing(provider, "image", "1");
+        cache.setMissing(other, "server", "1");
+        // what a create call does once the API has answered
+        CallCache.getInstance().changed(provider, "server");
+        assertFalse(cache.isMissing(provider, "server", "1"));
+        assertTrue(cache.isMissing(provider, "image", "1"));
+        assertTrue(cache.isMissing(other, "server", "1"));
+    }
+
+    @Test
+    public void oldestEntryIsDroppedBeyondTheLimit() throws Exception {
+        NegativeCache cache = NegativeCache.getInstance();
+        OpSource provider = CallCacheTest.getProvider(newAccount(), "negativeCacheMaxEntries", "2");
+
+        cache.clear();
+        cache.setMissing(provider, "server", "1");
+        cache.setMissing(provider, "server", "2");
+        cache.setMissing(provider, "server", "3");
+        assertEquals(2, cache.size());
+        assertFalse(cache.isMissing(provider, "server", "1"));
+        assertTrue(cache.isMissing(provider, "server", "3"));
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class OpSourceMethodTest {
+    static private final String SERVERS = "<ServersWithState xmlns=\"http://oec.api.opsource.net/schemas/server\" totalCount=\"3\">"
+            + "<serverWithState id=\"a\"/><serverWithState id=\"b\"/><serverWithState id=\"c\"/></ServersWithState>";
+
+    private TestServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private OpSourceMethod get(OpSource provider, String path) throws Exception {
+        return new OpSourceMethod(provider, server.getEndpoint() + path, provider.getBasicRequestParameters(OpSource.Content_Type_Value_Single_Para, "GET", null));
+    }
+
+    /**
+     * Collects the IDs of the streamed items, failing on the one specified.
+     */
+    static private class Collector implements OpSourceMethod.ElementHandler {
+        final List<String>     ids = new ArrayList<String>();
+        final String           failOn;
+        final RuntimeException failure = new IllegalStateException("handler failed");
+
+        Collector(String failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override
+        public void handleElement(@Nonnull Element element) {
+            String id = element.getAttribute("id");
+
+            if( id.equals(failOn) ) {
+                throw failure;
+            }
+            ids.add(id);
+        }
+    }
+
+    @Test
+    public void streamedItemsAreHandedOutInOrder() throws Exception {
+        server.reply("/servers", SERVERS);
+
+        Collector collector = new Collector(null);
+        OpSource provider = server.connect();
+
+        assertEquals("3", get(provider, "/servers").invoke("serverWithState", collector).getDocumentElement().getAttribute("totalCount"));
+        assertEquals(Arrays.asList("a", "b", "c"), collector.ids);
+    }
+
+    @Test
+    public void truncatedStreamFails() throws Exception {
+        server.reply("/servers", SERVERS.substring(0, SERVERS.indexOf("<serverWithState id=\"c\"") + 10));
+
+        Collector collector = new Collector(null);
+
+        try {
+            get(server.connect(), "/servers").invoke("serverWithState", collector);
+            fail("A cut-off listing passed for a complete one");
+        }
+        catch( CloudException expected ) {
+            // the items read before the cut were handed out
+            assertEquals(Arrays.asList("a", "b"), collector.ids);
+        }
+    }
+
+    @Test
+    public void failingHandlerFails() throws Exception {
+        server.reply("/servers", SERVERS);
+
+        Collector collector = new Collector("b");
+
+        try {
+            get(server.connect(), "/servers").invoke("serverWithState", collector);
+            fail("The failure of the handler was swallowed");
+        }
+        catch( InternalException e ) {
+            assertSame(collector.failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void asyncCallsAreRefusedOnceClosed() throws Exception {
+        server.reply("/servers", SERVERS);
+
+        OpSource provider = server.connect();
+
+        assertEquals("3", get(provider, "/servers").invokeAsync().get(5, TimeUnit.SECONDS).getDocumentElement().getAttribute("totalCount"));
+        provider.close();
+        try {
+            get(provider, "/servers").invokeAsync();
+            fail("A closed provider accepted a call");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void heldProviderKeepsWorkingUntilReleased() throws Exception {
+        server.reply("/servers", SERVERS);
+
+        OpSource provider = server.connect();
+
+        provider.hold();
+        provider.close();
+        // background work holding the provider outlives close()
+        assertEquals("3", get(provider, "/servers").invokeAsync().get(5, TimeUnit.SECONDS).getDocumentElement().getAttribute("totalCount"));
+        assertEquals("3", get(provider, "/servers").invoke().getDocumentElement().getAttribute("totalCount"));
+        provider.release();
+        try {
+            get(provider, "/servers").invokeAsync();
+            fail("A closed provider accepted a call after its last hold was released");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        try {
+            provider.getConnectionManager();
+            fail("A closed provider created a new connection pool");
+        }
+        catch( IllegalStateException expected ) {
+            // expected
+        }
+    }
+
+    @Test(timeout=10000)
+    public void asyncCallsPerEndpointAreBounded() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        server.handle("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int n = inFlight.incrementAndGet();
+
+                while( true ) {
+                    int max = maxInFlight.get();
+
+                    if( n <= max || maxInFlight.compareAndSet(max, n) ) {
+                        break;
+                    }
+                }
+                try {
+                    release.await();
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                TestServer.send(exchange, 200, SERVERS);
+            }
+        });
+        OpSource provider = server.connect("maxAsyncRequestsPerEndpoint", "2");
+        List<Future<?>> calls = new ArrayList<Future<?>>();
+
+        // distinct URLs, so that no call is coalesced with another
+        for( int i=0; i<6; i++ ) {
+            calls.add(get(provider, "/slow?call=" + i).invokeAsync());
+        }
+        while( inFlight.get() < 2 ) {
+            Thread.sleep(10L);
+        }
+        Thread.sleep(200L);
+        assertEquals(2, inFlight.get());
+        release.countDown();
+        for( Future<?> call : calls ) {
+            call.get();
+        }
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test(timeout=10000)
+    public void readsWithOtherCredentialsAreNotCoalesced() throws Exception {
+        final CountDownLatch arrived = new CountDownLatch(2);
+        final AtomicInteger requests = new AtomicInteger(0);
+
+        server.handle("/account", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                arrived.countDown();
+                try {
+                    // holds the first read in flight until the second one was sent, or surely joined it instead
+                    arrived.await(1000L, TimeUnit.MILLISECONDS);
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                TestServer.send(exchange, 200, "<account auth=\"" + exchange.getRequestHeaders().getFirst("Authorization") + "\"/>");
+            }
+        });
+        String account = "shared-" + System.nanoTime();
+        OpSource valid = server.connectAs(account, "secret");
+        OpSource other = server.connectAs(account, "other");
+        Future<Document> first = get(valid, "/account").invokeAsync();
+
+        while( requests.get() < 1 ) {
+            Thread.sleep(10L);
+        }
+        Document second = get(other, "/account").invoke();
+
+        assertEquals(2, requests.get());
+        assertEquals(valid.getAuthorizationHeader(), first.get().getDocumentElement().getAttribute("auth"));
+        assertEquals(other.getAuthorizationHeader(), second.getDocumentElement().getAttribute("auth"));
+    }
+
+    /**
+     * Keeps the metrics of every call.
+     */
+    static private class Recorder implements MethodListener {
+        final List<MethodMetrics> calls = new CopyOnWriteArrayList<MethodMetrics>();
+
+        @Override
+        public void methodCompleted(@Nonnull MethodMetrics metrics) {
+            calls.add(metrics);
+        }
+    }
+
+    @Test
+    public void listenersGetTimingsAndSizes() throws Exception {
+        server.handle("/servers", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(100L);
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                TestServer.send(exchange, 200, SERVERS);
+            }
+        });
+        OpSource provider = server.connect();
+        Recorder recorder = new Recorder();
+
+        provider.addMethodListener(recorder);
+        get(provider, "/servers").invoke();
+        assertEquals(1, recorder.calls.size());
+
+        MethodMetrics metrics = recorder.calls.get(0);
+        long size = SERVERS.getBytes("UTF-8").length;
+
+        assertEquals("GET", metrics.getHttpMethod());
+        assertEquals(200, metrics.getStatusCode());
+        assertEquals(1, metrics.getAttempts());
+        assertNull(metrics.getFailure());
+        assertEquals(size, metrics.getContentLength());
+        assertEquals(size, metrics.getResponseSize());
+        assertTrue(metrics.toString(), metrics.getFirstByteTime() >= 100L);
+        assertTrue(metrics.toString(), metrics.getParseTime() >= 0L);
+        assertTrue(metrics.toString(), metrics.getTotalTime() >= metrics.getFirstByteTime());
+    }
+
+    @Test
+    public void listenersGetFailedCalls() throws Exception {
+        server.handle("/broken", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                TestServer.send(exchange, 500, "<html><body>Internal Server Error</body>");
+            }
+        });
+        OpSource provider = server.connect();
+        Recorder recorder = new Recorder();
+
+        provider.addMethodListener(recorder);
+        try {
+            get(provider, "/broken").invoke();
+            fail("A server error passed for a response");
+        }
+        catch( CloudException e ) {
+            assertEquals(1, recorder.calls.size());
+            assertSame(e, recorder.calls.get(0).getFailure());
+            assertEquals(500, recorder.calls.get(0).getStatusCode());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.commons.codec.binary.Base64;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OpSourceTest {
+    private TestServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+        // only the right key gets anything
+        server.handle("/oec/0.9/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String expected = "Basic " + new String(Base64.encodeBase64("user:secret".getBytes("UTF-8")), "UTF-8");
+
+                if( !expected.equals(exchange.getRequestHeaders().getFirst("Authorization")) ) {
+                    TestServer.send(exchange, 401, "<ns2:Status xmlns:ns2=\"http://oec.api.opsource.net/schemas/general\"><ns2:operation>myaccount</ns2:operation><ns2:result>ERROR</ns2:result><ns2:resultDetail>Not authorized</ns2:resultDetail><ns2:resultCode>REASON_401</ns2:resultCode></ns2:Status>");
+                }
+                else if( exchange.getRequestURI().getPath().endsWith("/myaccount") ) {
+                    TestServer.send(exchange, 200, "<ns3:Account xmlns:ns3=\"http://oec.api.opsource.net/schemas/directory\"><ns3:userName>user</ns3:userName><ns3:orgId>org-1</ns3:orgId></ns3:Account>");
+                }
+                else {
+                    TestServer.send(exchange, 200, "<ns4:DatacentersWithLimits xmlns:ns4=\"http://oec.api.opsource.net/schemas/datacenter\"/>");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private OpSource connect(String account, String secret) throws Exception {
+        ProviderContext ctx = new ProviderContext(account, "region");
+
+        ctx.setEndpoint(server.getEndpoint());
+        ctx.setAccessKeys("user".getBytes("UTF-8"), secret.getBytes("UTF-8"));
+        ctx.setCustomProperties(new Properties());
+
+        OpSource provider = new OpSource();
+
+        provider.connect(ctx);
+        return provider;
+    }
+
+    @Test
+    public void rightKeyPassesTheTest() throws Exception {
+        assertEquals("user", connect("test-context-" + System.nanoTime(), "secret").testContext());
+    }
+
+    @Test
+    public void wrongKeyFailsEvenWithTheAccountCached() throws Exception {
+        String account = "test-context-" + System.nanoTime();
+        OpSource good = connect(account, "secret");
+
+        // whatever the test reads through the cache is now cached for the account
+        assertEquals("org-1", good.getOrgId(good.getEndpoint(null)));
+        assertEquals("user", good.testContext());
+        assertNull(connect(account, "wrong").testContext());
+    }
+}
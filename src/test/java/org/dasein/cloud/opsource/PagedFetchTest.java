@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * Runs {@link PagedFetch} against a local HTTP server serving a listing of numbered items.
+ */
+public class PagedFetchTest {
+    static private final int PAGE_SIZE = 5;
+
+    private TestServer server;
+
+    /** the number of items actually listed */
+    private volatile int     itemCount;
+    /** the total announced on each page, or -1 for none */
+    private volatile int     announcedTotal;
+    /** how long each page takes to serve, in milliseconds */
+    private final ConcurrentHashMap<Integer, Long> delays = new ConcurrentHashMap<Integer, Long>();
+
+    private final List<Integer> requested = Collections.synchronizedList(new ArrayList<Integer>());
+    private final AtomicInteger active    = new AtomicInteger(0);
+    private final AtomicInteger maxActive = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TestServer();
+        server.handle("/servers", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int page = Integer.parseInt(exchange.getRequestURI().getQuery().replaceAll(".*page=(\\d+).*", "$1"));
+                int now = active.incrementAndGet();
+
+                requested.add(page);
+                while( now > maxActive.get() && !maxActive.compareAndSet(maxActive.get(), now) ) {
+                    now = active.get();
+                }
+                try {
+                    Long delay = delays.get(page);
+
+                    if( delay != null ) {
+                        Thread.sleep(delay);
+                    }
+                    TestServer.send(exchange, 200, getPage(page));
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    active.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private String getPage(int page) {
+        int first = (page - 1) * PAGE_SIZE;
+        int count = Math.max(0, Math.min(PAGE_SIZE, itemCount - first));
+        StringBuilder str = new StringBuilder();
+
+        str.append("<ServersWithState xmlns=\"http://oec.api.opsource.net/schemas/server\" pageNumber=\"").append(page);
+        str.append("\" pageCount=\"").append(count).append("\" pageSize=\"").append(PAGE_SIZE).append("\"");
+        if( announcedTotal > -1 ) {
+            str.append(" totalCount=\"").append(announcedTotal).append("\"");
+        }
+        str.append(">");
+        for( int i=first; i<first + count; i++ ) {
+            str.append("<serverWithState id=\"").append(i).append("\"><name>server ").append(i).append("</name></serverWithState>");
+        }
+        str.append("</ServersWithState>");
+        return str.toString();
+    }
+
+    private PagedFetch<Integer> getFetch(final OpSource provider) {
+        return new PagedFetch<Integer>(provider, "serverWithState", PAGE_SIZE) {
+            @Override
+            protected @Nonnull String getUrl(int pageNumber, int pageSize) {
+                return provider.getContext().getEndpoint() + "/servers?pageSize=" + pageSize + "&page=" + pageNumber;
+            }
+
+            @Override
+            protected @Nullable Integer toItem(@Nonnull Element element) {
+                return Integer.valueOf(element.getAttribute("id"));
+            }
+        };
+    }
+
+    private List<Integer> fetch(OpSource provider) throws CloudException, InternalException {
+        final List<Integer> items = new ArrayList<Integer>();
+
+        getFetch(provider).fetch(new PagedFetch.Sink<Integer>() {
+            @Override
+            public void push(@Nonnull Integer item) {
+                items.add(item);
+            }
+        });
+        return items;
+    }
+
+    static private List<Integer> range(int count) {
+        List<Integer> list = new ArrayList<Integer>();
+
+        for( int i=0; i<count; i++ ) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void itemsArePushedInListingOrder() throws Exception {
+        itemCount = 23;
+        announcedTotal = 23;
+        // the early pages complete last
+        delays.put(2, 300L);
+        delays.put(3, 150L);
+
+        assertEquals(range(23), fetch(server.connect("maxPagesInFlight", "4")));
+        assertEquals(5, requested.size());
+        assertTrue("Pages were not fetched concurrently", maxActive.get() > 1);
+    }
+
+    @Test
+    public void pagesInFlightAreBounded() throws Exception {
+        itemCount = 50;
+        announcedTotal = 50;
+        for( int page=2; page<=10; page++ ) {
+            delays.put(page, 50L);
+        }
+        assertEquals(range(50), fetch(server.connect("maxPagesInFlight", "2")));
+        assertEquals(10, requested.size());
+        assertEquals(2, maxActive.get());
+    }
+
+    @Test
+    public void failingSinkCancelsOutstandingPages() throws Exception {
+        final CloudException failure = new CloudException("enough");
+
+        itemCount = 50;
+        announcedTotal = 50;
+        // one request at a time: page 4 waits in the queue behind the slow page 3
+        delays.put(3, 500L);
+
+        OpSource provider = server.connect("maxPagesInFlight", "3", "maxAsyncRequestsPerEndpoint", "1");
+
+        try {
+            getFetch(provider).fetch(new PagedFetch.Sink<Integer>() {
+                @Override
+                public void push(@Nonnull Integer item) throws CloudException {
+                    if( item == PAGE_SIZE ) {
+                        throw failure;
+                    }
+                }
+            });
+            fail("The failure of the sink was not passed on");
+        }
+        catch( CloudException e ) {
+            assertSame(failure, e);
+        }
+        Thread.sleep(700L);
+        assertFalse("A cancelled page was still requested: " + requested, requested.contains(4));
+        assertTrue(requested.size() <= 3);
+    }
+
+    @Test
+    public void shortFinalPageEndsAListingWithoutTotal() throws Exception {
+        itemCount = 12;
+        announcedTotal = -1;
+
+        assertEquals(range(12), fetch(server.connect()));
+        assertEquals(3, requested.size());
+    }
+
+    @Test
+    public void emptyFinalPageEndsAListingOfFullPages() throws Exception {
+        itemCount = 10;
+        announcedTotal = -1;
+
+        assertEquals(range(10), fetch(server.connect()));
+        assertEquals(3, requested.size());
+    }
+
+    @Test
+    public void listingShorterThanAnnouncedStopsAtTheShortPage() throws Exception {
+        itemCount = 12;
+        announcedTotal = 50;
+
+        assertEquals(range(12), fetch(server.connect("maxPagesInFlight", "2")));
+        // the pages requested ahead of the short one are dropped, not pushed
+        assertTrue(requested.size() <= 5);
+    }
+
+    @Test
+    public void singlePageListingMakesOneRequest() throws Exception {
+        itemCount = 3;
+        announcedTotal = 3;
+
+        assertEquals(range(3), fetch(server.connect()));
+        assertEquals(Collections.singletonList(1), requested);
+    }
+}
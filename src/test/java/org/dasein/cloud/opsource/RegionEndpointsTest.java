@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegionEndpointsTest {
+    static private final String ACCOUNT = "<ns3:Account xmlns:ns3=\"http://oec.api.opsource.net/schemas/directory\"><ns3:userName>user</ns3:userName><ns3:orgId>org-1</ns3:orgId></ns3:Account>";
+    static private final String REGIONS = "<ns4:DatacentersWithLimits xmlns:ns4=\"http://oec.api.opsource.net/schemas/datacenter\"><ns4:datacenterWithLimits><ns4:location>NA1</ns4:location><ns4:displayName>US - East</ns4:displayName><ns4:country>US</ns4:country></ns4:datacenterWithLimits></ns4:DatacentersWithLimits>";
+
+    private TestServer    server;
+    private AtomicInteger regionCalls;
+    private volatile boolean broken;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+        regionCalls = new AtomicInteger(0);
+        broken = false;
+        server.handle("/oec/0.9/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if( broken ) {
+                    // what the endpoint answers to an account it does not know: not an API document at all
+                    TestServer.send(exchange, 401, "<html><body>Authorization Required</body>");
+                }
+                else if( exchange.getRequestURI().getPath().endsWith("/myaccount") ) {
+                    TestServer.send(exchange, 200, ACCOUNT);
+                }
+                else {
+                    regionCalls.incrementAndGet();
+                    TestServer.send(exchange, 200, REGIONS);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void bareHostsGetTheHttpsScheme() {
+        assertEquals("https://api.opsourcecloud.net", RegionEndpoints.normalize("api.opsourcecloud.net"));
+        assertEquals("http://127.0.0.1:8080", RegionEndpoints.normalize("http://127.0.0.1:8080"));
+        assertEquals("HTTPS://API.OPSOURCECLOUD.NET", RegionEndpoints.normalize("HTTPS://API.OPSOURCECLOUD.NET"));
+    }
+
+    @Test
+    public void recordedEndpointsAreNormalized() throws Exception {
+        RegionEndpoints registry = server.connect().getRegionEndpoints();
+
+        assertNull(registry.get("EU1"));
+        registry.put("EU1", "eu.opsourcecloud.net");
+        assertEquals("https://eu.opsourcecloud.net", registry.get("EU1"));
+        assertEquals("https://eu.opsourcecloud.net", registry.getEndpoints().get("EU1"));
+    }
+
+    @Test
+    public void resolvedRegionsAreRemembered() throws Exception {
+        OpSource provider = server.connect();
+
+        assertEquals(server.getEndpoint(), provider.getRegionEndpoints().resolve(provider, "NA1"));
+        assertEquals(server.getEndpoint(), server.connect().getRegionEndpoints().resolve(provider, "NA1"));
+        assertEquals(1, regionCalls.get());
+    }
+
+    @Test
+    public void unlistedRegionHasNoEndpoint() throws Exception {
+        OpSource provider = server.connect();
+
+        assertNull(provider.getRegionEndpoints().resolve(provider, "AP1"));
+        assertNull(provider.getEndpoint("AP1"));
+    }
+
+    @Test
+    public void unreachableCloudFails() throws Exception {
+        OpSource provider = server.connect();
+
+        broken = true;
+        try {
+            provider.getRegionEndpoints().resolve(provider, "NA1");
+            fail("a cloud whose only endpoint fails must not pass for a cloud without the region");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        try {
+            provider.getDataCenterServices().listRegions();
+            fail("a cloud whose only endpoint fails must not pass for a cloud without regions");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertNull(provider.getEndpoint("NA1"));
+    }
+
+    @Test
+    public void changesToListedRegionsDoNotReachTheCache() throws Exception {
+        OpSource provider = server.connect();
+
+        provider.getDataCenterServices().listRegions().iterator().next().setName("changed");
+        provider.getDataCenterServices().getRegion("NA1").setActive(false);
+        assertEquals("US - East", provider.getDataCenterServices().getRegion("NA1").getName());
+        assertTrue(provider.getDataCenterServices().listRegions().iterator().next().isActive());
+        assertEquals(1, regionCalls.get());
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.junit.Test;
+
+public class RequestGovernorTest {
+    @Test
+    public void burstIsAdmittedWithoutWaiting() throws Exception {
+        RequestGovernor governor = new RequestGovernor(1L, 5, 10);
+
+        for( int i=0; i<5; i++ ) {
+            governor.acquire();
+        }
+        assertEquals(5L, governor.getRequestCount());
+        assertEquals(0L, governor.getDelayedCount());
+        assertEquals(5, governor.getInFlightCount());
+        for( int i=0; i<5; i++ ) {
+            governor.release();
+        }
+        assertEquals(0, governor.getInFlightCount());
+    }
+
+    @Test
+    public void callsBeyondTheBurstWaitForATokenInTurn() throws Exception {
+        // 20 tokens per second: one token every 50ms
+        RequestGovernor governor = new RequestGovernor(20L, 2, 10);
+        long start = System.currentTimeMillis();
+
+        for( int i=0; i<5; i++ ) {
+            governor.acquire();
+            governor.release();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // three calls in debt, 50ms apart
+        assertTrue("Only waited " + elapsed + "ms", elapsed >= 140L);
+        assertEquals(5L, governor.getRequestCount());
+        // three tokens short; a late wake-up may let a refill cover the next call
+        assertTrue(governor.getDelayedCount() >= 2L && governor.getDelayedCount() <= 3L);
+        assertTrue(governor.getMaxWaitTime() >= 40L);
+        assertTrue(governor.getTotalWaitTime() >= governor.getMaxWaitTime());
+    }
+
+    @Test
+    public void noRateMeansNoWaiting() throws Exception {
+        RequestGovernor governor = new RequestGovernor(0L, 1, 10);
+
+        for( int i=0; i<100; i++ ) {
+            governor.acquire();
+            governor.release();
+        }
+        assertEquals(100L, governor.getRequestCount());
+        assertEquals(0L, governor.getDelayedCount());
+    }
+
+    @Test
+    public void callsBeyondTheInFlightLimitWaitForARelease() throws Exception {
+        final RequestGovernor governor = new RequestGovernor(0L, 1, 2);
+        final CountDownLatch admitted = new CountDownLatch(1);
+
+        governor.acquire();
+        governor.acquire();
+        assertEquals(2, governor.getInFlightCount());
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    governor.acquire();
+                    admitted.countDown();
+                }
+                catch( Exception ignore ) {
+                    // the assertion below fails
+                }
+            }
+        };
+
+        t.start();
+        assertTrue(waitForWaiting(governor, 1));
+        assertEquals(1L, admitted.getCount());
+
+        governor.release();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, governor.getWaitingCount());
+        assertEquals(2, governor.getInFlightCount());
+        assertEquals(3L, governor.getRequestCount());
+        governor.release();
+        governor.release();
+        assertEquals(0, governor.getInFlightCount());
+    }
+
+    @Test
+    public void interruptedWaitReleasesNothing() throws Exception {
+        final RequestGovernor governor = new RequestGovernor(0L, 1, 1);
+        final Exception[] failure = new Exception[1];
+
+        governor.acquire();
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    governor.acquire();
+                }
+                catch( Exception e ) {
+                    failure[0] = e;
+                }
+            }
+        };
+
+        t.start();
+        assertTrue(waitForWaiting(governor, 1));
+        t.interrupt();
+        t.join(5000L);
+        assertTrue(failure[0] instanceof CloudException);
+        assertEquals(1, governor.getInFlightCount());
+        assertEquals(1L, governor.getRequestCount());
+        governor.release();
+        assertEquals(0, governor.getInFlightCount());
+    }
+
+    static private boolean waitForWaiting(RequestGovernor governor, int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000L;
+
+        while( governor.getWaitingCount() < count ) {
+            if( System.currentTimeMillis() > timeout ) {
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+        // give the waiter time to block on the permit rather than just having entered acquire()
+        Thread.sleep(50L);
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+    static private final int SAMPLES = 2000;
+
+    @Test
+    public void delayStaysWithinTheExponentialCeiling() {
+        RetryPolicy policy = new RetryPolicy(4, 100L, 10000L, 60);
+
+        for( int retry=1; retry<=4; retry++ ) {
+            long ceiling = 100L << (retry - 1);
+
+            for( int i=0; i<SAMPLES; i++ ) {
+                long delay = policy.getDelay(retry);
+
+                assertTrue("Delay " + delay + " for retry " + retry + " is not positive", delay >= 1L);
+                assertTrue("Delay " + delay + " for retry " + retry + " exceeds " + ceiling, delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void delayIsCappedAtTheMaximum() {
+        RetryPolicy policy = new RetryPolicy(100, 500L, 2000L, 60);
+        long longest = 0L;
+
+        for( int i=0; i<SAMPLES; i++ ) {
+            long delay = policy.getDelay(50);
+
+            assertTrue("Delay " + delay + " exceeds the maximum", delay <= 2000L);
+            longest = Math.max(longest, delay);
+        }
+        // full jitter over the capped ceiling rather than over the base delay
+        assertTrue("Delays never went beyond the base delay", longest > 500L);
+    }
+
+    @Test
+    public void settingsAreClampedToSaneValues() {
+        RetryPolicy policy = new RetryPolicy(0, 0L, -1L, -5);
+
+        assertEquals(1, policy.getMaxAttempts());
+        assertEquals(1L, policy.getDelay(10));
+        assertFalse(policy.acquireRetry());
+    }
+
+    @Test
+    public void budgetRefusesRetriesOnceSpent() {
+        RetryPolicy policy = new RetryPolicy(4, 100L, 1000L, 3);
+
+        assertTrue(policy.acquireRetry());
+        assertTrue(policy.acquireRetry());
+        assertTrue(policy.acquireRetry());
+        assertFalse(policy.acquireRetry());
+        assertFalse(policy.acquireRetry());
+        assertEquals(3L, policy.getRetryCount());
+        assertEquals(2L, policy.getBudgetRejectedCount());
+    }
+
+    @Test
+    public void exhaustedCallsAreCounted() {
+        RetryPolicy policy = new RetryPolicy(4, 100L, 1000L, 3);
+
+        policy.recordExhausted();
+        policy.recordExhausted();
+        assertEquals(2L, policy.getExhaustedCount());
+        assertEquals(0L, policy.getRetryCount());
+    }
+}
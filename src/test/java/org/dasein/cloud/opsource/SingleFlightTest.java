@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.junit.Test;
+
+public class SingleFlightTest {
+    static private final int FOLLOWERS = 5;
+
+    /**
+     * A call that blocks until released and counts how often it was made.
+     */
+    static private class BlockingCall implements SingleFlight.Call<List<String>> {
+        final AtomicInteger  calls   = new AtomicInteger(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CloudException failure;
+
+        BlockingCall(CloudException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public List<String> call() throws CloudException, InternalException {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch( InterruptedException e ) {
+                throw new CloudException(e);
+            }
+            if( failure != null ) {
+                throw failure;
+            }
+            List<String> list = new ArrayList<String>();
+
+            list.add("result");
+            return list;
+        }
+    }
+
+    /**
+     * Runs the leader and the followers and collects what each of them got.
+     */
+    static private List<Object> run(final SingleFlight<List<String>> flight, final BlockingCall call) throws Exception {
+        final List<Object> outcomes = new ArrayList<Object>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<=FOLLOWERS; i++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    Object outcome;
+
+                    try {
+                        outcome = flight.execute("key", call);
+                    }
+                    catch( Exception e ) {
+                        outcome = e;
+                    }
+                    synchronized( outcomes ) {
+                        outcomes.add(outcome);
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+            if( i == 0 ) {
+                assertTrue(call.started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        long timeout = System.currentTimeMillis() + 5000L;
+
+        while( flight.getFollowerCount() < FOLLOWERS && System.currentTimeMillis() < timeout ) {
+            Thread.sleep(10L);
+        }
+        call.release.countDown();
+        for( Thread t : threads ) {
+            t.join(5000L);
+        }
+        return outcomes;
+    }
+
+    @Test
+    public void concurrentCallersShareOneCall() throws Exception {
+        SingleFlight<List<String>> flight = new SingleFlight<List<String>>();
+        BlockingCall call = new BlockingCall(null);
+        List<Object> outcomes = run(flight, call);
+
+        assertEquals(1, call.calls.get());
+        assertEquals(1L, flight.getLeaderCount());
+        assertEquals((long)FOLLOWERS, flight.getFollowerCount());
+        assertEquals(FOLLOWERS + 1, outcomes.size());
+        for( Object outcome : outcomes ) {
+            assertEquals("[result]", String.valueOf(outcome));
+        }
+    }
+
+    @Test
+    public void failureIsSharedWithEveryCaller() throws Exception {
+        SingleFlight<List<String>> flight = new SingleFlight<List<String>>();
+        CloudException failure = new CloudException("boom");
+        List<Object> outcomes = run(flight, new BlockingCall(failure));
+
+        assertEquals(FOLLOWERS + 1, outcomes.size());
+        for( Object outcome : outcomes ) {
+            assertSame(failure, outcome);
+        }
+    }
+
+    @Test
+    public void joinedCallersEachGetTheirOwnShare() throws Exception {
+        SingleFlight<List<String>> flight = new SingleFlight<List<String>>() {
+            @Override
+            protected List<String> share(List<String> value) {
+                return new ArrayList<String>(value);
+            }
+        };
+        List<Object> outcomes = run(flight, new BlockingCall(null));
+
+        for( int i=0; i<outcomes.size(); i++ ) {
+            for( int j=i+1; j<outcomes.size(); j++ ) {
+                assertNotSame(outcomes.get(i), outcomes.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void completedCallsAreNotRemembered() throws Exception {
+        SingleFlight<List<String>> flight = new SingleFlight<List<String>>();
+        BlockingCall call = new BlockingCall(null);
+
+        call.release.countDown();
+        flight.execute("key", call);
+        flight.execute("key", call);
+        assertEquals(2, call.calls.get());
+        assertEquals(2L, flight.getLeaderCount());
+        assertEquals(0L, flight.getFollowerCount());
+    }
+
+    @Test
+    public void differentKeysAreNotCoalesced() throws Exception {
+        final SingleFlight<List<String>> flight = new SingleFlight<List<String>>();
+        final BlockingCall call = new BlockingCall(null);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flight.execute("first", call);
+                }
+                catch( Exception ignore ) {
+                    // the call count below is wrong
+                }
+            }
+        };
+
+        t.start();
+        assertTrue(call.started.await(5, TimeUnit.SECONDS));
+
+        BlockingCall other = new BlockingCall(null);
+
+        other.release.countDown();
+        flight.execute("second", other);
+        call.release.countDown();
+        t.join(5000L);
+        assertEquals(1, call.calls.get());
+        assertEquals(1, other.calls.get());
+        assertEquals(2L, flight.getLeaderCount());
+    }
+}
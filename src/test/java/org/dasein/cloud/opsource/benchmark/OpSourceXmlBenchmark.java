@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.dasein.cloud.opsource.OpSourceXml;
+import org.w3c.dom.Document;
+
+/**
+ * Micro-benchmark comparing the shared, per-thread parsers and serializers of {@link OpSourceXml} with the
+ * per-call factory lookups they replaced. Not a unit test: run it by hand, e.g.
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; org.dasein.cloud.opsource.benchmark.OpSourceXmlBenchmark [servers] [iterations]
+ * </pre>
+ * The document parsed is a <code>ServersWithState</code> listing of <code>servers</code> servers (2 by default).
+ * Each variant is warmed up, then timed for three rounds of <code>iterations</code> calls (20000 by default).
+ */
+public class OpSourceXmlBenchmark {
+    static private final int ROUNDS = 3;
+
+    static private interface Task {
+        public void run() throws Exception;
+    }
+
+    static public void main(String ... args) throws Exception {
+        int servers = (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+        int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+        final byte[] xml = getServers(servers).getBytes("UTF-8");
+        final Document doc = OpSourceXml.parse(new ByteArrayInputStream(xml));
+
+        System.out.println("Document of " + servers + " servers, " + xml.length + " bytes, " + iterations + " calls per round");
+        measure("parse, per-call factory", iterations, new Task() {
+            @Override
+            public void run() throws Exception {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+
+                factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+            }
+        });
+        measure("parse, shared", iterations, new Task() {
+            @Override
+            public void run() throws Exception {
+                OpSourceXml.parse(new ByteArrayInputStream(xml));
+            }
+        });
+        measure("serialize, per-call factory", iterations, new Task() {
+            @Override
+            public void run() throws Exception {
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+
+                transformer.transform(new DOMSource(doc), new StreamResult(new StringWriter()));
+            }
+        });
+        measure("serialize, shared", iterations, new Task() {
+            @Override
+            public void run() throws Exception {
+                OpSourceXml.toString(doc, false);
+            }
+        });
+    }
+
+    static private void measure(String name, int iterations, Task task) throws Exception {
+        for( int i=0; i<iterations; i++ ) {
+            task.run();
+        }
+        StringBuilder str = new StringBuilder();
+
+        for( int round=0; round<ROUNDS; round++ ) {
+            long start = System.nanoTime();
+
+            for( int i=0; i<iterations; i++ ) {
+                task.run();
+            }
+            long perCall = (System.nanoTime() - start) / iterations / 1000L;
+
+            str.append(round == 0 ? "" : ", ").append(perCall).append(" us/call");
+        }
+        System.out.println(name + ": " + str);
+    }
+
+    static private String getServers(int count) {
+        StringBuilder str = new StringBuilder();
+
+        str.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+        str.append("<ns3:ServersWithState xmlns:ns3=\"http://oec.api.opsource.net/schemas/server\" pageNumber=\"1\" pageCount=\"");
+        str.append(count).append("\" totalCount=\"").append(count).append("\" pageSize=\"250\">");
+        for( int i=0; i<count; i++ ) {
+            str.append("<ns3:serverWithState id=\"server-").append(i).append("\" location=\"NA1\">");
+            str.append("<ns3:name>server ").append(i).append("</ns3:name>");
+            str.append("<ns3:description>benchmark server</ns3:description>");
+            str.append("<ns3:operatingSystem id=\"REDHAT564\" displayName=\"REDHAT5/64\" type=\"UNIX\"/>");
+            str.append("<ns3:cpuCount>2</ns3:cpuCount><ns3:memoryMb>4096</ns3:memoryMb>");
+            str.append("<ns3:disk id=\"disk-").append(i).append("\" scsiId=\"0\" sizeGb=\"10\" speed=\"STANDARD\" state=\"NORMAL\"/>");
+            str.append("<ns3:sourceImageId>image-1</ns3:sourceImageId>");
+            str.append("<ns3:networkId>network-1</ns3:networkId>");
+            str.append("<ns3:machineName>10-0-0-").append(i).append("</ns3:machineName>");
+            str.append("<ns3:privateIp>10.0.0.").append(i).append("</ns3:privateIp>");
+            str.append("<ns3:created>2013-01-01T00:00:00.000Z</ns3:created>");
+            str.append("<ns3:isDeployed>true</ns3:isDeployed><ns3:isStarted>true</ns3:isStarted>");
+            str.append("<ns3:state>NORMAL</ns3:state>");
+            str.append("</ns3:serverWithState>");
+        }
+        str.append("</ns3:ServersWithState>");
+        return str.toString();
+    }
+}
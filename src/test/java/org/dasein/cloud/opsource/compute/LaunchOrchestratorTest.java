@@ -0,0 +1,348 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.opsource.OpSource;
+import org.dasein.util.CalendarWrapper;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LaunchOrchestratorTest {
+    /**
+     * Servers held in memory, recording the actions asked of them.
+     */
+    static private class FakeServers extends VirtualMachines {
+        final HashMap<String, VmState> states  = new HashMap<String, VmState>();
+        final HashMap<String, String>  cpus    = new HashMap<String, String>();
+        final ArrayList<String>        actions = new ArrayList<String>();
+
+        int     serverCount = 0;
+        int     listings    = 0;
+        int     lookups     = 0;
+        boolean failModify  = false;
+
+        FakeServers(OpSource provider) {
+            super(provider);
+        }
+
+        @Override
+        VirtualMachine lookupVirtualMachine(@Nonnull String serverId) {
+            lookups++;
+
+            VmState state = states.get(serverId);
+
+            if( state == null ) {
+                return null;
+            }
+            VirtualMachine vm = new VirtualMachine();
+
+            vm.setProviderVirtualMachineId(serverId);
+            vm.setCurrentState(state);
+            if( cpus.containsKey(serverId) ) {
+                vm.setTag("cpuCount", cpus.get(serverId));
+                vm.setTag("memory", "4096");
+            }
+            return vm;
+        }
+
+        @Override
+        public VirtualMachine getVirtualMachine(@Nonnull String serverId) {
+            throw new AssertionError("launches must not go through the negative cache");
+        }
+
+        @Override
+        public Iterable<ResourceStatus> listVirtualMachineStatus() {
+            listings++;
+
+            ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
+
+            for( Map.Entry<String, VmState> entry : states.entrySet() ) {
+                list.add(new ResourceStatus(entry.getKey(), entry.getValue()));
+            }
+            return list;
+        }
+
+        @Override
+        int countVirtualMachines() {
+            return serverCount;
+        }
+
+        @Override
+        boolean modify(String serverId, int cpuCount, int memoryInMb) throws CloudException {
+            actions.add("modify " + serverId);
+            if( failModify ) {
+                throw new CloudException("Server busy");
+            }
+            cpus.put(serverId, String.valueOf(cpuCount));
+            return true;
+        }
+
+        @Override
+        boolean addLocalStorage(@Nonnull String serverId, int storageSize) {
+            actions.add("storage " + serverId);
+            return true;
+        }
+
+        @Override
+        public void start(@Nonnull String serverId) throws InternalException, CloudException {
+            actions.add("start " + serverId);
+            states.put(serverId, VmState.RUNNING);
+        }
+    }
+
+    private OpSource           provider;
+    private FakeServers        servers;
+    private LaunchOrchestrator orchestrator;
+    private long               clock;
+
+    private final ArrayList<String> events = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        ProviderContext ctx = new ProviderContext("launch-" + System.nanoTime(), "region");
+
+        ctx.setEndpoint("https://api.opsourcecloud.net");
+        ctx.setCustomProperties(new Properties());
+        provider = new OpSource();
+        provider.connect(ctx);
+        servers = new FakeServers(provider);
+        clock = 1000000L;
+        // work runs on the polling thread and time only moves when a test says so
+        orchestrator = new LaunchOrchestrator(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                command.run();
+            }
+        }) {
+            @Override
+            long now() {
+                return clock;
+            }
+        };
+        orchestrator.addListener(new LaunchOrchestrator.LaunchListener() {
+            @Override
+            public void stepChanged(@Nonnull String serverId, @Nonnull LaunchOrchestrator.Step step) {
+                events.add(serverId + " " + step);
+            }
+
+            @Override
+            public void completed(@Nonnull String serverId) {
+                events.add(serverId + " completed");
+            }
+
+            @Override
+            public void failed(@Nonnull String serverId, @Nonnull String reason) {
+                events.add(serverId + " failed: " + reason);
+            }
+        });
+    }
+
+    private void submit(String serverId, LaunchOrchestrator.Plan plan) throws CloudException {
+        orchestrator.submit(servers, provider, serverId, plan);
+    }
+
+    private void pollAfter(long millis) {
+        clock += millis;
+        orchestrator.poll();
+    }
+
+    @Test
+    public void stepsRunInOrder() throws Exception {
+        servers.states.put("s1", VmState.PENDING);
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 10, true));
+        pollAfter(15000L);
+        assertEquals(LaunchOrchestrator.Step.WAITING_FOR_DEPLOYMENT, orchestrator.getStep("s1"));
+
+        servers.states.put("s1", VmState.STOPPED);
+        for( int i=0; i<4; i++ ) {
+            pollAfter(15000L);
+        }
+        assertEquals(Arrays.asList("modify s1", "storage s1", "start s1"), servers.actions);
+        assertEquals(Arrays.asList("s1 WAITING_FOR_DEPLOYMENT", "s1 MODIFYING", "s1 ADDING_STORAGE", "s1 STARTING", "s1 COMPLETE", "s1 completed"), events);
+        assertNull(orchestrator.getStep("s1"));
+        assertEquals(0, orchestrator.getActiveCount());
+    }
+
+    @Test
+    public void serverAlreadyChangedIsNotModifiedAgain() throws Exception {
+        servers.states.put("s1", VmState.STOPPED);
+        servers.cpus.put("s1", "2");
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 0, false));
+        pollAfter(15000L);
+        pollAfter(15000L);
+        assertTrue(servers.actions.isEmpty());
+        assertEquals(Arrays.asList("s1 WAITING_FOR_DEPLOYMENT", "s1 MODIFYING", "s1 COMPLETE", "s1 completed"), events);
+    }
+
+    @Test
+    public void plansAreMergedWhileWaitingForDeployment() throws Exception {
+        servers.states.put("s1", VmState.PENDING);
+        submit("s1", new LaunchOrchestrator.Plan(-1, -1, 10, false));
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 0, true));
+        assertEquals(1, orchestrator.getActiveCount());
+
+        servers.states.put("s1", VmState.STOPPED);
+        for( int i=0; i<4; i++ ) {
+            pollAfter(15000L);
+        }
+        assertEquals(Arrays.asList("modify s1", "storage s1", "start s1"), servers.actions);
+        assertNull(orchestrator.getStep("s1"));
+    }
+
+    @Test
+    public void plansCannotChangeStepsAlreadyPassed() throws Exception {
+        servers.states.put("s1", VmState.STOPPED);
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 10, true));
+        pollAfter(15000L);
+        assertEquals(LaunchOrchestrator.Step.MODIFYING, orchestrator.getStep("s1"));
+        try {
+            submit("s1", new LaunchOrchestrator.Plan(4, 8192, 0, true));
+            fail("CPU and memory can no longer change once the server is being modified");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        try {
+            submit("s1", new LaunchOrchestrator.Plan(-1, -1, 20, true));
+            fail("storage is added only once");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        // the same changes again are harmless
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 0, true));
+        assertEquals(LaunchOrchestrator.Step.MODIFYING, orchestrator.getStep("s1"));
+    }
+
+    @Test
+    public void failedStepIsRetriedLater() throws Exception {
+        servers.states.put("s1", VmState.STOPPED);
+        servers.failModify = true;
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 0, true));
+        pollAfter(15000L);
+        assertEquals(Arrays.asList("modify s1"), servers.actions);
+
+        // not again before the retry interval
+        servers.failModify = false;
+        pollAfter(15000L);
+        assertEquals(Arrays.asList("modify s1"), servers.actions);
+
+        pollAfter(16000L);
+        assertEquals(Arrays.asList("modify s1", "modify s1"), servers.actions);
+        pollAfter(15000L);
+        pollAfter(15000L);
+        assertEquals(Arrays.asList("modify s1", "modify s1", "start s1"), servers.actions);
+        assertNull(orchestrator.getStep("s1"));
+    }
+
+    @Test
+    public void serverThatNeverStartsFails() throws Exception {
+        servers.states.put("s1", VmState.STOPPED);
+        submit("s1", new LaunchOrchestrator.Plan(-1, -1, 0, true));
+        pollAfter(15000L);
+        assertEquals(LaunchOrchestrator.Step.STARTING, orchestrator.getStep("s1"));
+
+        // the start is asked for but the server stays stopped
+        servers.states.put("s1", VmState.STOPPED);
+        pollAfter(CalendarWrapper.MINUTE * 16L);
+        assertNull(orchestrator.getStep("s1"));
+        assertEquals("s1 failed: Server did not start in time", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void serverMissingBrieflyIsStillLaunched() throws Exception {
+        submit("s1", new LaunchOrchestrator.Plan(-1, -1, 0, true));
+        pollAfter(15000L);
+        pollAfter(CalendarWrapper.MINUTE * 4L);
+        assertEquals(LaunchOrchestrator.Step.WAITING_FOR_DEPLOYMENT, orchestrator.getStep("s1"));
+
+        servers.states.put("s1", VmState.STOPPED);
+        pollAfter(15000L);
+        pollAfter(15000L);
+        assertEquals(Arrays.asList("start s1"), servers.actions);
+        assertNull(orchestrator.getStep("s1"));
+        assertEquals("s1 completed", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void serverThatStaysMissingFails() throws Exception {
+        servers.states.put("s1", VmState.STOPPED);
+        submit("s1", new LaunchOrchestrator.Plan(2, 4096, 0, true));
+        pollAfter(15000L);
+        assertEquals(LaunchOrchestrator.Step.MODIFYING, orchestrator.getStep("s1"));
+
+        servers.states.remove("s1");
+        pollAfter(15000L);
+        pollAfter(CalendarWrapper.MINUTE * 4L);
+        assertEquals(LaunchOrchestrator.Step.MODIFYING, orchestrator.getStep("s1"));
+        pollAfter(CalendarWrapper.MINUTE * 2L);
+        assertNull(orchestrator.getStep("s1"));
+        assertEquals("s1 failed: Server disappeared while in MODIFYING", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void smallAccountIsCheckedWithOneListing() throws Exception {
+        List<String> ids = Arrays.asList("s1", "s2", "s3", "s4");
+
+        servers.serverCount = 300;
+        for( String id : ids ) {
+            servers.states.put(id, VmState.PENDING);
+            submit(id, new LaunchOrchestrator.Plan(-1, -1, 0, true));
+        }
+        pollAfter(15000L);
+        assertEquals(1, servers.listings);
+        assertEquals(0, servers.lookups);
+    }
+
+    @Test
+    public void largeAccountIsCheckedServerByServer() throws Exception {
+        List<String> ids = Arrays.asList("s1", "s2", "s3", "s4");
+
+        // a listing would take 40 pages for 4 servers
+        servers.serverCount = 10000;
+        for( String id : ids ) {
+            servers.states.put(id, VmState.PENDING);
+            submit(id, new LaunchOrchestrator.Plan(-1, -1, 0, true));
+        }
+        pollAfter(15000L);
+        assertEquals(0, servers.listings);
+        assertEquals(4, servers.lookups);
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.opsource.OpSource;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.dasein.util.JitCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerLookupTest {
+    static private final String ACCOUNT = "<ns3:Account xmlns:ns3=\"http://oec.api.opsource.net/schemas/directory\"><ns3:userName>user</ns3:userName><ns3:orgId>org-1</ns3:orgId></ns3:Account>";
+    static private final String REGIONS = "<ns4:DatacentersWithLimits xmlns:ns4=\"http://oec.api.opsource.net/schemas/datacenter\"><ns4:datacenterWithLimits><ns4:location>region</ns4:location><ns4:displayName>Region</ns4:displayName></ns4:datacenterWithLimits></ns4:DatacentersWithLimits>";
+
+    static private String server(String id, String name) {
+        return "<serverWithState id=\"" + id + "\" location=\"region\"><name>" + name + "</name><networkId>vlan-1</networkId>"
+                + "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>NORMAL</state></serverWithState>";
+    }
+
+    static private String servers(String ... servers) {
+        StringBuilder str = new StringBuilder();
+
+        str.append("<ServersWithState xmlns=\"http://oec.api.opsource.net/schemas/server\" pageNumber=\"1\" pageCount=\"");
+        str.append(servers.length).append("\" totalCount=\"").append(servers.length).append("\" pageSize=\"250\">");
+        for( String server : servers ) {
+            str.append(server);
+        }
+        str.append("</ServersWithState>");
+        return str.toString();
+    }
+
+    private TestServer    server;
+    private AtomicInteger filtered;
+    private AtomicInteger scans;
+    private volatile boolean honorFilters;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+        filtered = new AtomicInteger(0);
+        scans = new AtomicInteger(0);
+        honorFilters = true;
+        server.handle("/oec/0.9/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String query = String.valueOf(exchange.getRequestURI().getQuery());
+
+                if( path.endsWith("/myaccount") ) {
+                    TestServer.send(exchange, 200, ACCOUNT);
+                }
+                else if( path.endsWith("/datacenterWithLimits") ) {
+                    TestServer.send(exchange, 200, REGIONS);
+                }
+                else if( query.contains("name=") ) {
+                    filtered.incrementAndGet();
+                    if( honorFilters ) {
+                        TestServer.send(exchange, 200, query.contains("name=web") ? servers(server("s2", "web")) : servers());
+                    }
+                    else {
+                        TestServer.send(exchange, 200, servers(server("s1", "db")));
+                    }
+                }
+                else {
+                    scans.incrementAndGet();
+                    TestServer.send(exchange, 200, servers(server("s1", "db"), server("s2", "web")));
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private VirtualMachines connect(String ... properties) throws Exception {
+        String[] p = new String[properties.length + 2];
+
+        // the index of the last listing would answer repeated lookups on its own
+        p[0] = "serverIndexTtl";
+        p[1] = "0";
+        System.arraycopy(properties, 0, p, 2, properties.length);
+
+        OpSource provider = server.connect(p);
+
+        return new VirtualMachines(provider);
+    }
+
+    @Test
+    public void filteredLookupReadsOneServer() throws Exception {
+        VirtualMachines support = connect();
+        VirtualMachine vm = support.getVirtualMachineByNameAndVlan("web", "vlan-1");
+
+        assertEquals("s2", vm.getProviderVirtualMachineId());
+        assertNull(support.getVirtualMachineByNameAndVlan("mail", "vlan-1"));
+        assertEquals(2, filtered.get());
+        assertEquals(0, scans.get());
+    }
+
+    @Test
+    public void ignoredFiltersFallBackToScanning() throws Exception {
+        VirtualMachines support = connect();
+
+        honorFilters = false;
+        assertEquals("s2", support.getVirtualMachineByNameAndVlan("web", "vlan-1").getProviderVirtualMachineId());
+        assertEquals(1, filtered.get());
+        assertEquals(1, scans.get());
+
+        // the endpoint is now scanned straight away
+        assertEquals("s2", support.getVirtualMachineByNameAndVlan("web", "vlan-1").getProviderVirtualMachineId());
+        assertEquals(1, filtered.get());
+        assertEquals(2, scans.get());
+    }
+
+    @Test
+    public void filtersAreTriedAgainLater() throws Exception {
+        VirtualMachines support = connect("serverFilterRetry", "100");
+
+        honorFilters = false;
+        assertEquals("s2", support.getVirtualMachineByNameAndVlan("web", "vlan-1").getProviderVirtualMachineId());
+        assertEquals(1, scans.get());
+
+        Thread.sleep(150L);
+        honorFilters = true;
+        assertEquals("s2", support.getVirtualMachineByNameAndVlan("web", "vlan-1").getProviderVirtualMachineId());
+        assertEquals("s2", support.getVirtualMachineByNameAndVlan("web", "vlan-1").getProviderVirtualMachineId());
+        assertEquals(3, filtered.get());
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void listingCanBeIteratedMoreThanOnce() throws Exception {
+        // callers such as LoadBalancers.create() cast the listing and walk it once per server they look for
+        JitCollection<VirtualMachine> vms = (JitCollection<VirtualMachine>)connect().listVirtualMachines();
+
+        for( int i=0; i<2; i++ ) {
+            int count = 0;
+
+            for( VirtualMachine vm : vms ) {
+                count++;
+            }
+            assertEquals(2, count);
+        }
+        assertEquals(1, scans.get());
+    }
+}
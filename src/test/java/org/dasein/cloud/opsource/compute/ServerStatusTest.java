@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.compute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.opsource.OpSource;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+public class ServerStatusTest {
+    /**
+     * The children of a serverWithState element, in API order, with the state both readers must find.
+     */
+    static private final Object[][] SERVERS = {
+            { "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>NORMAL</state>", VmState.RUNNING },
+            { "<isDeployed>true</isDeployed><isStarted>false</isStarted><state>NORMAL</state>", VmState.STOPPED },
+            { "<isDeployed>false</isDeployed><isStarted>false</isStarted><state>PENDING_ADD</state>", VmState.PENDING },
+            { "<isDeployed>true</isDeployed><isStarted>false</isStarted><state>PENDING_CHANGE</state><status><action>START_SERVER</action></status>", VmState.RUNNING },
+            { "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>PENDING_CHANGE</state><status><action>POWER_OFF_SERVER</action></status>", VmState.STOPPING },
+            { "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>PENDING_CHANGE</state><status><action>SHUTDOWN_SERVER</action></status>", VmState.STOPPING },
+            { "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>PENDING_CHANGE</state><status><action>RESET_SERVER</action></status>", VmState.REBOOTING },
+            { "<isDeployed>true</isDeployed><isStarted>false</isStarted><state>PENDING_CHANGE</state><status><action>ADD_LOCAL_STORAGE</action></status>", VmState.PENDING },
+            { "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>PENDING_DELETE</state><status><action>DELETE_SERVER</action></status>", VmState.RUNNING },
+            { "<isDeployed>false</isDeployed><isStarted>false</isStarted><state>FAILED_ADD</state><status><action>DEPLOY_SERVER</action><failureReason>Out of capacity</failureReason></status>", VmState.SUSPENDED },
+            { "<isDeployed>true</isDeployed><isStarted>true</isStarted><state>FAILED_CHANGE</state><status><action>START_SERVER</action></status>", VmState.SUSPENDED }
+    };
+
+    static private Node parse(String children) throws Exception {
+        String xml = "<serverWithState id=\"server-1\" location=\"NA1\"><name>web</name><networkId>vlan-1</networkId>"
+                + "<cpuCount>2</cpuCount><memoryMb>4096</memoryMb>" + children + "</serverWithState>";
+
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+    }
+
+    @Test
+    public void statusAndFullServerAgree() throws Exception {
+        ProviderContext ctx = new ProviderContext("status-" + System.nanoTime(), "NA1");
+
+        ctx.setEndpoint("https://api.opsourcecloud.net");
+        ctx.setCustomProperties(new Properties());
+
+        OpSource provider = new OpSource();
+
+        provider.connect(ctx);
+
+        VirtualMachines support = new VirtualMachines(provider);
+
+        for( Object[] server : SERVERS ) {
+            Node node = parse((String)server[0]);
+            ResourceStatus status = support.toServerStatus(node);
+            VirtualMachine vm = support.toVirtualMachineWithStatus(node, "");
+
+            assertEquals(server[0].toString(), "server-1", status.getProviderResourceId());
+            assertEquals(server[0].toString(), server[1], status.getResourceStatus());
+            assertEquals(server[0].toString(), server[1], vm.getCurrentState());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.dasein.cloud.network.LoadBalancer;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadBalancersTest {
+    static private final String ACCOUNT = "<ns3:Account xmlns:ns3=\"http://oec.api.opsource.net/schemas/directory\"><ns3:userName>user</ns3:userName><ns3:orgId>org-1</ns3:orgId></ns3:Account>";
+    static private final String REGIONS = "<ns4:DatacentersWithLimits xmlns:ns4=\"http://oec.api.opsource.net/schemas/datacenter\"><ns4:datacenterWithLimits><ns4:location>region</ns4:location><ns4:displayName>Region</ns4:displayName></ns4:datacenterWithLimits></ns4:DatacentersWithLimits>";
+    static private final String VIPS = "<ns4:Vips xmlns:ns4=\"http://oec.api.opsource.net/schemas/network\">"
+            + "<ns4:vip><ns4:id>vip-1</ns4:id><ns4:name>web</ns4:name><ns4:port>80</ns4:port><ns4:vipTargetId>farm-1</ns4:vipTargetId></ns4:vip>"
+            + "<ns4:vip><ns4:id>vip-2</ns4:id><ns4:name>api</ns4:name><ns4:port>443</ns4:port><ns4:vipTargetId>farm-2</ns4:vipTargetId></ns4:vip>"
+            + "</ns4:Vips>";
+    static private final String NO_VIPS = "<ns4:Vips xmlns:ns4=\"http://oec.api.opsource.net/schemas/network\"/>";
+    static private final String NETWORKS = "<ns4:NetworkWithLocations xmlns:ns4=\"http://oec.api.opsource.net/schemas/network\">"
+            + "<ns4:network><ns4:id>net-1</ns4:id><ns4:name>one</ns4:name><ns4:location>region</ns4:location></ns4:network>"
+            + "<ns4:network><ns4:id>net-2</ns4:id><ns4:name>two</ns4:name><ns4:location>region</ns4:location></ns4:network>"
+            + "</ns4:NetworkWithLocations>";
+    static private final String FARM = "<ns4:ServerFarm xmlns:ns4=\"http://oec.api.opsource.net/schemas/network\"><ns4:id>farm</ns4:id><ns4:name>farm</ns4:name></ns4:ServerFarm>";
+    static private final String REAL_SERVERS = "<ns4:RealServers xmlns:ns4=\"http://oec.api.opsource.net/schemas/network\"/>";
+
+    private TestServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+        server.handle("/oec/0.9/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+
+                if( path.endsWith("/myaccount") ) {
+                    TestServer.send(exchange, 200, ACCOUNT);
+                }
+                else if( path.endsWith("/datacenterWithLimits") ) {
+                    TestServer.send(exchange, 200, REGIONS);
+                }
+                else if( path.endsWith("/net-1/vip") ) {
+                    TestServer.send(exchange, 200, VIPS);
+                }
+                else if( path.endsWith("/net-2/vip") ) {
+                    TestServer.send(exchange, 200, NO_VIPS);
+                }
+                else if( path.endsWith("/networkWithLocation") ) {
+                    TestServer.send(exchange, 200, NETWORKS);
+                }
+                else if( path.contains("/serverFarm/") ) {
+                    TestServer.send(exchange, 200, FARM);
+                }
+                else if( path.endsWith("/realServer") ) {
+                    TestServer.send(exchange, 200, REAL_SERVERS);
+                }
+                else {
+                    TestServer.send(exchange, 404, "");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(timeout=30000L)
+    public void serverFarmsAreReadOutsideTheListingCall() throws Exception {
+        // with a single request in flight, a server farm read while the listing is still open could never start
+        LoadBalancers support = new LoadBalancers(server.connect("maxRequestsInFlight", "1", "maxConnectionsPerRoute", "1"));
+        ArrayList<LoadBalancer> balancers = (ArrayList<LoadBalancer>)support.listLoadBalancers("net-1");
+
+        assertEquals(2, balancers.size());
+        assertEquals("vip-1", balancers.get(0).getProviderLoadBalancerId());
+        assertEquals("vip-2", balancers.get(1).getProviderLoadBalancerId());
+    }
+
+    @Test
+    public void missOnOneNetworkDoesNotHideOtherNetworks() throws Exception {
+        LoadBalancers support = new LoadBalancers(server.connect());
+
+        assertNull(support.getLoadBalancer("net-2", "vip-1"));
+        assertNotNull(support.getLoadBalancer("net-1", "vip-1"));
+        assertNotNull(support.getLoadBalancer("vip-1"));
+        assertNull(support.getLoadBalancer("net-2", "vip-1"));
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.dasein.cloud.network.VLAN;
+import org.dasein.cloud.opsource.OpSource;
+import org.dasein.cloud.opsource.support.TestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NetworkTest {
+    static private final String ACCOUNT = "<ns3:Account xmlns:ns3=\"http://oec.api.opsource.net/schemas/directory\"><ns3:userName>user</ns3:userName><ns3:orgId>org-1</ns3:orgId></ns3:Account>";
+    static private final String REGIONS = "<ns4:DatacentersWithLimits xmlns:ns4=\"http://oec.api.opsource.net/schemas/datacenter\"><ns4:datacenterWithLimits><ns4:location>region</ns4:location><ns4:displayName>Region</ns4:displayName></ns4:datacenterWithLimits></ns4:DatacentersWithLimits>";
+    static private final String NETWORKS = "<ns4:NetworkWithLocations xmlns:ns4=\"http://oec.api.opsource.net/schemas/network\">"
+            + "<ns4:network><ns4:id>vlan-other</ns4:id><ns4:name>other</ns4:name><ns4:location>elsewhere</ns4:location></ns4:network>"
+            + "<ns4:network><ns4:id>vlan-1</ns4:id><ns4:name>default</ns4:name><ns4:location>region</ns4:location></ns4:network>"
+            + "</ns4:NetworkWithLocations>";
+
+    private TestServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+        server.handle("/oec/0.9/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+
+                if( path.endsWith("/myaccount") ) {
+                    TestServer.send(exchange, 200, ACCOUNT);
+                }
+                else if( path.endsWith("/datacenterWithLimits") ) {
+                    TestServer.send(exchange, 200, REGIONS);
+                }
+                else if( path.endsWith("/networkWithLocation") ) {
+                    TestServer.send(exchange, 200, NETWORKS);
+                }
+                else {
+                    TestServer.send(exchange, 404, "");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void defaultVlanIsFoundInTheCachedListing() throws Exception {
+        OpSource provider = server.connect();
+
+        assertEquals("vlan-1", provider.getDefaultVlanId());
+    }
+
+    @Test
+    public void everyCallerGetsItsOwnList() throws Exception {
+        Network network = new Network(server.connect());
+        ArrayList<VLAN> first = (ArrayList<VLAN>)network.listVlans();
+
+        first.clear();
+
+        ArrayList<VLAN> second = (ArrayList<VLAN>)network.listVlans();
+
+        assertNotSame(first, second);
+        assertEquals(1, second.size());
+        assertEquals("vlan-1", second.get(0).getProviderVlanId());
+    }
+
+    @Test
+    public void changesToListedVlansDoNotReachTheCache() throws Exception {
+        Network network = new Network(server.connect());
+
+        network.listVlans().iterator().next().setName("changed");
+        assertEquals("default", network.listVlans().iterator().next().getName());
+    }
+}
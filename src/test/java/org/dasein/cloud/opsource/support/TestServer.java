@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2009-2013 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.opsource.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.opsource.OpSource;
+
+/**
+ * A local HTTP server standing in for the OpSource API in unit tests. Each test registers the paths it needs and
+ * connects providers whose endpoint points at the server.
+ */
+public class TestServer {
+    static private final AtomicInteger accountCount = new AtomicInteger(0);
+
+    private final HttpServer      server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public TestServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL of the server, e.g. <code>http://127.0.0.1:49152</code>
+     */
+    public @Nonnull String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Serves the path, and everything below it, with the specified handler.
+     * @param path the path handled
+     * @param handler the handler answering the requests
+     */
+    public void handle(@Nonnull String path, @Nonnull HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    /**
+     * Answers every request for the path, and everything below it, with the same XML document.
+     * @param path the path handled
+     * @param xml the response body
+     */
+    public void reply(@Nonnull final String path, @Nonnull final String xml) {
+        handle(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.putIfAbsent(path, new AtomicInteger(0));
+                requests.get(path).incrementAndGet();
+                send(exchange, 200, xml);
+            }
+        });
+    }
+
+    /**
+     * @param path a path registered through {@link #reply(String, String)}
+     * @return the number of requests answered for it
+     */
+    public int getRequestCount(@Nonnull String path) {
+        AtomicInteger count = requests.get(path);
+
+        return (count == null ? 0 : count.get());
+    }
+
+    /**
+     * Connects a provider to this server under an account of its own, so that per-account state such as the
+     * request governor is not shared between tests. Failed calls are not retried unless the properties say so.
+     * @param properties custom properties as name/value pairs
+     * @return the connected provider
+     * @throws Exception the provider could not be connected
+     */
+    public @Nonnull OpSource connect(@Nonnull String ... properties) throws Exception {
+        return connectAs("test-" + accountCount.incrementAndGet() + "-" + System.nanoTime(), "secret", properties);
+    }
+
+    /**
+     * Connects a provider to this server under the specified account, as user <code>user</code> with the specified
+     * secret key. Failed calls are not retried unless the properties say so.
+     * @param accountNumber the account number
+     * @param secret the secret key of the user
+     * @param properties custom properties as name/value pairs
+     * @return the connected provider
+     * @throws Exception the provider could not be connected
+     */
+    public @Nonnull OpSource connectAs(@Nonnull String accountNumber, @Nonnull String secret, @Nonnull String ... properties) throws Exception {
+        ProviderContext ctx = new ProviderContext(accountNumber, "region");
+        Properties p = new Properties();
+
+        p.setProperty("retryMaxAttempts", "1");
+        for( int i=0; i<properties.length; i+=2 ) {
+            p.setProperty(properties[i], properties[i + 1]);
+        }
+        ctx.setEndpoint(getEndpoint());
+        ctx.setAccessKeys("user".getBytes("UTF-8"), secret.getBytes("UTF-8"));
+        ctx.setCustomProperties(p);
+
+        OpSource provider = new OpSource();
+
+        provider.connect(ctx);
+        return provider;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends a complete response.
+     * @param exchange the exchange answered
+     * @param status the HTTP status
+     * @param body the response body
+     * @throws IOException the response could not be sent
+     */
+    static public void send(@Nonnull HttpExchange exchange, int status, @Nonnull String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(status, bytes.length);
+
+            OutputStream out = exchange.getResponseBody();
+
+            out.write(bytes);
+            out.close();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}